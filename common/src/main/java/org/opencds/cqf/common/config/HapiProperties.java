@@ -76,6 +76,35 @@ public class HapiProperties {
     static final String CDSHOOKS_FHIRSERVER_EXPANDVALUESETS = "cds_hooks.fhirServer.expandValueSets";
     static final String CDSHOOKS_FHIRSERVER_SEARCHSTYLE= "cds_hooks.fhirServer.searchStyle";
     static final String CDSHOOKS_PREFETCH_MAXURILENGTH= "cds_hooks.prefetch.maxUriLength";
+    static final String CDSHOOKS_PREPARED_PLANS_MAX_SIZE = "cds_hooks.prepared_plans.max_size";
+
+    static final String MEASURE_EVALUATION_THREADS = "measure_evaluation.threads";
+    static final String MEASURE_EVALUATION_PAGE_SIZE = "measure_evaluation.page_size";
+    static final String MEASURE_EVALUATION_PREFETCH_ENABLED = "measure_evaluation.prefetch.enabled";
+    static final String MEASURE_EVALUATION_PREFETCH_BLOCK_SIZE = "measure_evaluation.prefetch.block_size";
+    static final String MEASURE_EVALUATION_MEDIAN_SAMPLE_SIZE = "measure_evaluation.median_sample_size";
+    static final String RETRIEVE_PAGE_SIZE = "retrieve.page_size";
+    static final String ASYNC_THREADS = "async.threads";
+    static final String ASYNC_QUEUE_SIZE = "async.queue_size";
+    static final String ASYNC_HEARTBEAT_SECONDS = "async.heartbeat_seconds";
+    static final String ASYNC_STALE_MINUTES = "async.stale_minutes";
+    static final String BUDGET_EVALUATE_MEASURE_SECONDS = "budget.evaluate_measure_seconds";
+    static final String BUDGET_CARE_GAPS_SECONDS = "budget.care_gaps_seconds";
+    static final String BUDGET_CQL_SECONDS = "budget.cql_seconds";
+    static final String BUDGET_APPLY_SECONDS = "budget.apply_seconds";
+    static final String WARMUP_ENABLED = "warmup.enabled";
+    static final String WARMUP_THREADS = "warmup.threads";
+    static final String LIBRARY_CACHE_MAX_SIZE = "library_cache.max_size";
+    static final String EXPRESSION_CACHE_MAX_SIZE = "expression_cache.max_size";
+    static final String LIBRARY_STORE_DIRECTORY = "library_store.directory";
+    static final String LIBRARY_LOADER_PARALLEL_TRANSLATION = "library_loader.parallel_translation";
+    static final String LIBRARY_LOADER_TRANSLATION_THREADS = "library_loader.translation_threads";
+    static final String VALUESET_INDEX_MAX_SIZE = "terminology.valueset_index.max_size";
+    static final String VALUESET_EXPANSION_CACHE_MAX_ENTRIES = "terminology.expansion_cache.max_entries";
+    static final String VALUESET_EXPANSION_CACHE_MAX_CODES = "terminology.expansion_cache.max_codes";
+    static final String VALUESET_EXPANSION_CACHE_LOCAL_TTL_MINUTES = "terminology.expansion_cache.local_ttl_minutes";
+    static final String VALUESET_EXPANSION_CACHE_REMOTE_TTL_MINUTES = "terminology.expansion_cache.remote_ttl_minutes";
+    static final String VALUESET_EXPANSION_CACHE_STATS_LOG_MINUTES = "terminology.expansion_cache.stats_log_minutes";
 
     private static Properties properties;
 
@@ -479,4 +508,123 @@ public class HapiProperties {
         return SearchStyleEnum.GET;
     }
     public static Integer getCdsHooksPreFetchMaxUriLength() { return HapiProperties.getIntegerProperty(CDSHOOKS_PREFETCH_MAXURILENGTH, 8000);}
+
+    public static Integer getCdsHooksPreparedPlansMaxSize() {
+        return HapiProperties.getIntegerProperty(CDSHOOKS_PREPARED_PLANS_MAX_SIZE, 100);
+    }
+
+    // ************************* MEASURE EVALUATION ****************
+    public static Integer getMeasureEvaluationThreads() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_THREADS, 1);
+    }
+
+    public static Integer getMeasureEvaluationPageSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_PAGE_SIZE, 500);
+    }
+
+    public static Boolean getMeasureEvaluationPrefetchEnabled() {
+        return HapiProperties.getBooleanProperty(MEASURE_EVALUATION_PREFETCH_ENABLED, false);
+    }
+
+    public static Integer getMeasureEvaluationPrefetchBlockSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_PREFETCH_BLOCK_SIZE, 100);
+    }
+
+    public static Integer getMeasureEvaluationMedianSampleSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_MEDIAN_SAMPLE_SIZE, 10000);
+    }
+
+    // ************************* RETRIEVE ****************
+    public static Integer getRetrievePageSize() {
+        return HapiProperties.getIntegerProperty(RETRIEVE_PAGE_SIZE, 200);
+    }
+
+    // ************************* ASYNC REQUESTS ****************
+    public static Integer getAsyncThreads() {
+        return HapiProperties.getIntegerProperty(ASYNC_THREADS, 2);
+    }
+
+    public static Integer getAsyncQueueSize() {
+        return HapiProperties.getIntegerProperty(ASYNC_QUEUE_SIZE, 10);
+    }
+
+    public static Integer getAsyncHeartbeatSeconds() {
+        return HapiProperties.getIntegerProperty(ASYNC_HEARTBEAT_SECONDS, 10);
+    }
+
+    public static Integer getAsyncStaleMinutes() {
+        return HapiProperties.getIntegerProperty(ASYNC_STALE_MINUTES, 5);
+    }
+
+    // ************************* TIME BUDGETS ****************
+    public static Integer getEvaluateMeasureBudgetSeconds() {
+        return HapiProperties.getIntegerProperty(BUDGET_EVALUATE_MEASURE_SECONDS, 0);
+    }
+
+    public static Integer getCareGapsBudgetSeconds() {
+        return HapiProperties.getIntegerProperty(BUDGET_CARE_GAPS_SECONDS, 0);
+    }
+
+    public static Integer getCqlBudgetSeconds() {
+        return HapiProperties.getIntegerProperty(BUDGET_CQL_SECONDS, 0);
+    }
+
+    public static Integer getApplyBudgetSeconds() {
+        return HapiProperties.getIntegerProperty(BUDGET_APPLY_SECONDS, 0);
+    }
+
+    // ************************* WARM-UP ****************
+    public static Boolean getWarmupEnabled() {
+        return HapiProperties.getBooleanProperty(WARMUP_ENABLED, true);
+    }
+
+    public static Integer getWarmupThreads() {
+        return HapiProperties.getIntegerProperty(WARMUP_THREADS, 2);
+    }
+
+    // ************************* LIBRARY CACHE ****************
+    public static Integer getLibraryCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(LIBRARY_CACHE_MAX_SIZE, 500);
+    }
+
+    public static Integer getExpressionCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(EXPRESSION_CACHE_MAX_SIZE, 1000);
+    }
+
+    public static String getLibraryStoreDirectory() {
+        return HapiProperties.getProperty(LIBRARY_STORE_DIRECTORY);
+    }
+
+    public static Boolean getLibraryLoaderParallelTranslationEnabled() {
+        return HapiProperties.getBooleanProperty(LIBRARY_LOADER_PARALLEL_TRANSLATION, true);
+    }
+
+    public static Integer getLibraryLoaderTranslationThreads() {
+        return HapiProperties.getIntegerProperty(LIBRARY_LOADER_TRANSLATION_THREADS, 4);
+    }
+
+    // ************************* TERMINOLOGY CACHE ****************
+    public static Integer getValueSetIndexMaxSize() {
+        return HapiProperties.getIntegerProperty(VALUESET_INDEX_MAX_SIZE, 1000);
+    }
+
+    public static Integer getValueSetExpansionCacheMaxEntries() {
+        return HapiProperties.getIntegerProperty(VALUESET_EXPANSION_CACHE_MAX_ENTRIES, 1000);
+    }
+
+    public static Integer getValueSetExpansionCacheMaxCodes() {
+        return HapiProperties.getIntegerProperty(VALUESET_EXPANSION_CACHE_MAX_CODES, 1000000);
+    }
+
+    public static Integer getValueSetExpansionCacheLocalTtlMinutes() {
+        return HapiProperties.getIntegerProperty(VALUESET_EXPANSION_CACHE_LOCAL_TTL_MINUTES, 60);
+    }
+
+    public static Integer getValueSetExpansionCacheRemoteTtlMinutes() {
+        return HapiProperties.getIntegerProperty(VALUESET_EXPANSION_CACHE_REMOTE_TTL_MINUTES, 60);
+    }
+
+    public static Integer getValueSetExpansionCacheStatsLogMinutes() {
+        return HapiProperties.getIntegerProperty(VALUESET_EXPANSION_CACHE_STATS_LOG_MINUTES, 60);
+    }
 }
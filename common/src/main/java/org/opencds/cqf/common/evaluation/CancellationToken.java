@@ -0,0 +1,87 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * Lets a long running evaluation be stopped cooperatively. A token is
+ * cancelled explicitly or when its time budget is exhausted. Evaluations call
+ * checkCancelled() at safe points (between patients, definitions or actions),
+ * which throws an EvaluationCancelledException once the token is cancelled.
+ *
+ * Thread-safe; a token may be shared by all workers of an evaluation.
+ */
+public class CancellationToken {
+
+    private static final String USER_DATA_KEY = CancellationToken.class.getName();
+
+    private final long deadline;
+    private final long budgetMillis;
+    private volatile String reason;
+
+    public CancellationToken() {
+        this(0);
+    }
+
+    /**
+     * Creates a token that is cancelled once budgetMillis have elapsed. A budget
+     * of zero or less means no budget.
+     */
+    public CancellationToken(long budgetMillis) {
+        this.budgetMillis = budgetMillis;
+        this.deadline = budgetMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis) : 0;
+    }
+
+    /**
+     * Returns the token of the request (see CancellationInterceptor), or a new
+     * token without budget if the request has none.
+     */
+    public static CancellationToken forRequest(RequestDetails requestDetails) {
+        Object token = requestDetails != null ? requestDetails.getUserData().get(USER_DATA_KEY) : null;
+        return token instanceof CancellationToken ? (CancellationToken) token : new CancellationToken();
+    }
+
+    public void attachTo(RequestDetails requestDetails) {
+        requestDetails.getUserData().put(USER_DATA_KEY, this);
+    }
+
+    /**
+     * Returns the time budget of the token in milliseconds, or zero or less if it
+     * has none.
+     */
+    public long getBudgetMillis() {
+        return this.budgetMillis;
+    }
+
+    public void cancel(String reason) {
+        if (this.reason == null) {
+            this.reason = reason;
+        }
+    }
+
+    public boolean isCancelled() {
+        if (this.reason != null) {
+            return true;
+        }
+
+        if (this.deadline != 0 && System.nanoTime() - this.deadline >= 0) {
+            this.cancel("Time budget of " + this.budgetMillis + " ms exceeded");
+        }
+
+        return this.reason != null;
+    }
+
+    public void checkCancelled() {
+        if (this.isCancelled()) {
+            throw new EvaluationCancelledException(this.reason);
+        }
+    }
+
+    /**
+     * Returns why the token was cancelled, or null if it has not been.
+     */
+    public String getReason() {
+        return this.reason;
+    }
+}
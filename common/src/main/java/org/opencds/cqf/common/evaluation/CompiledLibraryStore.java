@@ -0,0 +1,180 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * On-disk store of compiled ELM libraries, so that libraries translated before
+ * a restart don't have to be translated again. Sits behind the LibraryCache:
+ * the store is only consulted when a library is not in memory.
+ *
+ * Entries are keyed by library name, version, the hash of the library source
+ * (see LibraryCache.hash) and the translator version, so an entry is never used
+ * for another source.
+ * When a library's source changes, the entries for its previous sources are
+ * removed as the new one is stored. Entries are stored as gzipped ELM XML, the
+ * form translated libraries are already read from.
+ *
+ * The store is disabled unless library_store.directory is set.
+ */
+public class CompiledLibraryStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledLibraryStore.class);
+
+    private static final String TRANSLATOR_VERSION = getTranslatorVersion();
+    private static final String EXTENSION = ".xml.gz";
+
+    private static CompiledLibraryStore instance;
+
+    public static synchronized CompiledLibraryStore getInstance() {
+        if (instance == null) {
+            String directory = HapiProperties.getLibraryStoreDirectory();
+            instance = new CompiledLibraryStore(
+                    directory != null && !directory.isEmpty() ? Paths.get(directory) : null);
+        }
+
+        return instance;
+    }
+
+    private Path directory;
+
+    /**
+     * @param directory the directory entries are stored in, or null to disable
+     *                  the store
+     */
+    public CompiledLibraryStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the compiled library for the source, read from the store if it is
+     * there. Otherwise the library is translated with translate and stored.
+     */
+    public Library get(String name, String version, String hash, Callable<org.hl7.elm.r1.Library> translate)
+            throws Exception {
+        if (this.directory == null) {
+            return TranslatorHelper.toExecutionLibrary(translate.call());
+        }
+
+        Path path = this.getPath(name, version, hash);
+        Library library = read(path);
+        if (library != null) {
+            logger.debug("Read compiled library {} from {}", name, path);
+            return library;
+        }
+
+        org.hl7.elm.r1.Library elm = translate.call();
+        library = TranslatorHelper.toExecutionLibrary(elm);
+        this.write(path, elm);
+        this.removeOthers(path, version);
+
+        return library;
+    }
+
+    public boolean contains(String name, String version, String hash) {
+        return this.directory != null && Files.exists(this.getPath(name, version, hash));
+    }
+
+    private Path getPath(String name, String version, String sourceHash) {
+        String hash = Hashing.sha256().newHasher()
+                .putString(TRANSLATOR_VERSION, StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(name, StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(version != null ? version : "", StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(sourceHash, StandardCharsets.UTF_8).hash().toString();
+
+        return this.directory.resolve(toFileName(name)).resolve(toFileName(version) + "-" + hash + EXTENSION);
+    }
+
+    private static Library read(Path path) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(path))) {
+            return TranslatorHelper.readLibrary(input);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Discarding unreadable compiled library {}: {}", path, e.getMessage());
+            delete(path);
+            return null;
+        }
+    }
+
+    // Writes to a temporary file first, so other threads and servers sharing the
+    // directory never read a partial entry
+    private void write(Path path, org.hl7.elm.r1.Library elm) {
+        Path temp = null;
+        try {
+            Files.createDirectories(path.getParent());
+            temp = Files.createTempFile(path.getParent(), "library", ".tmp");
+            try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(temp))) {
+                TranslatorHelper.writeXml(elm, output);
+            }
+
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Error storing compiled library {}: {}", path, e.getMessage());
+            if (temp != null) {
+                delete(temp);
+            }
+        }
+    }
+
+    // Removes the entries for previous sources of the library version
+    private void removeOthers(Path path, String version) {
+        Pattern entry = Pattern
+                .compile(Pattern.quote(toFileName(version)) + "-[0-9a-f]{64}" + Pattern.quote(EXTENSION));
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(path.getParent())) {
+            for (Path other : entries) {
+                if (!other.equals(path) && entry.matcher(other.getFileName().toString()).matches()) {
+                    logger.debug("Removing compiled library {}", other);
+                    delete(other);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Error removing previous compiled libraries from {}: {}", path.getParent(), e.getMessage());
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Error deleting {}: {}", path, e.getMessage());
+        }
+    }
+
+    // Libraries translated by another version of the translator may differ
+    private static String getTranslatorVersion() {
+        String version = CqlTranslator.class.getPackage().getImplementationVersion();
+        return version != null ? version : "unknown";
+    }
+
+    private static String toFileName(String value) {
+        return value != null ? value.replaceAll("[^A-Za-z0-9._-]", "_") : "";
+    }
+}
@@ -0,0 +1,143 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory copy of the CDS Hooks discovery response. Discovery is resolved
+ * once, indexed by service id with each service's prefetch templates, and then
+ * served to both GET /cds-services and hook invocations until a PlanDefinition
+ * or Library changes.
+ */
+public class DiscoveryCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiscoveryCache.class);
+
+    private static DiscoveryCache instance;
+
+    public static synchronized DiscoveryCache getInstance() {
+        if (instance == null) {
+            instance = new DiscoveryCache();
+        }
+
+        return instance;
+    }
+
+    private static class Discovery {
+        private JsonObject services;
+        private Map<String, JsonObject> servicesById = new LinkedHashMap<>();
+        private Map<String, JsonObject> prefetchById = new LinkedHashMap<>();
+
+        private Discovery(JsonObject services) {
+            this.services = services;
+
+            JsonElement serviceArray = services.get("services");
+            if (serviceArray == null || !serviceArray.isJsonArray()) {
+                return;
+            }
+
+            for (JsonElement element : (JsonArray) serviceArray) {
+                if (!element.isJsonObject() || !element.getAsJsonObject().has("id")) {
+                    continue;
+                }
+
+                JsonObject service = element.getAsJsonObject();
+                String id = service.get("id").getAsString();
+                this.servicesById.put(id, service);
+
+                JsonElement prefetch = service.get("prefetch");
+                if (prefetch != null && prefetch.isJsonObject()) {
+                    this.prefetchById.put(id, prefetch.getAsJsonObject());
+                }
+            }
+        }
+    }
+
+    private volatile Discovery discovery;
+    private long generation = 0;
+    private List<Runnable> invalidationListeners = new CopyOnWriteArrayList<>();
+
+    public JsonObject getServices(Supplier<JsonObject> resolver) {
+        return this.getDiscovery(resolver).services;
+    }
+
+    public JsonObject getService(String id, Supplier<JsonObject> resolver) {
+        return this.getDiscovery(resolver).servicesById.get(id);
+    }
+
+    public JsonObject getPrefetch(String id, Supplier<JsonObject> resolver) {
+        return this.getDiscovery(resolver).prefetchById.get(id);
+    }
+
+    public Set<String> getServiceIds(Supplier<JsonObject> resolver) {
+        return Collections.unmodifiableSet(this.getDiscovery(resolver).servicesById.keySet());
+    }
+
+    /**
+     * Registers a callback that is run whenever discovery is invalidated, for
+     * state derived from the same PlanDefinitions and Libraries.
+     */
+    public void addInvalidationListener(Runnable listener) {
+        this.invalidationListeners.add(listener);
+    }
+
+    /**
+     * Returns the number of invalidations so far, so state derived from discovery
+     * can tell whether it was built before the last one.
+     */
+    public synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    public void invalidate() {
+        logger.debug("Invalidating CDS Hooks discovery");
+        synchronized (this) {
+            this.generation++;
+            this.discovery = null;
+        }
+
+        for (Runnable listener : this.invalidationListeners) {
+            listener.run();
+        }
+    }
+
+    private Discovery getDiscovery(Supplier<JsonObject> resolver) {
+        Discovery current = this.discovery;
+        if (current != null) {
+            return current;
+        }
+
+        long startGeneration;
+        synchronized (this) {
+            if (this.discovery != null) {
+                return this.discovery;
+            }
+
+            startGeneration = this.generation;
+        }
+
+        // Resolution may call back into this server, so it is done outside the lock
+        Discovery resolved = new Discovery(resolver.get());
+
+        synchronized (this) {
+            // Don't publish a result that was resolved before the last invalidation
+            if (this.generation == startGeneration && this.discovery == null) {
+                this.discovery = resolved;
+            }
+        }
+
+        return resolved;
+    }
+}
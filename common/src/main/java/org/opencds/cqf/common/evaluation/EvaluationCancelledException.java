@@ -0,0 +1,18 @@
+package org.opencds.cqf.common.evaluation;
+
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+/**
+ * Thrown by CancellationToken.checkCancelled() once the token is cancelled. It
+ * is a server response exception, so a request whose evaluation is cancelled
+ * (e.g. because its time budget is exhausted) answers 503 Service Unavailable
+ * with the reason, rather than 500.
+ */
+public class EvaluationCancelledException extends UnclassifiedServerFailureException {
+
+    private static final long serialVersionUID = 1L;
+
+    public EvaluationCancelledException(String reason) {
+        super(503, "Evaluation cancelled: " + reason);
+    }
+}
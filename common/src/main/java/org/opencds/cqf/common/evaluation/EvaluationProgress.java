@@ -0,0 +1,47 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the number of patients evaluated by a long running evaluation, along
+ * with the token used to cancel it.
+ *
+ * Thread-safe; shared by all workers of an evaluation.
+ */
+public class EvaluationProgress {
+
+    private AtomicLong evaluated = new AtomicLong();
+    private volatile Long total;
+    private CancellationToken cancellationToken;
+
+    public EvaluationProgress() {
+        this(new CancellationToken());
+    }
+
+    public EvaluationProgress(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    public long getEvaluated() {
+        return this.evaluated.get();
+    }
+
+    /**
+     * Returns the number of patients to evaluate, or null if it is not known.
+     */
+    public Long getTotal() {
+        return this.total;
+    }
+
+    public void setTotal(Long total) {
+        this.total = total;
+    }
+
+    public void patientEvaluated() {
+        this.evaluated.incrementAndGet();
+    }
+
+    public CancellationToken getCancellationToken() {
+        return this.cancellationToken;
+    }
+}
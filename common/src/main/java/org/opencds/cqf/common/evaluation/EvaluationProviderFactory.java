@@ -1,6 +1,9 @@
 package org.opencds.cqf.common.evaluation;
 
+import java.util.function.UnaryOperator;
+
 import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 
 // TODO: This interface is a partial duplicate of the provider factory interface
@@ -12,6 +15,11 @@ public interface EvaluationProviderFactory {
 
     public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider);
 
+    // The retrieveProviderWrapper may decorate the retrieve provider, e.g. to memoize
+    // or prefetch retrieves
+    public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider,
+            UnaryOperator<RetrieveProvider> retrieveProviderWrapper);
+
     public TerminologyProvider createTerminologyProvider(String model, String version, String url, String user,
             String pass);
 }
\ No newline at end of file
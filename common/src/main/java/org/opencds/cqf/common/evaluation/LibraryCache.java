@@ -0,0 +1,142 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Process-wide cache of compiled ELM libraries, keyed by library name, version
+ * and a hash of the library source. Libraries are translated at most once per
+ * source, and may be shared by any number of LibraryLoaders and threads.
+ *
+ * For the Library resources of the server, the cache also remembers the source
+ * each library version was last loaded from (see setCurrent), so a compiled
+ * library is found by name and version without reading its source. Those
+ * entries are dropped with the library when its Library resource is written
+ * (see LibraryCacheInterceptor).
+ */
+public class LibraryCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryCache.class);
+
+    private static LibraryCache instance;
+
+    public static synchronized LibraryCache getInstance() {
+        if (instance == null) {
+            instance = new LibraryCache(HapiProperties.getLibraryCacheMaxSize());
+        }
+
+        return instance;
+    }
+
+    private Cache<String, Library> libraries;
+    private Cache<String, String> current;
+    private AtomicLong generation = new AtomicLong();
+
+    public LibraryCache(long maximumSize) {
+        this.libraries = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+        this.current = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * Returns the hash a library source is cached under.
+     */
+    public static String hash(byte[] content) {
+        return Hashing.sha256().hashBytes(content).toString();
+    }
+
+    public Library get(String name, String version, byte[] content, Callable<Library> loader) {
+        return this.get(name, version, hash(content), loader);
+    }
+
+    /**
+     * Returns the library compiled from the source with the given hash (see
+     * hash()), compiling it with the loader if it is not cached.
+     */
+    public Library get(String name, String version, String hash, Callable<Library> loader) {
+        try {
+            return this.libraries.get(getKey(name, version, hash), loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IllegalArgumentException(
+                    String.format("Errors occurred loading library %s%s: %s", name,
+                            version != null ? ("-" + version) : "", e.getCause().getMessage()),
+                    e.getCause());
+        }
+    }
+
+    public boolean contains(String name, String version, String hash) {
+        return this.libraries.getIfPresent(getKey(name, version, hash)) != null;
+    }
+
+    /**
+     * Records the source with the given hash as the current source of the library
+     * version. Only sources whose changes invalidate the cache may be recorded.
+     */
+    public void setCurrent(String name, String version, String hash) {
+        this.current.put(getVersionKey(name, version), getKey(name, version, hash));
+    }
+
+    /**
+     * Returns the library compiled from the current source of the library
+     * version, or null if it has none or it is no longer cached.
+     */
+    public Library getCurrent(String name, String version) {
+        String key = this.current.getIfPresent(getVersionKey(name, version));
+        return key != null ? this.libraries.getIfPresent(key) : null;
+    }
+
+    public void invalidate(String name) {
+        if (name == null) {
+            this.invalidateAll();
+            return;
+        }
+
+        logger.debug("Invalidating compiled library {}", name);
+        this.generation.incrementAndGet();
+        String prefix = name + "|";
+        this.current.asMap().keySet().removeIf(x -> x.startsWith(prefix));
+        this.libraries.asMap().keySet().removeIf(x -> x.startsWith(prefix));
+    }
+
+    public void invalidateAll() {
+        logger.debug("Invalidating all compiled libraries");
+        this.generation.incrementAndGet();
+        this.current.invalidateAll();
+        this.libraries.invalidateAll();
+    }
+
+    /**
+     * Returns a number that changes whenever a library is invalidated. Caches of
+     * anything compiled against the libraries (e.g. expression libraries) include
+     * it in their keys, so they don't outlive a change to a library.
+     */
+    public long getGeneration() {
+        return this.generation.get();
+    }
+
+    public long size() {
+        return this.libraries.size();
+    }
+
+    private static String getVersionKey(String name, String version) {
+        return name + "|" + (version != null ? version : "");
+    }
+
+    private static String getKey(String name, String version, String hash) {
+        return getVersionKey(name, version) + "|" + hash;
+    }
+}
@@ -1,34 +1,72 @@
 package org.opencds.cqf.common.evaluation;
 
+import static org.opencds.cqf.common.helpers.TranslatorHelper.ELM_JSON_CONTENT_TYPE;
+import static org.opencds.cqf.common.helpers.TranslatorHelper.ELM_XML_CONTENT_TYPE;
 import static org.opencds.cqf.common.helpers.TranslatorHelper.errorsToString;
-import static org.opencds.cqf.common.helpers.TranslatorHelper.getTranslator;
 import static org.opencds.cqf.common.helpers.TranslatorHelper.readLibrary;
+import static org.opencds.cqf.common.helpers.TranslatorHelper.toExecutionLibrary;
 
 import java.io.ByteArrayInputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
-import javax.xml.bind.JAXBException;
-
-import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.apache.commons.io.IOUtils;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
 import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.providers.LibrarySourceProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.LibraryLoader {
 
     private LibraryManager libraryManager;
     private ModelManager modelManager;
-    private Map<String, Library> libraries = new HashMap<>();
+    private LibrarySourceProvider<?, ?> librarySourceProvider;
+    private Map<String, Library> libraries = new ConcurrentHashMap<>();
+    // Sources read while planning a parallel translation, kept until the library
+    // is loaded so they aren't read again
+    private Map<String, LibrarySource> sources = new ConcurrentHashMap<>();
+
+    private static final String[] ELM_CONTENT_TYPES = { ELM_JSON_CONTENT_TYPE, ELM_XML_CONTENT_TYPE };
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryLoader.class);
 
-    // private static final Logger logger =
-    // LoggerFactory.getLogger(LibraryLoader.class);
+    private static ExecutorService translationExecutor;
+
+    // Shared by all loaders, so parallel translation is bounded by
+    // library_loader.translation_threads however many requests translate at once
+    private static synchronized ExecutorService getTranslationExecutor() {
+        if (translationExecutor == null) {
+            translationExecutor = Executors.newFixedThreadPool(
+                    Math.max(1, HapiProperties.getLibraryLoaderTranslationThreads()),
+                    new ThreadFactoryBuilder().setNameFormat("library-translation-%d").setDaemon(true).build());
+        }
+
+        return translationExecutor;
+    }
 
     public Collection<Library> getLibraries() {
         return this.libraries.values();
@@ -43,10 +81,24 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
     }
 
     public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager) {
+        this(libraryManager, modelManager, null);
+    }
+
+    /**
+     * If a librarySourceProvider is given, precompiled ELM content
+     * (application/elm+json or application/elm+xml) on the Library is used in
+     * preference to translating the CQL.
+     */
+    public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager,
+            LibrarySourceProvider<?, ?> librarySourceProvider) {
         this.libraryManager = libraryManager;
         this.modelManager = modelManager;
+        this.librarySourceProvider = librarySourceProvider;
     }
 
+    // The loader is shared by all contexts of a parallel measure evaluation and by
+    // concurrent CDS Hooks requests. Loaded libraries are read without locking; only
+    // loading takes the lock, because the LibraryManager is not thread-safe.
     private Library resolveLibrary(VersionedIdentifier libraryIdentifier) {
         if (libraryIdentifier == null) {
             throw new IllegalArgumentException("Library identifier is null.");
@@ -59,9 +111,16 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
         String mangledId = this.mangleIdentifer(libraryIdentifier);
 
         Library library = libraries.get(mangledId);
-        if (library == null) {
-            library = loadLibrary(libraryIdentifier);
-            libraries.put(mangledId, library);
+        if (library != null) {
+            return library;
+        }
+
+        synchronized (this) {
+            library = libraries.get(mangledId);
+            if (library == null) {
+                library = loadLibrary(libraryIdentifier);
+                libraries.put(mangledId, library);
+            }
         }
 
         return library;
@@ -74,34 +133,298 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
         return version == null ? id : id + "-" + version;
     }
 
+    private static org.hl7.elm.r1.VersionedIdentifier toElmIdentifier(VersionedIdentifier libraryIdentifier) {
+        return new org.hl7.elm.r1.VersionedIdentifier().withId(libraryIdentifier.getId())
+                .withSystem(libraryIdentifier.getSystem()).withVersion(libraryIdentifier.getVersion());
+    }
+
     private Library loadLibrary(VersionedIdentifier libraryIdentifier) {
-        org.hl7.elm.r1.VersionedIdentifier identifier = new org.hl7.elm.r1.VersionedIdentifier()
-                .withId(libraryIdentifier.getId()).withSystem(libraryIdentifier.getSystem())
-                .withVersion(libraryIdentifier.getVersion());
+        org.hl7.elm.r1.VersionedIdentifier identifier = toElmIdentifier(libraryIdentifier);
+
+        // Libraries of the server that are already compiled are found without reading
+        // their source
+        if (this.isTrackedByLibraryCache()) {
+            Library library = LibraryCache.getInstance().getCurrent(identifier.getId(), identifier.getVersion());
+            if (library != null) {
+                return library;
+            }
+        }
+
+        LibrarySource source = this.sources.remove(this.mangleIdentifer(libraryIdentifier));
+        if (source == null || source.generation != LibraryCache.getInstance().getGeneration()) {
+            source = this.readSource(identifier);
+        }
+
+        if (source.content == null) {
+            return translateLibrary(identifier);
+        }
+
+        byte[] content = source.content;
+        if (source.elmContentType != null) {
+            String contentType = source.elmContentType;
+            return this.getCachedLibrary(identifier, source.hash, () -> readLibrary(contentType, content));
+        }
+
+        String hash = source.hash;
+        return this.getCachedLibrary(identifier, hash,
+                () -> CompiledLibraryStore.getInstance().get(identifier.getId(), identifier.getVersion(), hash,
+                        () -> translate(identifier)));
+    }
 
+    // Reads the precompiled ELM of the library if it has any, and its CQL otherwise
+    private LibrarySource readSource(org.hl7.elm.r1.VersionedIdentifier identifier) {
+        long generation = LibraryCache.getInstance().getGeneration();
+        if (this.librarySourceProvider != null) {
+            for (String contentType : ELM_CONTENT_TYPES) {
+                byte[] elm = this.librarySourceProvider.getLibraryContent(identifier, contentType);
+                if (elm != null) {
+                    return new LibrarySource(contentType, elm, generation);
+                }
+            }
+        }
+
+        return new LibrarySource(null, getLibraryContent(identifier), generation);
+    }
+
+    private Library getCachedLibrary(org.hl7.elm.r1.VersionedIdentifier identifier, String hash,
+            Callable<Library> loader) {
+        Library library = LibraryCache.getInstance().get(identifier.getId(), identifier.getVersion(), hash, loader);
+        if (this.isTrackedByLibraryCache()) {
+            LibraryCache.getInstance().setCurrent(identifier.getId(), identifier.getVersion(), hash);
+        }
+
+        return library;
+    }
+
+    private boolean isTrackedByLibraryCache() {
+        return this.librarySourceProvider != null && this.librarySourceProvider.isTrackedByLibraryCache();
+    }
+
+    private byte[] getLibraryContent(org.hl7.elm.r1.VersionedIdentifier identifier) {
+        try (InputStream source = libraryManager.getLibrarySourceLoader().getLibrarySource(identifier)) {
+            return source != null ? IOUtils.toByteArray(source) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Library translateLibrary(org.hl7.elm.r1.VersionedIdentifier identifier) {
+        return toExecutionLibrary(translate(identifier));
+    }
+
+    private org.hl7.elm.r1.Library translate(org.hl7.elm.r1.VersionedIdentifier identifier) {
         ArrayList<CqlTranslatorException> errors = new ArrayList<>();
         org.hl7.elm.r1.Library translatedLibrary = libraryManager.resolveLibrary(identifier, CqlTranslatorOptions.defaultOptions(), errors).getLibrary();
 
         if (CqlTranslatorException.HasErrors(errors)) {
             throw new IllegalArgumentException(errorsToString(errors));
         }
+
+        return translatedLibrary;
+    }
+
+    @Override
+    public Library load(VersionedIdentifier versionedIdentifier) {
+        return resolveLibrary(versionedIdentifier);
+    }
+
+    /**
+     * Loads a library like load(), after translating the libraries it depends on,
+     * with independent libraries translated in parallel. The dependencies function
+     * returns the libraries a library depends on (e.g. the depends-on related
+     * artifacts of its Library resource). Includes it doesn't return are
+     * translated one at a time as usual, so the loaded libraries are the same
+     * either way.
+     *
+     * Libraries are only translated in parallel if
+     * library_loader.parallel_translation is enabled.
+     */
+    public Library loadWithDependencies(VersionedIdentifier libraryIdentifier,
+            Function<VersionedIdentifier, Collection<VersionedIdentifier>> dependencies) {
+        if (HapiProperties.getLibraryLoaderParallelTranslationEnabled()
+                && !this.libraries.containsKey(this.mangleIdentifer(libraryIdentifier))) {
+            this.translateGraph(libraryIdentifier, dependencies);
+        }
+
+        return this.resolveLibrary(libraryIdentifier);
+    }
+
+    // Translates the libraries of the graph that aren't compiled yet, along with
+    // the libraries they depend on, on the translation executor. Each library is
+    // translated on a LibraryManager of its own once the libraries it depends on
+    // are translated, and is given them, so none is translated twice. The
+    // translated libraries are then handed to the LibraryManager of this loader,
+    // so loading them goes through the caches as usual but doesn't translate them
+    // again. Libraries that fail to translate are left to be loaded one at a time,
+    // which reports the errors.
+    private void translateGraph(VersionedIdentifier root,
+            Function<VersionedIdentifier, Collection<VersionedIdentifier>> dependencies) {
+        Map<String, org.hl7.elm.r1.VersionedIdentifier> nodes = new LinkedHashMap<>();
+        Map<String, List<String>> edges = new HashMap<>();
+        this.collectGraph(root, dependencies, nodes, edges, new HashSet<>());
+
+        Set<String> pending = new HashSet<>();
+        for (Map.Entry<String, org.hl7.elm.r1.VersionedIdentifier> node : nodes.entrySet()) {
+            if (!this.libraries.containsKey(node.getKey()) && !this.isCompiled(node.getKey(), node.getValue())) {
+                addWithDependencies(node.getKey(), edges, pending);
+            }
+        }
+
+        if (pending.size() < 2) {
+            return;
+        }
+
+        Map<String, CompletableFuture<Map<String, TranslatedLibrary>>> translations = new HashMap<>();
+        for (String key : pending) {
+            this.translateNode(key, nodes, edges, translations);
+        }
+
         try {
-            CqlTranslator translator = getTranslator("", libraryManager, modelManager);
+            CompletableFuture.allOf(translations.values().toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            logger.debug("Error translating the dependencies of {} in parallel: {}", root.getId(),
+                    e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+        }
 
-            if (translator.getErrors().size() > 0) {
-                throw new IllegalArgumentException(errorsToString(translator.getErrors()));
+        synchronized (this) {
+            for (CompletableFuture<Map<String, TranslatedLibrary>> translation : translations.values()) {
+                if (translation.isDone() && !translation.isCompletedExceptionally()) {
+                    translation.join().forEach(this.libraryManager.getTranslatedLibraries()::putIfAbsent);
+                }
             }
+        }
+    }
 
-            return readLibrary(new ByteArrayInputStream(
-                    translator.convertToXml(translatedLibrary).getBytes(StandardCharsets.UTF_8)));
-        } catch (JAXBException e) {
-            throw new IllegalArgumentException(String.format("Errors occurred translating library %s%s.",
-                    identifier.getId(), identifier.getVersion() != null ? ("-" + identifier.getVersion()) : ""));
+    private void collectGraph(VersionedIdentifier identifier,
+            Function<VersionedIdentifier, Collection<VersionedIdentifier>> dependencies,
+            Map<String, org.hl7.elm.r1.VersionedIdentifier> nodes, Map<String, List<String>> edges,
+            Set<String> visiting) {
+        String key = this.mangleIdentifer(identifier);
+        if (nodes.containsKey(key)) {
+            return;
         }
+
+        nodes.put(key, toElmIdentifier(identifier));
+        visiting.add(key);
+
+        List<String> dependencyKeys = new ArrayList<>();
+        Collection<VersionedIdentifier> identifierDependencies = dependencies.apply(identifier);
+        if (identifierDependencies != null) {
+            for (VersionedIdentifier dependency : identifierDependencies) {
+                String dependencyKey = this.mangleIdentifer(dependency);
+                // A cycle can't be translated in dependency order, so it is left to the
+                // translator to report
+                if (visiting.contains(dependencyKey)) {
+                    continue;
+                }
+
+                this.collectGraph(dependency, dependencies, nodes, edges, visiting);
+                dependencyKeys.add(dependencyKey);
+            }
+        }
+
+        edges.put(key, dependencyKeys);
+        visiting.remove(key);
     }
 
-    @Override
-    public Library load(VersionedIdentifier versionedIdentifier) {
-        return resolveLibrary(versionedIdentifier);
+    private static void addWithDependencies(String key, Map<String, List<String>> edges, Set<String> pending) {
+        if (pending.add(key)) {
+            for (String dependency : edges.get(key)) {
+                addWithDependencies(dependency, edges, pending);
+            }
+        }
+    }
+
+    // Whether loading the library won't translate it: it is already compiled, is
+    // read from precompiled ELM, or has no source. The source read is kept for
+    // loading the library.
+    private boolean isCompiled(String key, org.hl7.elm.r1.VersionedIdentifier identifier) {
+        if (this.isTrackedByLibraryCache()
+                && LibraryCache.getInstance().getCurrent(identifier.getId(), identifier.getVersion()) != null) {
+            return true;
+        }
+
+        LibrarySource source = this.readSource(identifier);
+        this.sources.put(key, source);
+        return source.content == null || source.elmContentType != null
+                || LibraryCache.getInstance().contains(identifier.getId(), identifier.getVersion(), source.hash)
+                || CompiledLibraryStore.getInstance().contains(identifier.getId(), identifier.getVersion(),
+                        source.hash);
+    }
+
+    // Returns the translation of the library, which completes with the library
+    // and everything it depends on, keyed by library name as the LibraryManager
+    // keeps them
+    private CompletableFuture<Map<String, TranslatedLibrary>> translateNode(String key,
+            Map<String, org.hl7.elm.r1.VersionedIdentifier> nodes, Map<String, List<String>> edges,
+            Map<String, CompletableFuture<Map<String, TranslatedLibrary>>> translations) {
+        CompletableFuture<Map<String, TranslatedLibrary>> translation = translations.get(key);
+        if (translation != null) {
+            return translation;
+        }
+
+        List<CompletableFuture<Map<String, TranslatedLibrary>>> dependencies = new ArrayList<>();
+        for (String dependency : edges.get(key)) {
+            dependencies.add(this.translateNode(dependency, nodes, edges, translations));
+        }
+
+        translation = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(x -> {
+                    Map<String, TranslatedLibrary> translated = new HashMap<>();
+                    for (CompletableFuture<Map<String, TranslatedLibrary>> dependency : dependencies) {
+                        translated.putAll(dependency.join());
+                    }
+
+                    TranslatedLibrary library = this.translate(nodes.get(key), translated);
+                    translated.put(library.getIdentifier().getId(), library);
+                    return translated;
+                }, getTranslationExecutor());
+
+        translations.put(key, translation);
+        return translation;
+    }
+
+    private TranslatedLibrary translate(org.hl7.elm.r1.VersionedIdentifier identifier,
+            Map<String, TranslatedLibrary> dependencies) {
+        LibraryManager libraryManager = new LibraryManager(this.modelManager);
+        libraryManager.getLibrarySourceLoader().clearProviders();
+        libraryManager.getLibrarySourceLoader().registerProvider(x -> {
+            // The CQL read while planning the translation isn't read again
+            LibrarySource source = this.sources
+                    .get(x.getVersion() == null ? x.getId() : x.getId() + "-" + x.getVersion());
+            if (source != null && source.elmContentType == null && source.content != null
+                    && source.generation == LibraryCache.getInstance().getGeneration()) {
+                return new ByteArrayInputStream(source.content);
+            }
+
+            return this.libraryManager.getLibrarySourceLoader().getLibrarySource(x);
+        });
+        libraryManager.getTranslatedLibraries().putAll(dependencies);
+
+        ArrayList<CqlTranslatorException> errors = new ArrayList<>();
+        TranslatedLibrary library = libraryManager.resolveLibrary(identifier, CqlTranslatorOptions.defaultOptions(),
+                errors);
+        if (CqlTranslatorException.HasErrors(errors)) {
+            throw new IllegalArgumentException(errorsToString(errors));
+        }
+
+        return library;
+    }
+
+    // The source of a library: its precompiled ELM, its CQL (elmContentType is
+    // null), or nothing (content is null). Read sources are only reused while no
+    // library has been written since, as tracked by the LibraryCache generation.
+    private static class LibrarySource {
+        private final String elmContentType;
+        private final byte[] content;
+        private final String hash;
+        private final long generation;
+
+        LibrarySource(String elmContentType, byte[] content, long generation) {
+            this.elmContentType = elmContentType;
+            this.content = content;
+            this.hash = content != null ? LibraryCache.hash(content) : null;
+            this.generation = generation;
+        }
     }
 }
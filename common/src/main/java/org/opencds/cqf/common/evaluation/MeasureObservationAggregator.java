@@ -0,0 +1,184 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Aggregates the values of a continuous variable measure observation as they
+ * are evaluated, so a population report doesn't have to keep an Observation per
+ * measure population member. Count, sum, min and max are kept as running
+ * values.
+ *
+ * The median is computed from a uniform random sample of at most sampleSize
+ * values, so memory is bounded whatever the size of the population. It is
+ * exact while there are no more than sampleSize values, and an estimate
+ * beyond that. A sampleSize of 0 keeps every value, so the median is always
+ * exact but memory grows with the population
+ * (measure_evaluation.median_sample_size).
+ *
+ * Each value is sampled with a random key, and the values with the smallest
+ * keys are kept, so the samples of two aggregators merge into a uniform sample
+ * of both.
+ *
+ * Not thread-safe. When patients are evaluated in parallel each worker has its
+ * own aggregator, merged once the workers are done.
+ */
+public class MeasureObservationAggregator {
+
+    private long count = 0;
+    private double sum = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    private int sampleSize;
+    // Every value, when the sample is unbounded
+    private double[] values;
+    private int valueCount = 0;
+    // The sampled values, with the largest key first
+    private PriorityQueue<SampledValue> sample;
+
+    public MeasureObservationAggregator(int sampleSize) {
+        this.sampleSize = Math.max(0, sampleSize);
+        if (this.sampleSize == 0) {
+            this.values = new double[16];
+        } else {
+            this.sample = new PriorityQueue<>((x, y) -> Double.compare(y.key, x.key));
+        }
+    }
+
+    public void add(double value) {
+        this.count++;
+        this.sum += value;
+        this.min = Math.min(this.min, value);
+        this.max = Math.max(this.max, value);
+
+        if (this.values != null) {
+            this.addValue(value);
+        } else {
+            this.addSample(new SampledValue(ThreadLocalRandom.current().nextDouble(), value));
+        }
+    }
+
+    public void merge(MeasureObservationAggregator other) {
+        this.count += other.count;
+        this.sum += other.sum;
+        this.min = Math.min(this.min, other.min);
+        this.max = Math.max(this.max, other.max);
+
+        if (this.values != null) {
+            for (double value : other.getSampledValues()) {
+                this.addValue(value);
+            }
+        } else if (other.sample != null) {
+            for (SampledValue sampled : other.sample) {
+                this.addSample(sampled);
+            }
+        } else {
+            for (double value : other.getSampledValues()) {
+                this.addSample(new SampledValue(ThreadLocalRandom.current().nextDouble(), value));
+            }
+        }
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public Double getSum() {
+        return this.count > 0 ? this.sum : null;
+    }
+
+    public Double getMean() {
+        return this.count > 0 ? this.sum / this.count : null;
+    }
+
+    public Double getMin() {
+        return this.count > 0 ? this.min : null;
+    }
+
+    public Double getMax() {
+        return this.count > 0 ? this.max : null;
+    }
+
+    /**
+     * Returns the median, which is an estimate if there are more values than the
+     * sample size (see isMedianExact).
+     */
+    public Double getMedian() {
+        if (this.count == 0) {
+            return null;
+        }
+
+        double[] sorted = this.getSampledValues();
+        Arrays.sort(sorted);
+        int size = sorted.length;
+        return size % 2 == 1 ? sorted[size / 2] : (sorted[size / 2 - 1] + sorted[size / 2]) / 2;
+    }
+
+    public boolean isMedianExact() {
+        return this.values != null || this.count <= this.sampleSize;
+    }
+
+    /**
+     * Returns the aggregate for the given method, using the codes of the
+     * cqfm-aggregateMethod extension (sum, average, median, minimum, maximum,
+     * count). Defaults to average.
+     */
+    public Double getValue(String aggregateMethod) {
+        if (aggregateMethod == null) {
+            return this.getMean();
+        }
+
+        switch (aggregateMethod) {
+            case "sum":
+                return this.getSum();
+            case "median":
+                return this.getMedian();
+            case "minimum":
+                return this.getMin();
+            case "maximum":
+                return this.getMax();
+            case "count":
+                return (double) this.count;
+            case "average":
+            default:
+                return this.getMean();
+        }
+    }
+
+    private void addValue(double value) {
+        if (this.valueCount == this.values.length) {
+            this.values = Arrays.copyOf(this.values, this.values.length * 2);
+        }
+
+        this.values[this.valueCount++] = value;
+    }
+
+    private void addSample(SampledValue sampled) {
+        if (this.sample.size() < this.sampleSize) {
+            this.sample.add(sampled);
+        } else if (sampled.key < this.sample.peek().key) {
+            this.sample.poll();
+            this.sample.add(sampled);
+        }
+    }
+
+    private double[] getSampledValues() {
+        if (this.values != null) {
+            return Arrays.copyOf(this.values, this.valueCount);
+        }
+
+        return this.sample.stream().mapToDouble(x -> x.value).toArray();
+    }
+
+    private static class SampledValue {
+        private final double key;
+        private final double value;
+
+        SampledValue(double key, double value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * The results of one or more searches, one after the other, as a List that is
+ * filled lazily a page at a time as it is read. Each search is executed the
+ * first time its results are reached, and fetched pages are kept, so a result
+ * is fetched at most once however many times it is read, and a consumer that
+ * stops early (e.g. exists or First) only loads the pages it reads. size()
+ * fetches every page.
+ *
+ * Unlike PagedResourceSource, which holds a single page, the list holds every
+ * resource read. Use PagedResourceSource to stream results that are read once
+ * and may be too large to hold, e.g. all the patients of a measure.
+ */
+public class PagedResourceList<T extends IBaseResource> extends AbstractList<T> {
+
+    private List<Supplier<IBundleProvider>> searches;
+    private int pageSize;
+
+    private List<T> resources = new ArrayList<>();
+    private int searchIndex = 0;
+    private IBundleProvider bundleProvider;
+    private Integer searchSize;
+    private int offset;
+
+    public PagedResourceList(List<Supplier<IBundleProvider>> searches, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be greater than zero.");
+        }
+
+        this.searches = searches;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public T get(int index) {
+        if (index < 0 || !this.fetch(index + 1)) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+
+        return this.getFetched(index);
+    }
+
+    @Override
+    public int size() {
+        this.fetch(Integer.MAX_VALUE);
+        return this.getFetchedSize();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !this.fetch(1);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return fetch(this.index + 1);
+            }
+
+            @Override
+            public T next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return getFetched(this.index++);
+            }
+        };
+    }
+
+    private synchronized T getFetched(int index) {
+        return this.resources.get(index);
+    }
+
+    private synchronized int getFetchedSize() {
+        return this.resources.size();
+    }
+
+    // Fetches pages until count resources are held or the searches are exhausted,
+    // and returns whether count resources are held
+    private synchronized boolean fetch(int count) {
+        while (this.resources.size() < count) {
+            if (!this.fetchNextPage()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Returns false once every search is exhausted
+    @SuppressWarnings("unchecked")
+    private boolean fetchNextPage() {
+        if (this.bundleProvider == null) {
+            if (this.searchIndex >= this.searches.size()) {
+                return false;
+            }
+
+            this.bundleProvider = this.searches.get(this.searchIndex++).get();
+            this.searchSize = this.bundleProvider.size();
+            this.offset = 0;
+        }
+
+        int to = this.searchSize != null ? Math.min(this.offset + this.pageSize, this.searchSize)
+                : this.offset + this.pageSize;
+        if (this.offset >= to) {
+            this.bundleProvider = null;
+            return true;
+        }
+
+        List<IBaseResource> page = this.bundleProvider.getResources(this.offset, to);
+        for (IBaseResource resource : page) {
+            this.resources.add((T) resource);
+        }
+
+        // If the total is unknown a short page marks the end of the results
+        if (this.searchSize == null && page.size() < to - this.offset) {
+            this.bundleProvider = null;
+        }
+
+        this.offset = to;
+        return true;
+    }
+}
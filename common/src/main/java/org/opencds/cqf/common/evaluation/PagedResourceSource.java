@@ -0,0 +1,97 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * Iterates the results of a search one page at a time, so that only a single
+ * page of resources is held in memory regardless of the size of the result.
+ * Every call to iterator() gets the search from the supplier and starts a new
+ * cursor; the supplier may execute the search again or return a memoized one.
+ */
+public class PagedResourceSource<T extends IBaseResource> implements Iterable<T> {
+
+    private Supplier<IBundleProvider> search;
+    private int pageSize;
+
+    public PagedResourceSource(Supplier<IBundleProvider> search, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be greater than zero.");
+        }
+
+        this.search = search;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the number of resources in the search result, or null if it is not
+     * known. This gets a search from the supplier, which may execute it.
+     */
+    public Integer size() {
+        return this.search.get().size();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new PageIterator(this.search.get());
+    }
+
+    private class PageIterator implements Iterator<T> {
+        private IBundleProvider bundleProvider;
+        private Integer size;
+        private int offset = 0;
+        private boolean exhausted = false;
+        private List<IBaseResource> page = Collections.emptyList();
+        private int index = 0;
+
+        PageIterator(IBundleProvider bundleProvider) {
+            this.bundleProvider = bundleProvider;
+            this.size = bundleProvider.size();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index >= page.size() && !exhausted) {
+                fetchNextPage();
+            }
+
+            return index < page.size();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return (T) page.get(index++);
+        }
+
+        private void fetchNextPage() {
+            int to = size != null ? Math.min(offset + pageSize, size) : offset + pageSize;
+            if (offset >= to) {
+                exhausted = true;
+                page = Collections.emptyList();
+                return;
+            }
+
+            page = bundleProvider.getResources(offset, to);
+            index = 0;
+
+            // If the total is unknown a short page marks the end of the results
+            if (size == null && page.size() < to - offset) {
+                exhausted = true;
+            }
+
+            offset = to;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+/**
+ * A Context for evaluating the same library for many patients. Expression
+ * results are cached in two tiers: results of definitions that depend on the
+ * patient (see PatientDependencyAnalysis) are dropped whenever the Patient
+ * context value changes, and all other results are kept for the lifetime of the
+ * context.
+ *
+ * The resources a definition retrieves are kept with its result and added to
+ * the evaluated resources again whenever the cached result is used. The
+ * evaluated resources recorded for a population are the same as without the
+ * cache.
+ *
+ * Like Context, an instance is meant to be used by a single thread.
+ */
+public class PatientCachingContext extends Context {
+
+    private PatientDependencyAnalysis analysis;
+    private Map<String, CachedResult> independentResults = new HashMap<>();
+    private Map<String, CachedResult> dependentResults = new HashMap<>();
+    private Object currentPatient;
+    // The definitions being evaluated, innermost first
+    private Deque<Evaluation> evaluations = new ArrayDeque<>();
+
+    public PatientCachingContext(Library library, PatientDependencyAnalysis analysis) {
+        super(library);
+        this.analysis = analysis;
+    }
+
+    @Override
+    public void setContextValue(String context, Object contextValue) {
+        if ("Patient".equals(context) && !Objects.equals(contextValue, this.currentPatient)) {
+            this.currentPatient = contextValue;
+            this.dependentResults.clear();
+            this.evaluations.clear();
+        }
+
+        super.setContextValue(context, contextValue);
+    }
+
+    // A definition that isn't cached is evaluated next, so the evaluated resources
+    // recorded from here on are the ones it retrieves. The engine checks the cache
+    // again before adding the result, which doesn't start another evaluation.
+    @Override
+    public boolean isExpressionInCache(VersionedIdentifier libraryId, String name) {
+        String key = getKey(libraryId, name);
+        boolean cached = this.getResults(libraryId, name).containsKey(key);
+        if (!cached && (this.evaluations.isEmpty() || !this.evaluations.peek().key.equals(key))) {
+            this.evaluations.push(new Evaluation(key, this.getEvaluatedResources().size()));
+        }
+
+        return cached;
+    }
+
+    @Override
+    public Object getExpressionResultFromCache(VersionedIdentifier libraryId, String name) {
+        CachedResult cached = this.getResults(libraryId, name).get(getKey(libraryId, name));
+        if (cached == null) {
+            return null;
+        }
+
+        this.getEvaluatedResources().addAll(cached.evaluatedResources);
+        return cached.value;
+    }
+
+    @Override
+    public void addExpressionToCache(VersionedIdentifier libraryId, String name, Object result) {
+        String key = getKey(libraryId, name);
+        this.getResults(libraryId, name).put(key, new CachedResult(result, this.getEvaluatedResources(key)));
+    }
+
+    /**
+     * Drops the cached results of patient-dependent definitions. This happens
+     * automatically when the Patient context value changes.
+     */
+    public void clearPatientResults() {
+        this.dependentResults.clear();
+        this.evaluations.clear();
+    }
+
+    // Returns the resources recorded since the evaluation of the definition
+    // started. Evaluations left unfinished by an error are dropped on the way.
+    private List<Object> getEvaluatedResources(String key) {
+        while (!this.evaluations.isEmpty()) {
+            Evaluation evaluation = this.evaluations.pop();
+            if (evaluation.key.equals(key)) {
+                List<Object> evaluated = this.getEvaluatedResources();
+                int start = Math.min(evaluation.evaluatedResourceCount, evaluated.size());
+                return start < evaluated.size() ? new ArrayList<>(evaluated.subList(start, evaluated.size()))
+                        : Collections.emptyList();
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    private Map<String, CachedResult> getResults(VersionedIdentifier libraryId, String name) {
+        return this.analysis.isPatientDependent(libraryId, name) ? this.dependentResults : this.independentResults;
+    }
+
+    private static String getKey(VersionedIdentifier libraryId, String name) {
+        return libraryId.getId() + "|" + libraryId.getVersion() + "|" + name;
+    }
+
+    private static class CachedResult {
+        private final Object value;
+        private final List<Object> evaluatedResources;
+
+        CachedResult(Object value, List<Object> evaluatedResources) {
+            this.value = value;
+            this.evaluatedResources = evaluatedResources;
+        }
+    }
+
+    private static class Evaluation {
+        private final String key;
+        private final int evaluatedResourceCount;
+
+        Evaluation(String key, int evaluatedResourceCount) {
+            this.key = key;
+            this.evaluatedResourceCount = evaluatedResourceCount;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+
+/**
+ * Batched prefetch of patient data for population measure evaluation. For each
+ * block of patients, every data type the measure requires is loaded with a
+ * single patient=a,b,c search and partitioned by patient in memory, so the
+ * per-patient retrieves can be served without going back to the database (see
+ * PrefetchRetrieveProvider).
+ *
+ * Data types that can't be searched by patient are not prefetched and are
+ * retrieved as usual. Partitions are shared by all workers of an evaluation and
+ * should be evicted once the patient has been evaluated.
+ */
+public class PatientDataPrefetch {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientDataPrefetch.class);
+
+    private DaoRegistry registry;
+    private ModelResolver modelResolver;
+    private int blockSize;
+    private Map<String, String> contextPaths = new HashMap<>();
+    private Map<String, Map<String, List<IBaseResource>>> partitions = new ConcurrentHashMap<>();
+
+    public PatientDataPrefetch(DaoRegistry registry, FhirContext fhirContext, ModelResolver modelResolver,
+            Collection<String> dataTypes, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be greater than zero.");
+        }
+
+        this.registry = registry;
+        this.modelResolver = modelResolver;
+        this.blockSize = blockSize;
+
+        for (String dataType : new LinkedHashSet<>(dataTypes)) {
+            if (dataType == null || dataType.equals("Patient")) {
+                continue;
+            }
+
+            RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(dataType);
+            Object contextPath = modelResolver.getContextPath("Patient", dataType);
+            if (definition.getSearchParam("patient") == null || contextPath == null) {
+                logger.debug("{} can't be searched by patient and will not be prefetched", dataType);
+                continue;
+            }
+
+            this.contextPaths.put(dataType, contextPath.toString());
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.contextPaths.isEmpty();
+    }
+
+    public boolean covers(String dataType) {
+        return this.contextPaths.containsKey(dataType);
+    }
+
+    /**
+     * Returns the prefetched resources of the given type for the patient, or null
+     * if the patient or data type has not been prefetched.
+     */
+    public List<IBaseResource> getResources(String patientId, String dataType) {
+        Map<String, List<IBaseResource>> partition = this.partitions.get(patientId);
+        if (partition == null || !this.covers(dataType)) {
+            return null;
+        }
+
+        return partition.getOrDefault(dataType, Collections.emptyList());
+    }
+
+    public boolean contains(String patientId) {
+        return this.partitions.containsKey(patientId);
+    }
+
+    public void evict(String patientId) {
+        this.partitions.remove(patientId);
+    }
+
+    public void prefetch(Collection<String> patientIds) {
+        if (patientIds.isEmpty() || this.isEmpty()) {
+            return;
+        }
+
+        Map<String, Map<String, List<IBaseResource>>> block = new HashMap<>();
+        ReferenceOrListParam patients = new ReferenceOrListParam();
+        for (String patientId : patientIds) {
+            block.put(patientId, new HashMap<>());
+            patients.addOr(new ReferenceParam("Patient/" + patientId));
+        }
+
+        for (Map.Entry<String, String> entry : this.contextPaths.entrySet()) {
+            String dataType = entry.getKey();
+            SearchParameterMap map = new SearchParameterMap();
+            map.add("patient", patients);
+
+            Iterable<IBaseResource> resources = new PagedResourceSource<>(
+                    () -> this.registry.getResourceDao(dataType).search(map), HapiProperties.getRetrievePageSize());
+            for (IBaseResource resource : resources) {
+                String patientId = getPatientId(resource, entry.getValue());
+                Map<String, List<IBaseResource>> partition = patientId != null ? block.get(patientId) : null;
+                if (partition != null) {
+                    partition.computeIfAbsent(dataType, x -> new ArrayList<>()).add(resource);
+                }
+            }
+        }
+
+        this.partitions.putAll(block);
+    }
+
+    /**
+     * Wraps the patient iterator so that each block of patients is prefetched
+     * before the first patient of the block is returned. The iterator is not
+     * thread-safe; concurrent callers must synchronize on it.
+     */
+    public <T extends IBaseResource> Iterator<T> prefetching(Iterator<T> patients) {
+        return new Iterator<T>() {
+            private Iterator<T> block = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                if (!block.hasNext() && patients.hasNext()) {
+                    List<T> next = new ArrayList<>();
+                    Set<String> ids = new LinkedHashSet<>();
+                    while (patients.hasNext() && next.size() < blockSize) {
+                        T patient = patients.next();
+                        next.add(patient);
+                        ids.add(patient.getIdElement().getIdPart());
+                    }
+
+                    prefetch(ids);
+                    block = next.iterator();
+                }
+
+                return block.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return block.next();
+            }
+        };
+    }
+
+    private String getPatientId(IBaseResource resource, String contextPath) {
+        Object value = this.modelResolver.resolvePath(resource, contextPath);
+        if (value instanceof Iterable) {
+            Iterator<?> values = ((Iterable<?>) value).iterator();
+            value = values.hasNext() ? values.next() : null;
+        }
+
+        String reference = null;
+        if (value instanceof IBaseReference) {
+            reference = ((IBaseReference) value).getReferenceElement().getIdPart();
+        } else if (value instanceof IPrimitiveType) {
+            reference = ((IPrimitiveType<?>) value).getValueAsString();
+        } else if (value instanceof String) {
+            reference = (String) value;
+        }
+
+        if (reference != null && reference.contains("/")) {
+            reference = reference.substring(reference.lastIndexOf('/') + 1);
+        }
+
+        return reference;
+    }
+}
@@ -0,0 +1,187 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cqframework.cql.elm.execution.Element;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.ExpressionRef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.FunctionRef;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+
+/**
+ * Classifies the expression definitions of a library (and the libraries it
+ * includes) as dependent on the patient being evaluated or not.
+ *
+ * A definition depends on the patient if it is in the Patient context and its
+ * expression contains a retrieve, or references a definition or function that
+ * depends on the patient. Everything else (parameters, codes and value sets,
+ * Unfiltered/Population context definitions, intervals computed from the
+ * measurement period, ...) gives the same result for every patient, so its
+ * result can be kept for a whole evaluation (see PatientCachingContext).
+ *
+ * Results are memoized and the analysis may be shared by concurrent contexts.
+ */
+public class PatientDependencyAnalysis {
+
+    private static final Map<Class<?>, List<Method>> childAccessors = new ConcurrentHashMap<>();
+
+    private LibraryLoader libraryLoader;
+    private Map<String, Boolean> dependencies = new ConcurrentHashMap<>();
+
+    public PatientDependencyAnalysis(LibraryLoader libraryLoader) {
+        this.libraryLoader = libraryLoader;
+    }
+
+    public boolean isPatientDependent(VersionedIdentifier libraryId, String name) {
+        Boolean dependent = this.dependencies.get(getKey(libraryId, name));
+        if (dependent != null) {
+            return dependent;
+        }
+
+        synchronized (this) {
+            return this.analyze(this.libraryLoader.load(libraryId), name, new HashSet<>());
+        }
+    }
+
+    private boolean analyze(Library library, String name, Set<String> inProgress) {
+        String key = getKey(library.getIdentifier(), name);
+        Boolean dependent = this.dependencies.get(key);
+        if (dependent != null) {
+            return dependent;
+        }
+
+        // A recursive reference doesn't make a definition dependent by itself
+        if (!inProgress.add(key)) {
+            return false;
+        }
+
+        dependent = false;
+        boolean found = false;
+        if (library.getStatements() != null) {
+            for (ExpressionDef def : library.getStatements().getDef()) {
+                if (def.getName().equals(name)) {
+                    found = true;
+                    dependent = isPatientContext(def) && this.isPatientDependent(library, def.getExpression(),
+                            inProgress);
+                    // For functions, any overload that depends on the patient makes the name
+                    // dependent
+                    if (dependent) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Anything that can't be resolved is assumed to depend on the patient
+        if (!found) {
+            dependent = true;
+        }
+
+        inProgress.remove(key);
+        this.dependencies.put(key, dependent);
+        return dependent;
+    }
+
+    private boolean isPatientDependent(Library library, Element element, Set<String> inProgress) {
+        if (element == null) {
+            return false;
+        }
+
+        if (element instanceof Retrieve) {
+            return true;
+        }
+
+        if (element instanceof ExpressionRef) {
+            ExpressionRef ref = (ExpressionRef) element;
+            Library refLibrary = ref.getLibraryName() == null ? library
+                    : this.resolveInclude(library, ref.getLibraryName());
+            if (refLibrary == null || this.analyze(refLibrary, ref.getName(), inProgress)) {
+                return true;
+            }
+
+            // The operands of a function reference are evaluated in the caller
+            if (!(element instanceof FunctionRef)) {
+                return false;
+            }
+        }
+
+        for (Method accessor : getChildAccessors(element.getClass())) {
+            Object child;
+            try {
+                child = accessor.invoke(element);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                return true;
+            }
+
+            if (child instanceof Element) {
+                if (this.isPatientDependent(library, (Element) child, inProgress)) {
+                    return true;
+                }
+            } else if (child instanceof List) {
+                for (Object item : (List<?>) child) {
+                    if (item instanceof Element && this.isPatientDependent(library, (Element) item, inProgress)) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private Library resolveInclude(Library library, String localIdentifier) {
+        if (library.getIncludes() == null) {
+            return null;
+        }
+
+        for (IncludeDef include : library.getIncludes().getDef()) {
+            if (include.getLocalIdentifier().equals(localIdentifier)) {
+                return this.libraryLoader
+                        .load(new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion()));
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isPatientContext(ExpressionDef def) {
+        // Functions are evaluated in the context of the caller
+        return def instanceof FunctionDef || def.getContext() == null || def.getContext().equals("Patient");
+    }
+
+    // The ELM execution model has no visitor, so the children of an element are
+    // found through its getters once per class
+    private static List<Method> getChildAccessors(Class<?> type) {
+        return childAccessors.computeIfAbsent(type, x -> {
+            List<Method> accessors = new ArrayList<>();
+            for (Method method : x.getMethods()) {
+                if (method.getName().startsWith("get") && method.getParameterCount() == 0
+                        && !Modifier.isStatic(method.getModifiers())
+                        && (Element.class.isAssignableFrom(method.getReturnType())
+                                || List.class.isAssignableFrom(method.getReturnType()))) {
+                    accessors.add(method);
+                }
+            }
+
+            return Collections.unmodifiableList(accessors);
+        });
+    }
+
+    private static String getKey(VersionedIdentifier libraryId, String name) {
+        return libraryId.getId() + "|" + libraryId.getVersion() + "|" + name;
+    }
+}
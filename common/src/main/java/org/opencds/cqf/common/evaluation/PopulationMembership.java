@@ -0,0 +1,67 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Membership of a measure population. Members are the resources returned by
+ * the population criteria: when a member is the subject itself (e.g. a boolean
+ * criteria) it is tracked by the subject's ordinal in a bitset, otherwise by
+ * resource id. The subjects of the population (used for subject lists) are
+ * tracked separately, also by ordinal.
+ *
+ * Not thread-safe. When patients are evaluated in parallel each worker has its
+ * own membership, merged once the workers are done.
+ */
+public class PopulationMembership {
+
+    private BitSet subjectMembers = new BitSet();
+    private Set<String> resourceMembers = new HashSet<>();
+    private BitSet subjects = new BitSet();
+
+    public void addSubjectMember(int subject) {
+        this.subjectMembers.set(subject);
+    }
+
+    public void removeSubjectMember(int subject) {
+        this.subjectMembers.clear(subject);
+    }
+
+    public void addResourceMember(String id) {
+        this.resourceMembers.add(id);
+    }
+
+    public void removeResourceMember(String id) {
+        this.resourceMembers.remove(id);
+    }
+
+    public int getMemberCount() {
+        return this.subjectMembers.cardinality() + this.resourceMembers.size();
+    }
+
+    public void addSubject(int subject) {
+        this.subjects.set(subject);
+    }
+
+    public void removeSubject(int subject) {
+        this.subjects.clear(subject);
+    }
+
+    public int getSubjectCount() {
+        return this.subjects.cardinality();
+    }
+
+    /**
+     * Returns the ordinals of the subjects in the population, in evaluation order.
+     */
+    public int[] getSubjects() {
+        return this.subjects.stream().toArray();
+    }
+
+    public void merge(PopulationMembership other) {
+        this.subjectMembers.or(other.subjectMembers);
+        this.resourceMembers.addAll(other.resourceMembers);
+        this.subjects.or(other.subjects);
+    }
+}
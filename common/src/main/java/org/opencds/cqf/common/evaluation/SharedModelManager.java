@@ -0,0 +1,76 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.Model;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide ModelManager shared by all library loaders and translators, so
+ * that each ModelInfo is only parsed once. The models are kept in the (not
+ * thread-safe) maps of ModelManager, so every method that resolves or reads
+ * models is synchronized. Once a model is loaded it is never replaced, and
+ * getModels() returns a read-only snapshot.
+ */
+public class SharedModelManager extends ModelManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedModelManager.class);
+
+    private static SharedModelManager instance;
+
+    public static synchronized SharedModelManager getInstance() {
+        if (instance == null) {
+            instance = new SharedModelManager();
+        }
+
+        return instance;
+    }
+
+    private SharedModelManager() {
+        super();
+    }
+
+    @Override
+    public synchronized Map<String, Model> getModels() {
+        return Collections.unmodifiableMap(new HashMap<>(super.getModels()));
+    }
+
+    @Override
+    public synchronized Model resolveModel(String modelName) {
+        return super.resolveModel(modelName);
+    }
+
+    @Override
+    public synchronized Model resolveModel(String modelName, String version) {
+        return super.resolveModel(modelName, version);
+    }
+
+    @Override
+    public synchronized Model resolveModel(VersionedIdentifier modelIdentifier) {
+        return super.resolveModel(modelIdentifier);
+    }
+
+    @Override
+    public synchronized Model resolveModelByUri(String namespaceUri) {
+        return super.resolveModelByUri(namespaceUri);
+    }
+
+    /**
+     * Loads the given model versions ahead of the first request that uses them.
+     * Models that cannot be loaded are logged and skipped.
+     */
+    public void preload(String modelName, String... versions) {
+        for (String version : versions) {
+            try {
+                this.resolveModel(new VersionedIdentifier().withId(modelName).withVersion(version));
+            } catch (Exception e) {
+                logger.warn(String.format("Unable to preload model %s-%s", modelName, version), e);
+            }
+        }
+    }
+}
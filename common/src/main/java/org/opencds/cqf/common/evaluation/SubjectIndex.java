@@ -0,0 +1,42 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assigns dense ordinals to the subjects of a measure evaluation in the order
+ * they are evaluated, so population membership can be kept in bitsets (see
+ * PopulationMembership) and only the subject ids and display names need to be
+ * retained. Shared by all workers of an evaluation.
+ */
+public class SubjectIndex {
+
+    private List<String> ids = new ArrayList<>();
+    private List<String> displays = new ArrayList<>();
+
+    public synchronized int add(String id) {
+        return this.add(id, null);
+    }
+
+    /**
+     * @param display the display name of the subject, e.g. for subject lists, or
+     *                null
+     */
+    public synchronized int add(String id, String display) {
+        this.ids.add(id);
+        this.displays.add(display);
+        return this.ids.size() - 1;
+    }
+
+    public synchronized String getId(int ordinal) {
+        return this.ids.get(ordinal);
+    }
+
+    public synchronized String getDisplay(int ordinal) {
+        return this.displays.get(ordinal);
+    }
+
+    public synchronized int size() {
+        return this.ids.size();
+    }
+}
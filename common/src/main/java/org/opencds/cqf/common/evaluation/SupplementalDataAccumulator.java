@@ -0,0 +1,108 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * Counts the values of a measure's supplemental data elements. Each value is
+ * counted against the full coding (system, code and display) captured when the
+ * patient is evaluated, so the report can be built in a single pass over the
+ * accumulated counts.
+ *
+ * Not thread-safe. When patients are evaluated in parallel each worker has its
+ * own accumulator, merged once the workers are done.
+ */
+public class SupplementalDataAccumulator {
+
+    public static class CodingCount {
+        private String system;
+        private String code;
+        private String display;
+        private int count;
+
+        private CodingCount(String system, String code, String display) {
+            this.system = system;
+            this.code = code;
+            this.display = display;
+        }
+
+        public String getSystem() {
+            return this.system;
+        }
+
+        public String getCode() {
+            return this.code;
+        }
+
+        public String getDisplay() {
+            return this.display;
+        }
+
+        public int getCount() {
+            return this.count;
+        }
+    }
+
+    private Map<String, Map<String, CodingCount>> accumulators = new LinkedHashMap<>();
+
+    /**
+     * Counts the result of a supplemental data element expression. Codes and
+     * codings are counted; for a list, its first element is. Anything else (or a
+     * value without a code) is ignored.
+     */
+    public void add(String sdeKey, Object value) {
+        if (value instanceof Iterable) {
+            Iterator<?> values = ((Iterable<?>) value).iterator();
+            value = values.hasNext() ? values.next() : null;
+        }
+
+        if (value instanceof Code) {
+            Code code = (Code) value;
+            this.add(sdeKey, code.getSystem(), code.getCode(), code.getDisplay(), 1);
+        } else if (value instanceof IBaseCoding) {
+            IBaseCoding coding = (IBaseCoding) value;
+            this.add(sdeKey, coding.getSystem(), coding.getCode(), coding.getDisplay(), 1);
+        }
+    }
+
+    private void add(String sdeKey, String system, String code, String display, int count) {
+        if (code == null) {
+            return;
+        }
+
+        Map<String, CodingCount> counts = this.accumulators.computeIfAbsent(sdeKey, x -> new LinkedHashMap<>());
+        String key = system != null ? system + "|" + code : code;
+        CodingCount codingCount = counts.get(key);
+        if (codingCount == null) {
+            codingCount = new CodingCount(system, code, display);
+            counts.put(key, codingCount);
+        }
+
+        codingCount.count += count;
+    }
+
+    public void merge(SupplementalDataAccumulator other) {
+        other.accumulators.forEach((sdeKey, counts) -> counts.values()
+                .forEach(x -> this.add(sdeKey, x.system, x.code, x.display, x.count)));
+    }
+
+    public boolean isEmpty() {
+        return this.accumulators.isEmpty();
+    }
+
+    /**
+     * Returns the counted codings by supplemental data element key, in the order
+     * they were first seen.
+     */
+    public Map<String, Collection<CodingCount>> getCounts() {
+        Map<String, Collection<CodingCount>> counts = new LinkedHashMap<>();
+        this.accumulators.forEach((sdeKey, codings) -> counts.put(sdeKey, codings.values()));
+        return Collections.unmodifiableMap(counts);
+    }
+}
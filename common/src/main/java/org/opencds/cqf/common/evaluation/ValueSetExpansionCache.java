@@ -0,0 +1,212 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Bounded cache of value set expansions shared by every TerminologyProvider the
+ * server hands out. The cache is bounded both by the total number of codes held
+ * and by the number of expansions, and entries expire after a configurable
+ * time, set separately for the local and remote caches. Expansions are stored as immutable lists so
+ * they may be shared by any number of threads. An expansion that was in
+ * progress when the cache was invalidated is returned to its caller but not
+ * kept.
+ *
+ * Membership tests are answered from the cached expansion: the first test
+ * against an expansion indexes its codes into a hash set that is kept, and
+ * evicted, with the expansion. The cache statistics are logged every
+ * terminology.expansion_cache.stats_log_minutes.
+ */
+public class ValueSetExpansionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValueSetExpansionCache.class);
+
+    private static ValueSetExpansionCache localInstance;
+    private static ValueSetExpansionCache remoteInstance;
+
+    public static synchronized ValueSetExpansionCache getLocalInstance() {
+        if (localInstance == null) {
+            localInstance = new ValueSetExpansionCache(HapiProperties.getValueSetExpansionCacheMaxEntries(),
+                    HapiProperties.getValueSetExpansionCacheMaxCodes(),
+                    HapiProperties.getValueSetExpansionCacheLocalTtlMinutes());
+            localInstance.logStats("local", HapiProperties.getValueSetExpansionCacheStatsLogMinutes());
+        }
+
+        return localInstance;
+    }
+
+    public static synchronized ValueSetExpansionCache getRemoteInstance() {
+        if (remoteInstance == null) {
+            remoteInstance = new ValueSetExpansionCache(HapiProperties.getValueSetExpansionCacheMaxEntries(),
+                    HapiProperties.getValueSetExpansionCacheMaxCodes(),
+                    HapiProperties.getValueSetExpansionCacheRemoteTtlMinutes());
+            remoteInstance.logStats("remote", HapiProperties.getValueSetExpansionCacheStatsLogMinutes());
+        }
+
+        return remoteInstance;
+    }
+
+    private Cache<String, Expansion> expansions;
+    private AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param maximumEntries maximum number of expansions held
+     * @param maximumCodes   maximum number of codes held across all expansions
+     * @param ttlMinutes     minutes after which an expansion is refetched, or 0 to
+     *                       keep expansions until they are evicted or invalidated
+     */
+    public ValueSetExpansionCache(long maximumEntries, long maximumCodes, long ttlMinutes) {
+        // Guava can't bound a cache by both size and weight, so each expansion is
+        // charged at least maximumCodes / maximumEntries codes. That keeps the total
+        // number of codes under maximumCodes and the number of entries under
+        // maximumEntries.
+        int minimumWeight = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maximumCodes / Math.max(1, maximumEntries)));
+
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumWeight(maximumCodes)
+                .recordStats();
+        if (ttlMinutes > 0) {
+            builder.expireAfterWrite(ttlMinutes, TimeUnit.MINUTES);
+        }
+
+        this.expansions = builder
+                .weigher((String key, Expansion expansion) -> Math.max(minimumWeight, expansion.codes.size()))
+                .build();
+    }
+
+    public Iterable<Code> get(String source, ValueSetInfo valueSet, Callable<Iterable<Code>> expand) {
+        return this.getExpansion(source, valueSet, expand).codes;
+    }
+
+    /**
+     * Returns whether the code is in the expansion of the value set, expanding it
+     * with expand if it is not cached.
+     */
+    public boolean contains(String source, ValueSetInfo valueSet, Code code, Callable<Iterable<Code>> expand) {
+        if (code == null || code.getCode() == null) {
+            return false;
+        }
+
+        return ValueSetIndex.contains(this.getExpansion(source, valueSet, expand).getMembers(), code);
+    }
+
+    private Expansion getExpansion(String source, ValueSetInfo valueSet, Callable<Iterable<Code>> expand) {
+        try {
+            String key = getKey(source, valueSet);
+            Expansion expansion = this.expansions.get(key, () -> {
+                logger.debug("Expanding value set {} from {}", valueSet.getId(), source);
+                long startGeneration = this.generation.get();
+                Iterable<Code> codes = expand.call();
+                return new Expansion(codes != null ? ImmutableList.copyOf(codes) : ImmutableList.of(),
+                        startGeneration);
+            });
+
+            // Invalidating the cache doesn't stop an expansion in progress, which may
+            // have read the previous ValueSets
+            if (expansion.generation != this.generation.get()) {
+                this.expansions.asMap().remove(key, expansion);
+            }
+
+            return expansion;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // ValueSets may include other ValueSets, so any change invalidates every
+    // expansion
+    public void invalidateAll() {
+        logger.debug("Invalidating all value set expansions");
+        this.generation.incrementAndGet();
+        this.expansions.invalidateAll();
+    }
+
+    public long size() {
+        return this.expansions.size();
+    }
+
+    public CacheStats getStats() {
+        return this.expansions.stats();
+    }
+
+    /**
+     * Logs the statistics of the cache every intervalMinutes, or never if it is
+     * not positive.
+     */
+    public void logStats(String name, long intervalMinutes) {
+        if (intervalMinutes <= 0) {
+            return;
+        }
+
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("valueset-expansion-cache-stats").setDaemon(true).build())
+                .scheduleAtFixedRate(() -> {
+                    CacheStats stats = this.getStats();
+                    logger.info(
+                            "Value set expansion cache ({}): {} expansions, {} hits, {} misses, hit rate {}, {} failed expansions, average expansion {} ms, {} evictions",
+                            name, this.size(), stats.hitCount(), stats.missCount(),
+                            String.format("%.2f", stats.hitRate()), stats.loadExceptionCount(),
+                            TimeUnit.NANOSECONDS.toMillis((long) stats.averageLoadPenalty()), stats.evictionCount());
+                }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    private String getKey(String source, ValueSetInfo valueSet) {
+        StringBuilder key = new StringBuilder();
+        key.append(source != null ? source : "").append("|").append(valueSet.getId()).append("|")
+                .append(valueSet.getVersion() != null ? valueSet.getVersion() : "");
+
+        if (valueSet.getCodeSystems() != null) {
+            for (CodeSystemInfo codeSystem : valueSet.getCodeSystems()) {
+                key.append("|").append(codeSystem.getId()).append(":")
+                        .append(codeSystem.getVersion() != null ? codeSystem.getVersion() : "");
+            }
+        }
+
+        return key.toString();
+    }
+
+    private static class Expansion {
+        private final List<Code> codes;
+        private final long generation;
+        private volatile Set<String> members;
+
+        Expansion(List<Code> codes, long generation) {
+            this.codes = codes;
+            this.generation = generation;
+        }
+
+        // Threads racing to index an expansion build equal sets, so the index is
+        // built without a lock
+        Set<String> getMembers() {
+            Set<String> members = this.members;
+            if (members == null) {
+                members = ValueSetIndex.build(this.codes);
+                this.members = members;
+            }
+
+            return members;
+        }
+    }
+}
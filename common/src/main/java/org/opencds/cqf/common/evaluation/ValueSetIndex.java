@@ -0,0 +1,76 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Membership index for value sets. Each value set is expanded once into an
+ * immutable hash set of system|code keys, so membership tests are a single hash
+ * lookup that does not take a lock once the index for the value set is built.
+ */
+public class ValueSetIndex {
+
+    private Cache<String, Set<String>> index;
+
+    public ValueSetIndex(long maximumSize) {
+        this.index = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    public boolean contains(ValueSetInfo valueSet, Code code, Callable<Iterable<Code>> expand) {
+        if (code == null || code.getCode() == null) {
+            return false;
+        }
+
+        Set<String> codes;
+        try {
+            codes = this.index.get(getKey(valueSet), () -> build(expand.call()));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new RuntimeException(e.getCause());
+        }
+
+        return contains(codes, code);
+    }
+
+    // ValueSets may include other ValueSets, so any change invalidates the whole
+    // index
+    public void invalidateAll() {
+        this.index.invalidateAll();
+    }
+
+    // Also used by ValueSetExpansionCache, which indexes the expansions it holds
+    static Set<String> build(Iterable<Code> codes) {
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (Code code : codes) {
+            if (code != null && code.getCode() != null) {
+                builder.add(getCodeKey(code.getSystem(), code.getCode()));
+            }
+        }
+
+        return builder.build();
+    }
+
+    static boolean contains(Set<String> codes, Code code) {
+        return code != null && code.getCode() != null && codes.contains(getCodeKey(code.getSystem(), code.getCode()));
+    }
+
+    private String getKey(ValueSetInfo valueSet) {
+        return valueSet.getId() + "|" + (valueSet.getVersion() != null ? valueSet.getVersion() : "");
+    }
+
+    private static String getCodeKey(String system, String code) {
+        return (system != null ? system : "") + "|" + code;
+    }
+}
@@ -0,0 +1,266 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.cqframework.cql.elm.execution.CodeSystemDef;
+import org.cqframework.cql.elm.execution.CodeSystemRef;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Compiles the libraries used by the knowledge artifacts of the server (e.g.
+ * Measures and PlanDefinitions), including everything they include, into the
+ * shared LibraryCache, and expands the value sets those libraries reference
+ * through the terminology provider, so the first evaluations after a restart
+ * don't pay for translation and expansion.
+ *
+ * Warm-up runs in the background, with artifacts warmed in parallel on a fixed
+ * number of threads. Errors are logged and counted, and don't stop the warm-up.
+ */
+public class Warmup {
+
+    private static final Logger logger = LoggerFactory.getLogger(Warmup.class);
+
+    public enum Status {
+        NOT_STARTED, RUNNING, COMPLETE
+    }
+
+    private int threads;
+    private Supplier<LibraryLoader> libraryLoaders;
+    private TerminologyProvider terminologyProvider;
+
+    private volatile Status status = Status.NOT_STARTED;
+    private volatile Integer artifactTotal;
+    private AtomicInteger artifactsWarmed = new AtomicInteger();
+    private Set<String> libraries = ConcurrentHashMap.newKeySet();
+    private Set<String> valueSets = ConcurrentHashMap.newKeySet();
+    private AtomicInteger valueSetsExpanded = new AtomicInteger();
+    private AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * @param threads             number of artifacts warmed in parallel
+     * @param libraryLoaders      creates a LibraryLoader; each thread uses its own
+     *                            because loading a library takes the loader's lock
+     * @param terminologyProvider the (caching) provider value sets are expanded
+     *                            with
+     */
+    public Warmup(int threads, Supplier<LibraryLoader> libraryLoaders, TerminologyProvider terminologyProvider) {
+        this.threads = Math.max(1, threads);
+        this.libraryLoaders = libraryLoaders;
+        this.terminologyProvider = terminologyProvider;
+    }
+
+    /**
+     * Starts warming up the artifacts in the background. The libraries function
+     * returns the identifiers of the libraries an artifact uses; it is called on
+     * the warm-up threads. Only the first call starts a warm-up.
+     */
+    public synchronized void start(Iterable<? extends IBaseResource> artifacts,
+            Function<IBaseResource, List<VersionedIdentifier>> libraries) {
+        if (this.status != Status.NOT_STARTED) {
+            return;
+        }
+
+        this.status = Status.RUNNING;
+        new ThreadFactoryBuilder().setNameFormat("warmup").setDaemon(true).build()
+                .newThread(() -> this.run(artifacts, libraries)).start();
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    public boolean isComplete() {
+        return this.status == Status.COMPLETE;
+    }
+
+    /**
+     * Returns the number of artifacts to warm up, or null while they are still
+     * being listed.
+     */
+    public Integer getArtifactTotal() {
+        return this.artifactTotal;
+    }
+
+    public int getArtifactsWarmed() {
+        return this.artifactsWarmed.get();
+    }
+
+    public int getLibrariesCompiled() {
+        return this.libraries.size();
+    }
+
+    public int getValueSetsExpanded() {
+        return this.valueSetsExpanded.get();
+    }
+
+    public int getFailures() {
+        return this.failures.get();
+    }
+
+    public String getProgress() {
+        Integer total = this.artifactTotal;
+        return String.format("%d of %s artifacts warmed up, %d libraries compiled, %d value sets expanded, %d failures",
+                this.getArtifactsWarmed(), total != null ? total.toString() : "?", this.getLibrariesCompiled(),
+                this.getValueSetsExpanded(), this.getFailures());
+    }
+
+    private void run(Iterable<? extends IBaseResource> artifacts,
+            Function<IBaseResource, List<VersionedIdentifier>> libraries) {
+        long start = System.currentTimeMillis();
+        logger.info("Starting warm-up on {} threads", this.threads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads,
+                new ThreadFactoryBuilder().setNameFormat("warmup-%d").setDaemon(true).build());
+        int total = 0;
+        try {
+            for (IBaseResource artifact : artifacts) {
+                executor.execute(() -> this.warm(artifact, libraries));
+                total++;
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error listing the artifacts to warm up", e);
+            this.failures.incrementAndGet();
+        } finally {
+            this.artifactTotal = total;
+            executor.shutdown();
+        }
+
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        this.status = Status.COMPLETE;
+        logger.info("Warm-up complete in {} ms: {}", System.currentTimeMillis() - start, this.getProgress());
+    }
+
+    private void warm(IBaseResource artifact, Function<IBaseResource, List<VersionedIdentifier>> libraries) {
+        try {
+            // Libraries shared by several artifacts are found in the LibraryCache, so
+            // they are only translated once
+            LibraryLoader libraryLoader = this.libraryLoaders.get();
+            Set<String> loaded = new HashSet<>();
+            for (VersionedIdentifier identifier : libraries.apply(artifact)) {
+                this.warmLibrary(libraryLoader, identifier, loaded);
+            }
+        } catch (Exception e) {
+            logger.warn("Error warming up {}: {}", artifact.getIdElement().toUnqualifiedVersionless().getValue(),
+                    e.getMessage());
+            this.failures.incrementAndGet();
+        } finally {
+            this.artifactsWarmed.incrementAndGet();
+        }
+    }
+
+    private void warmLibrary(LibraryLoader libraryLoader, VersionedIdentifier identifier, Set<String> loaded) {
+        String key = identifier.getId() + (identifier.getVersion() != null ? "-" + identifier.getVersion() : "");
+        if (!loaded.add(key)) {
+            return;
+        }
+
+        Library library = libraryLoader.load(identifier);
+        this.libraries.add(key);
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                this.warmLibrary(libraryLoader,
+                        new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion()), loaded);
+            }
+        }
+
+        if (library.getValueSets() != null) {
+            for (ValueSetDef valueSetDef : library.getValueSets().getDef()) {
+                this.warmValueSet(library, valueSetDef);
+            }
+        }
+    }
+
+    private void warmValueSet(Library library, ValueSetDef valueSetDef) {
+        ValueSetInfo valueSet = toValueSetInfo(library, valueSetDef);
+        if (valueSet == null || !this.valueSets.add(getKey(valueSet))) {
+            return;
+        }
+
+        try {
+            Iterable<Code> codes = this.terminologyProvider.expand(valueSet);
+
+            // Checking the membership of a code builds the membership index of the
+            // value set
+            Iterator<Code> iterator = codes.iterator();
+            if (iterator.hasNext()) {
+                this.terminologyProvider.in(iterator.next(), valueSet);
+            }
+
+            this.valueSetsExpanded.incrementAndGet();
+        } catch (Exception e) {
+            logger.warn("Error expanding value set {}: {}", valueSet.getId(), e.getMessage());
+            this.failures.incrementAndGet();
+        }
+    }
+
+    // Builds the ValueSetInfo the engine builds when evaluating a reference to the
+    // value set, so the expansion is cached under the same key. Returns null if a
+    // code system of the value set is defined in another library.
+    private static ValueSetInfo toValueSetInfo(Library library, ValueSetDef valueSetDef) {
+        ValueSetInfo valueSet = new ValueSetInfo().withId(valueSetDef.getId()).withVersion(valueSetDef.getVersion());
+        if (valueSetDef.getCodeSystem() != null) {
+            for (CodeSystemRef codeSystemRef : valueSetDef.getCodeSystem()) {
+                CodeSystemDef codeSystemDef = findCodeSystem(library, codeSystemRef);
+                if (codeSystemDef == null) {
+                    return null;
+                }
+
+                valueSet.withCodeSystem(
+                        new CodeSystemInfo().withId(codeSystemDef.getId()).withVersion(codeSystemDef.getVersion()));
+            }
+        }
+
+        return valueSet;
+    }
+
+    private static CodeSystemDef findCodeSystem(Library library, CodeSystemRef codeSystemRef) {
+        if (codeSystemRef.getLibraryName() != null || library.getCodeSystems() == null) {
+            return null;
+        }
+
+        return library.getCodeSystems().getDef().stream().filter(x -> x.getName().equals(codeSystemRef.getName()))
+                .findFirst().orElse(null);
+    }
+
+    private static String getKey(ValueSetInfo valueSet) {
+        StringBuilder key = new StringBuilder(valueSet.getId()).append("|")
+                .append(valueSet.getVersion() != null ? valueSet.getVersion() : "");
+        if (valueSet.getCodeSystems() != null) {
+            for (CodeSystemInfo codeSystem : valueSet.getCodeSystems()) {
+                key.append("|").append(codeSystem.getId()).append(":")
+                        .append(codeSystem.getVersion() != null ? codeSystem.getVersion() : "");
+            }
+        }
+
+        return key.toString();
+    }
+}
@@ -3,10 +3,16 @@ package org.opencds.cqf.common.helpers;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
+import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.util.JAXBSource;
 
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
@@ -14,10 +20,18 @@ import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.tracking.TrackBack;
+import org.hl7.cql_annotations.r1.Annotation;
+import org.hl7.elm.r1.ObjectFactory;
 import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
+import org.opencds.cqf.cql.engine.execution.JsonCqlLibraryReader;
 
 public class TranslatorHelper {
 
+    public static final String ELM_XML_CONTENT_TYPE = "application/elm+xml";
+    public static final String ELM_JSON_CONTENT_TYPE = "application/elm+json";
+
+    private static JAXBContext elmContext;
+
     public static Library readLibrary(InputStream xmlStream) {
         try {
             return CqlLibraryReader.read(xmlStream);
@@ -26,6 +40,64 @@ public class TranslatorHelper {
         }
     }
 
+    public static Library readLibrary(Reader xmlReader) {
+        try {
+            return CqlLibraryReader.read(xmlReader);
+        } catch (IOException | JAXBException e) {
+            throw new IllegalArgumentException("Error encountered while reading ELM xml: " + e.getMessage());
+        }
+    }
+
+    public static Library readJsonLibrary(InputStream jsonStream) {
+        try {
+            return JsonCqlLibraryReader.read(new InputStreamReader(jsonStream, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error encountered while reading ELM json: " + e.getMessage());
+        }
+    }
+
+    // Reads precompiled ELM content with the given content type (application/elm+xml or application/elm+json)
+    public static Library readLibrary(String contentType, byte[] content) {
+        switch (contentType) {
+            case ELM_XML_CONTENT_TYPE:
+                return readLibrary(new ByteArrayInputStream(content));
+            case ELM_JSON_CONTENT_TYPE:
+                return readJsonLibrary(new ByteArrayInputStream(content));
+            default:
+                throw new IllegalArgumentException(String.format("Unsupported ELM content type: %s", contentType));
+        }
+    }
+
+    // The translator and the engine use separate ELM class hierarchies. The
+    // translated library is marshalled as a stream of XML events that the engine
+    // unmarshals directly, so it is never serialized to text.
+    public static Library toExecutionLibrary(org.hl7.elm.r1.Library library) {
+        try {
+            Marshaller marshaller = getElmContext().createMarshaller();
+            return CqlLibraryReader.read(new JAXBSource(marshaller, new ObjectFactory().createLibrary(library)));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Error encountered while converting ELM: " + e.getMessage());
+        }
+    }
+
+    private static synchronized JAXBContext getElmContext() throws JAXBException {
+        if (elmContext == null) {
+            elmContext = JAXBContext.newInstance(org.hl7.elm.r1.Library.class, Annotation.class);
+        }
+
+        return elmContext;
+    }
+
+    // Writes the translated library to the stream as ELM XML
+    public static void writeXml(org.hl7.elm.r1.Library library, OutputStream output) {
+        try {
+            Marshaller marshaller = getElmContext().createMarshaller();
+            marshaller.marshal(new ObjectFactory().createLibrary(library), output);
+        } catch (JAXBException e) {
+            throw new IllegalArgumentException("Error encountered while serializing ELM: " + e.getMessage());
+        }
+    }
+
     public static String errorsToString(Iterable<CqlTranslatorException> exceptions) {
         ArrayList<String> errors = new ArrayList<>();
         for (CqlTranslatorException error : exceptions) {
@@ -75,10 +147,10 @@ public class TranslatorHelper {
     public static Library translateLibrary(InputStream cqlStream, LibraryManager libraryManager,
             ModelManager modelManager) {
         CqlTranslator translator = getTranslator(cqlStream, libraryManager, modelManager);
-        return readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+        return translateLibrary(translator);
     }
 
     public static Library translateLibrary(CqlTranslator translator) {
-        return readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+        return toExecutionLibrary(translator.toELM());
     }
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package org.opencds.cqf.common.interceptors;
+
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CancellationToken;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Attaches a CancellationToken to each evaluation operation request, with the
+ * time budget configured for the operation (see the budget.* settings).
+ * Providers get the token with CancellationToken.forRequest, and asynchronous
+ * jobs are given the same budget.
+ */
+@Interceptor
+public class CancellationInterceptor {
+
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+    public void incomingRequestPreHandled(ServletRequestDetails requestDetails) {
+        Integer budgetSeconds = getBudgetSeconds(requestDetails.getOperation());
+        if (budgetSeconds == null) {
+            return;
+        }
+
+        new CancellationToken(budgetSeconds * 1000L).attachTo(requestDetails);
+    }
+
+    private static Integer getBudgetSeconds(String operation) {
+        if (operation == null) {
+            return null;
+        }
+
+        switch (operation) {
+            case "$evaluate-measure":
+                return HapiProperties.getEvaluateMeasureBudgetSeconds();
+            case "$care-gaps":
+                return HapiProperties.getCareGapsBudgetSeconds();
+            case "$cql":
+                return HapiProperties.getCqlBudgetSeconds();
+            case "$apply":
+                return HapiProperties.getApplyBudgetSeconds();
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.opencds.cqf.common.interceptors;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.evaluation.DiscoveryCache;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Invalidates the cached CDS Hooks discovery response when a PlanDefinition or
+ * Library resource is created, updated or deleted through the JPA server.
+ */
+@Interceptor
+public class DiscoveryCacheInterceptor {
+
+    private FhirContext fhirContext;
+    private DiscoveryCache discoveryCache;
+
+    public DiscoveryCacheInterceptor(FhirContext fhirContext, DiscoveryCache discoveryCache) {
+        this.fhirContext = fhirContext;
+        this.discoveryCache = discoveryCache;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        invalidate(resource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        invalidate(newResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource) {
+        invalidate(resource);
+    }
+
+    private void invalidate(IBaseResource resource) {
+        if (resource == null) {
+            return;
+        }
+
+        // Prefetch templates come from the data requirements of the PlanDefinition's
+        // libraries, so a change to any Library may change discovery
+        String resourceType = this.fhirContext.getResourceDefinition(resource).getName();
+        if (!resourceType.equals("PlanDefinition") && !resourceType.equals("Library")) {
+            return;
+        }
+
+        this.discoveryCache.invalidate();
+
+        // Until the transaction commits, discovery resolved by another request still
+        // reads the previous resources, so it is invalidated again once the
+        // transaction has committed
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    discoveryCache.invalidate();
+                }
+            });
+        }
+    }
+}
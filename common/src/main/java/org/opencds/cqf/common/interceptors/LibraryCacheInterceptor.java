@@ -0,0 +1,71 @@
+package org.opencds.cqf.common.interceptors;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.common.evaluation.LibraryCache;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Evicts compiled libraries from the LibraryCache when a Library resource is
+ * created, updated or deleted through the JPA server.
+ */
+@Interceptor
+public class LibraryCacheInterceptor {
+
+    private FhirContext fhirContext;
+    private LibraryCache libraryCache;
+
+    public LibraryCacheInterceptor(FhirContext fhirContext, LibraryCache libraryCache) {
+        this.fhirContext = fhirContext;
+        this.libraryCache = libraryCache;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        invalidate(resource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        invalidate(oldResource);
+        invalidate(newResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource) {
+        invalidate(resource);
+    }
+
+    private void invalidate(IBaseResource resource) {
+        if (resource == null || !this.fhirContext.getResourceDefinition(resource).getName().equals("Library")) {
+            return;
+        }
+
+        List<IBase> names = this.fhirContext.newTerser().getValues(resource, "name");
+        String name = !names.isEmpty() && names.get(0) instanceof IPrimitiveType
+                ? ((IPrimitiveType<?>) names.get(0)).getValueAsString()
+                : null;
+        this.libraryCache.invalidate(name);
+
+        // Until the transaction commits, a library loaded by another request still
+        // reads the previous source and records it as the current one, so the library
+        // is invalidated again once the transaction has committed
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    libraryCache.invalidate(name);
+                }
+            });
+        }
+    }
+}
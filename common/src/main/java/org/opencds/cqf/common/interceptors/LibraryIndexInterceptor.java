@@ -0,0 +1,71 @@
+package org.opencds.cqf.common.interceptors;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.common.providers.LibraryIndex;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Keeps the LibraryIndex up to date when a Library resource is created,
+ * updated or deleted through the JPA server.
+ */
+@Interceptor
+public class LibraryIndexInterceptor {
+
+    private FhirContext fhirContext;
+    private LibraryIndex libraryIndex;
+
+    public LibraryIndexInterceptor(FhirContext fhirContext, LibraryIndex libraryIndex) {
+        this.fhirContext = fhirContext;
+        this.libraryIndex = libraryIndex;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        if (isLibrary(resource)) {
+            index(this.fhirContext, this.libraryIndex, resource);
+        }
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        if (isLibrary(newResource)) {
+            index(this.fhirContext, this.libraryIndex, newResource);
+        }
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource) {
+        if (isLibrary(resource)) {
+            this.libraryIndex.remove(resource.getIdElement().getIdPart());
+        }
+    }
+
+    private boolean isLibrary(IBaseResource resource) {
+        return resource != null && this.fhirContext.getResourceDefinition(resource).getName().equals("Library");
+    }
+
+    /**
+     * Adds (or replaces) the identity of a Library resource in the index.
+     */
+    public static void index(FhirContext fhirContext, LibraryIndex libraryIndex, IBaseResource library) {
+        libraryIndex.put(library.getIdElement().getIdPart(), getValue(fhirContext, library, "name"),
+                getValue(fhirContext, library, "version"), getValue(fhirContext, library, "url"));
+    }
+
+    private static String getValue(FhirContext fhirContext, IBaseResource resource, String path) {
+        List<IBase> values = fhirContext.newTerser().getValues(resource, path);
+        if (values.isEmpty() || !(values.get(0) instanceof IPrimitiveType)) {
+            return null;
+        }
+
+        return ((IPrimitiveType<?>) values.get(0)).getValueAsString();
+    }
+}
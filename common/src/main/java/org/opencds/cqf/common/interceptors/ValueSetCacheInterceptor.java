@@ -0,0 +1,68 @@
+package org.opencds.cqf.common.interceptors;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.evaluation.ValueSetExpansionCache;
+import org.opencds.cqf.common.evaluation.ValueSetIndex;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Invalidates the ValueSetIndex and the local ValueSetExpansionCache when a
+ * ValueSet resource is created, updated or deleted through the JPA server.
+ */
+@Interceptor
+public class ValueSetCacheInterceptor {
+
+    private FhirContext fhirContext;
+    private ValueSetIndex valueSetIndex;
+    private ValueSetExpansionCache expansionCache;
+
+    public ValueSetCacheInterceptor(FhirContext fhirContext, ValueSetIndex valueSetIndex,
+            ValueSetExpansionCache expansionCache) {
+        this.fhirContext = fhirContext;
+        this.valueSetIndex = valueSetIndex;
+        this.expansionCache = expansionCache;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        invalidate(resource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        invalidate(newResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource) {
+        invalidate(resource);
+    }
+
+    private void invalidate(IBaseResource resource) {
+        if (resource == null || !this.fhirContext.getResourceDefinition(resource).getName().equals("ValueSet")) {
+            return;
+        }
+
+        this.valueSetIndex.invalidateAll();
+        this.expansionCache.invalidateAll();
+
+        // Until the transaction commits, a value set expanded by another request still
+        // reads the previous ValueSet, so the caches are invalidated again once the
+        // transaction has committed
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    valueSetIndex.invalidateAll();
+                    expansionCache.invalidateAll();
+                }
+            });
+        }
+    }
+}
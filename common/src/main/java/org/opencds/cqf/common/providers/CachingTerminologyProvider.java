@@ -0,0 +1,47 @@
+package org.opencds.cqf.common.providers;
+
+import org.opencds.cqf.common.evaluation.ValueSetExpansionCache;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+/**
+ * TerminologyProvider that serves value set expansions, and membership tests
+ * against them, from a shared ValueSetExpansionCache and delegates everything
+ * else. The source identifies
+ * the terminology server (e.g. its base url) so expansions from different
+ * servers are kept apart.
+ */
+public class CachingTerminologyProvider implements TerminologyProvider {
+
+    private TerminologyProvider innerProvider;
+    private String source;
+    private ValueSetExpansionCache expansionCache;
+
+    public CachingTerminologyProvider(TerminologyProvider innerProvider, String source,
+            ValueSetExpansionCache expansionCache) {
+        this.innerProvider = innerProvider;
+        this.source = source;
+        this.expansionCache = expansionCache;
+    }
+
+    public TerminologyProvider getInnerProvider() {
+        return this.innerProvider;
+    }
+
+    @Override
+    public boolean in(Code code, ValueSetInfo valueSet) {
+        return this.expansionCache.contains(this.source, valueSet, code, () -> this.innerProvider.expand(valueSet));
+    }
+
+    @Override
+    public Iterable<Code> expand(ValueSetInfo valueSet) {
+        return this.expansionCache.get(this.source, valueSet, () -> this.innerProvider.expand(valueSet));
+    }
+
+    @Override
+    public Code lookup(Code code, CodeSystemInfo codeSystem) {
+        return this.innerProvider.lookup(code, codeSystem);
+    }
+}
@@ -0,0 +1,176 @@
+package org.opencds.cqf.common.providers;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of the Library resources of the server, so that resolving a
+ * library by name or canonical url (with or without a version) is a map lookup
+ * rather than a search. The index only holds the identity of each library; the
+ * resource itself is read by id.
+ *
+ * Versions are selected like LibraryResolutionProvider.selectFromList: an exact
+ * version match, or the highest version if no version is requested.
+ *
+ * The index is built when the server starts and kept up to date by
+ * LibraryIndexInterceptor. Libraries written by other servers sharing the
+ * database are not seen, so callers fall back to a search on a miss.
+ */
+public class LibraryIndex {
+
+    private static LibraryIndex instance;
+
+    public static synchronized LibraryIndex getInstance() {
+        if (instance == null) {
+            instance = new LibraryIndex();
+        }
+
+        return instance;
+    }
+
+    public static class Entry {
+        private String id;
+        private String name;
+        private String version;
+        private String url;
+
+        private Entry(String id, String name, String version, String url) {
+            this.id = id;
+            this.name = name;
+            this.version = version;
+            this.url = url;
+        }
+
+        public String getId() {
+            return this.id;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getVersion() {
+            return this.version;
+        }
+
+        public String getUrl() {
+            return this.url;
+        }
+    }
+
+    // Sorted by version, with a null version as the highest like
+    // LibraryResolutionProvider.compareVersions
+    private static final Comparator<Entry> VERSION_ORDER = Comparator
+            .<Entry, String>comparing(x -> x.version, LibraryIndex::compareVersions).thenComparing(x -> x.id);
+
+    private static class Versions {
+        private Map<String, Entry> byVersion = new HashMap<>();
+        private TreeSet<Entry> sorted = new TreeSet<>(VERSION_ORDER);
+
+        private void add(Entry entry) {
+            this.byVersion.put(entry.version, entry);
+            this.sorted.add(entry);
+        }
+
+        private void remove(Entry entry) {
+            this.sorted.remove(entry);
+            if (this.byVersion.get(entry.version) == entry) {
+                this.byVersion.remove(entry.version);
+                // Another library may have the same version
+                this.sorted.stream().filter(x -> Objects.equals(x.version, entry.version)).findFirst()
+                        .ifPresent(x -> this.byVersion.put(x.version, x));
+            }
+        }
+
+        private Entry select(String version) {
+            if (version == null) {
+                return this.sorted.isEmpty() ? null : this.sorted.last();
+            }
+
+            return this.byVersion.get(version);
+        }
+    }
+
+    private Map<String, Entry> byId = new HashMap<>();
+    private Map<String, Versions> byName = new HashMap<>();
+    private Map<String, Versions> byUrl = new HashMap<>();
+
+    public synchronized void put(String id, String name, String version, String url) {
+        this.remove(id);
+
+        Entry entry = new Entry(id, name, version, url);
+        this.byId.put(id, entry);
+        if (name != null) {
+            this.byName.computeIfAbsent(name, x -> new Versions()).add(entry);
+        }
+        if (url != null) {
+            this.byUrl.computeIfAbsent(url, x -> new Versions()).add(entry);
+        }
+    }
+
+    public synchronized void remove(String id) {
+        Entry entry = this.byId.remove(id);
+        if (entry == null) {
+            return;
+        }
+
+        remove(this.byName, entry.name, entry);
+        remove(this.byUrl, entry.url, entry);
+    }
+
+    public synchronized void clear() {
+        this.byId.clear();
+        this.byName.clear();
+        this.byUrl.clear();
+    }
+
+    public synchronized Entry getByName(String name, String version) {
+        Versions versions = name != null ? this.byName.get(name) : null;
+        return versions != null ? versions.select(version) : null;
+    }
+
+    public synchronized Entry getByUrl(String url, String version) {
+        Versions versions = url != null ? this.byUrl.get(url) : null;
+        return versions != null ? versions.select(version) : null;
+    }
+
+    public synchronized int size() {
+        return this.byId.size();
+    }
+
+    private static void remove(Map<String, Versions> map, String key, Entry entry) {
+        if (key == null) {
+            return;
+        }
+
+        Versions versions = map.get(key);
+        if (versions != null) {
+            versions.remove(entry);
+            if (versions.sorted.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    // Versions that aren't dotted numbers can't be compared by
+    // LibraryResolutionProvider, so they sort before numeric ones by text
+    private static int compareVersions(String version1, String version2) {
+        if (version1 != null && version2 != null && !(isNumeric(version1) && isNumeric(version2))) {
+            boolean numeric1 = isNumeric(version1);
+            if (numeric1 != isNumeric(version2)) {
+                return numeric1 ? 1 : -1;
+            }
+
+            return version1.compareTo(version2);
+        }
+
+        return LibraryResolutionProvider.compareVersions(version1, version2);
+    }
+
+    private static boolean isNumeric(String version) {
+        return version.matches("\\d+(\\.\\d+)*");
+    }
+}
@@ -15,6 +15,14 @@ public interface LibraryResolutionProvider<LibraryType> {
     // Should we throw an exception? Should this be a different interface?
     public void update(LibraryType library);
 
+    // Whether writes to the libraries invalidate the LibraryCache (see
+    // LibraryCacheInterceptor), i.e. they are the Library resources of the server.
+    // Compiled libraries of such a provider are found by name and version without
+    // reading their source.
+    public default boolean isTrackedByLibraryCache() {
+        return false;
+    }
+
 
     // This function assumes that you're selecting from a set of libraries with the same name.
     // It returns the closest matching version, or the max version if no version is specified.
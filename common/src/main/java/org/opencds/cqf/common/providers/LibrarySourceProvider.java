@@ -46,4 +46,29 @@ public class LibrarySourceProvider<LibraryType, AttachmentType>
 
         return this.innerProvider.getLibrarySource(versionedIdentifier);
     }
+
+    public boolean isTrackedByLibraryCache() {
+        return this.provider.isTrackedByLibraryCache();
+    }
+
+    // Returns the content of the attachment with the given content type, or null
+    // if the library does not have one (e.g. precompiled application/elm+json)
+    public byte[] getLibraryContent(VersionedIdentifier versionedIdentifier, String contentType) {
+        try {
+            LibraryType lib = this.provider.resolveLibraryByName(versionedIdentifier.getId(),
+                    versionedIdentifier.getVersion());
+            if (lib == null) {
+                return null;
+            }
+
+            for (AttachmentType attachment : this.getAttachments.apply(lib)) {
+                if (contentType.equals(this.getContentType.apply(attachment))) {
+                    return this.getContent.apply(attachment);
+                }
+            }
+        } catch (Exception e) {
+        }
+
+        return null;
+    }
 }
\ No newline at end of file
@@ -1,9 +1,7 @@
 package org.opencds.cqf.common.providers;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
@@ -19,8 +17,6 @@ import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
 public class R4ApelonFhirTerminologyProvider extends R4FhirTerminologyProvider {
-    private Map<String, List<Code>> cache = new HashMap<>();
-
     public R4ApelonFhirTerminologyProvider() {
         super();
     }
@@ -31,11 +27,6 @@ public class R4ApelonFhirTerminologyProvider extends R4FhirTerminologyProvider {
 
     @Override
     public Iterable<Code> expand(ValueSetInfo valueSet) throws ResourceNotFoundException {
-        String id = valueSet.getId();
-        if (this.cache.containsKey(id)) {
-            return this.cache.get(id);
-        }
-
         String url = this.resolveByIdentifier(valueSet);
 
         Parameters respParam = this.getFhirClient().operation().onType(ValueSet.class).named("expand")
@@ -50,7 +41,6 @@ public class R4ApelonFhirTerminologyProvider extends R4FhirTerminologyProvider {
             codes.add(nextCode);
         }
 
-        this.cache.put(id, codes);
         return codes;
     }
 
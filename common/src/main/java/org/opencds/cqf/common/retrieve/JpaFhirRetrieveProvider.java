@@ -1,20 +1,17 @@
 package org.opencds.cqf.common.retrieve;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.PagedResourceList;
 import org.opencds.cqf.cql.engine.fhir.retrieve.SearchParamFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
@@ -23,69 +20,74 @@ import ca.uhn.fhir.rest.api.server.IBundleProvider;
 
 public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
 
-    private static final Logger logger = LoggerFactory.getLogger(JpaFhirRetrieveProvider.class);
-
     DaoRegistry registry;
+    int pageSize;
 
     public JpaFhirRetrieveProvider(DaoRegistry registry, SearchParameterResolver searchParameterResolver) {
+        this(registry, searchParameterResolver, HapiProperties.getRetrievePageSize());
+    }
+
+    public JpaFhirRetrieveProvider(DaoRegistry registry, SearchParameterResolver searchParameterResolver,
+            int pageSize) {
         super(searchParameterResolver);
         this.registry = registry;
+        this.pageSize = pageSize;
     }
 
+    /**
+     * Returns the results of the searches, one after the other, as a List that is
+     * filled lazily (see PagedResourceList). Each search is executed the first
+     * time its results are reached and resources are fetched one page at a time,
+     * so a consumer that stops early (e.g. exists or First) only loads the pages
+     * it reads. Fetched pages are kept, so reading the result again doesn't
+     * search again.
+     *
+     * Searches are customized through toHapiSearchParameterMap. There is no
+     * per-query hook, as each query's results are only fetched as the list is
+     * read.
+     */
     @Override
+    @SuppressWarnings("unchecked")
     protected Iterable<Object> executeQueries(String dataType, List<SearchParameterMap> queries) {
         if (queries == null || queries.isEmpty()) {
             return Collections.emptyList();
         }
 
-        List<Object> objects = new ArrayList<>();
+        IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
+        List<Supplier<IBundleProvider>> searches = new ArrayList<>();
         for (SearchParameterMap map : queries) {
-            objects.addAll(executeQuery(dataType, map));
+            ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = toHapiSearchParameterMap(map);
+            searches.add(() -> dao.search(hapiMap));
         }
 
-        return objects;
+        return (List<Object>) (List<?>) new PagedResourceList<IBaseResource>(searches, this.pageSize);
     }
 
-    protected Collection<Object> executeQuery(String dataType, SearchParameterMap map) {
-        // TODO: Once HAPI breaks this out from the server dependencies
-        // we can include it on its own.
+    protected ca.uhn.fhir.jpa.searchparam.SearchParameterMap toHapiSearchParameterMap(SearchParameterMap map) {
         ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = new ca.uhn.fhir.jpa.searchparam.SearchParameterMap();
-        try {
-
-            Method[] methods = hapiMap.getClass().getDeclaredMethods();
-            List<Method> methodList = Arrays.asList(methods);
-            List<Method> puts = methodList.stream().filter(x -> x.getName().equals("put")).collect(Collectors.toList());
-            Method method = puts.get(0);
-            method.setAccessible(true);
+        if (map == null) {
+            return hapiMap;
+        }
 
-            for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
-                method.invoke(hapiMap, entry.getKey(), entry.getValue());
+        // The engine map is name -> AND list -> OR list, which is the same shape as
+        // HAPI's, so the lists are copied as they are
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
             }
 
-        } catch (Exception e) {
-            logger.warn("Error converting search parameter map", e);
-        }
-
-        IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
+            List<List<IQueryParameterType>> and = new ArrayList<>();
+            for (List<IQueryParameterType> or : entry.getValue()) {
+                if (or != null && !or.isEmpty()) {
+                    and.add(new ArrayList<>(or));
+                }
+            }
 
-        IBundleProvider bundleProvider = dao.search(hapiMap);
-        if (bundleProvider.size() == null) {
-            return resolveResourceList(bundleProvider.getResources(0, 10000));
-        }
-        if (bundleProvider.size() == 0) {
-            return new ArrayList<>();
+            if (!and.isEmpty()) {
+                hapiMap.put(entry.getKey(), and);
+            }
         }
-        List<IBaseResource> resourceList = bundleProvider.getResources(0, bundleProvider.size());
-        return resolveResourceList(resourceList);
-    }
 
-    public synchronized Collection<Object> resolveResourceList(List<IBaseResource> resourceList) {
-        List<Object> ret = new ArrayList<>();
-        for (IBaseResource res : resourceList) {
-            Class<?> clazz = res.getClass();
-            ret.add(clazz.cast(res));
-        }
-        // ret.addAll(resourceList);
-        return ret;
+        return hapiMap;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,94 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+/**
+ * Memoizes retrieves for the patient currently being evaluated, so that a
+ * retrieve shared by several populations and supplemental data elements is
+ * only executed once per patient. The results are dropped when a retrieve for a
+ * different patient is seen, or when clear() is called.
+ *
+ * Results are materialized as lists. An instance is meant to be used by a
+ * single Context and is not thread-safe.
+ */
+public class MemoizingRetrieveProvider implements RetrieveProvider {
+
+    private RetrieveProvider innerProvider;
+    private Map<String, List<Object>> results = new HashMap<>();
+    private Object currentPatient;
+
+    public MemoizingRetrieveProvider(RetrieveProvider innerProvider) {
+        this.innerProvider = innerProvider;
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        if ("Patient".equals(context) && contextValue != null && !contextValue.equals(this.currentPatient)) {
+            this.clear();
+            this.currentPatient = contextValue;
+        }
+
+        String key = getKey(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                datePath, dateLowPath, dateHighPath, dateRange);
+
+        List<Object> result = this.results.get(key);
+        if (result == null) {
+            result = new ArrayList<>();
+            for (Object resource : this.innerProvider.retrieve(context, contextPath, contextValue, dataType,
+                    templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange)) {
+                result.add(resource);
+            }
+
+            result = Collections.unmodifiableList(result);
+            this.results.put(key, result);
+        }
+
+        return result;
+    }
+
+    public void clear() {
+        this.results.clear();
+        this.currentPatient = null;
+    }
+
+    private String getKey(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        StringBuilder key = new StringBuilder();
+        key.append(context).append("|").append(contextPath).append("|").append(contextValue).append("|")
+                .append(dataType).append("|").append(templateId).append("|").append(codePath).append("|");
+
+        if (codes != null) {
+            key.append("[");
+            for (Code code : codes) {
+                if (code != null) {
+                    key.append(code.getSystem()).append("|").append(code.getVersion()).append("|")
+                            .append(code.getCode()).append(",");
+                }
+            }
+            key.append("]");
+        }
+
+        key.append("|").append(valueSet).append("|").append(datePath).append("|").append(dateLowPath).append("|")
+                .append(dateHighPath).append("|");
+
+        if (dateRange != null) {
+            key.append(dateRange.getLowClosed() ? "[" : "(").append(Objects.toString(dateRange.getLow()))
+                    .append(",").append(Objects.toString(dateRange.getHigh()))
+                    .append(dateRange.getHighClosed() ? "]" : ")");
+        }
+
+        return key.toString();
+    }
+}
@@ -0,0 +1,81 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.evaluation.PatientDataPrefetch;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+/**
+ * Serves patient context retrieves from the data prefetched for the patient by
+ * a PatientDataPrefetch, and everything else from the inner provider. The
+ * prefetched resources are filtered by a provider created with the
+ * partitionProviderFactory, which is expected to apply code, value set and date
+ * filters in memory.
+ *
+ * An instance is meant to be used by a single Context and is not thread-safe.
+ */
+public class PrefetchRetrieveProvider implements RetrieveProvider {
+
+    private RetrieveProvider innerProvider;
+    private PatientDataPrefetch prefetch;
+    private Function<List<IBaseResource>, RetrieveProvider> partitionProviderFactory;
+
+    private String currentPatient;
+    private Map<String, RetrieveProvider> partitionProviders = new HashMap<>();
+
+    public PrefetchRetrieveProvider(RetrieveProvider innerProvider, PatientDataPrefetch prefetch,
+            Function<List<IBaseResource>, RetrieveProvider> partitionProviderFactory) {
+        this.innerProvider = innerProvider;
+        this.prefetch = prefetch;
+        this.partitionProviderFactory = partitionProviderFactory;
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        RetrieveProvider provider = getPartitionProvider(context, contextValue, dataType);
+        if (provider == null) {
+            return this.innerProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath,
+                    codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        }
+
+        return provider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+    }
+
+    private RetrieveProvider getPartitionProvider(String context, Object contextValue, String dataType) {
+        if (!"Patient".equals(context) || contextValue == null || !this.prefetch.covers(dataType)) {
+            return null;
+        }
+
+        String patientId = contextValue.toString();
+        if (!patientId.equals(this.currentPatient)) {
+            this.currentPatient = patientId;
+            this.partitionProviders.clear();
+        }
+
+        RetrieveProvider provider = this.partitionProviders.get(dataType);
+        if (provider == null) {
+            List<IBaseResource> resources = this.prefetch.getResources(patientId, dataType);
+            if (resources == null) {
+                return null;
+            }
+
+            provider = resources.isEmpty() ? EMPTY : this.partitionProviderFactory.apply(resources);
+            this.partitionProviders.put(dataType, provider);
+        }
+
+        return provider;
+    }
+
+    private static final RetrieveProvider EMPTY = (context, contextPath, contextValue, dataType, templateId,
+            codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange) -> Collections.emptyList();
+}
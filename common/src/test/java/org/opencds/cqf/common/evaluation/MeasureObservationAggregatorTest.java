@@ -0,0 +1,159 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the running aggregates and the median of MeasureObservationAggregator,
+ * with an unbounded and a sampled median, and across merges.
+ */
+public class MeasureObservationAggregatorTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testEmptyAggregatorHasNoValues() {
+        MeasureObservationAggregator aggregator = new MeasureObservationAggregator(10);
+
+        assertEquals(0, aggregator.getCount());
+        assertNull(aggregator.getSum());
+        assertNull(aggregator.getMean());
+        assertNull(aggregator.getMin());
+        assertNull(aggregator.getMax());
+        assertNull(aggregator.getMedian());
+        assertEquals(Double.valueOf(0), aggregator.getValue("count"));
+        assertNull(aggregator.getValue(null));
+    }
+
+    @Test
+    public void testSummaryValues() {
+        MeasureObservationAggregator aggregator = new MeasureObservationAggregator(0);
+        for (double value : new double[] { 4, -2, 7.5, 1, 9 }) {
+            aggregator.add(value);
+        }
+
+        assertEquals(5, aggregator.getCount());
+        assertEquals(19.5, aggregator.getSum(), DELTA);
+        assertEquals(3.9, aggregator.getMean(), DELTA);
+        assertEquals(-2, aggregator.getMin(), DELTA);
+        assertEquals(9, aggregator.getMax(), DELTA);
+        assertEquals(4, aggregator.getMedian(), DELTA);
+
+        assertEquals(19.5, aggregator.getValue("sum"), DELTA);
+        assertEquals(3.9, aggregator.getValue("average"), DELTA);
+        assertEquals(4, aggregator.getValue("median"), DELTA);
+        assertEquals(-2, aggregator.getValue("minimum"), DELTA);
+        assertEquals(9, aggregator.getValue("maximum"), DELTA);
+        assertEquals(5, aggregator.getValue("count"), DELTA);
+
+        // Unknown and missing methods default to the average
+        assertEquals(3.9, aggregator.getValue(null), DELTA);
+        assertEquals(3.9, aggregator.getValue("mode"), DELTA);
+    }
+
+    @Test
+    public void testMedianOfAnEvenCountIsTheMeanOfTheMiddleValues() {
+        MeasureObservationAggregator aggregator = new MeasureObservationAggregator(0);
+        for (double value : new double[] { 10, 1, 4, 3 }) {
+            aggregator.add(value);
+        }
+
+        assertEquals(3.5, aggregator.getMedian(), DELTA);
+    }
+
+    @Test
+    public void testUnboundedMedianIsExact() {
+        MeasureObservationAggregator aggregator = new MeasureObservationAggregator(0);
+        for (int i = 1000; i >= 0; i--) {
+            aggregator.add(i);
+        }
+
+        assertTrue(aggregator.isMedianExact());
+        assertEquals(500, aggregator.getMedian(), DELTA);
+    }
+
+    @Test
+    public void testSampledMedianIsExactUpToTheSampleSize() {
+        MeasureObservationAggregator aggregator = new MeasureObservationAggregator(101);
+        for (int i = 0; i <= 100; i++) {
+            aggregator.add(i);
+        }
+
+        assertTrue(aggregator.isMedianExact());
+        assertEquals(50, aggregator.getMedian(), DELTA);
+
+        aggregator.add(101);
+        assertFalse(aggregator.isMedianExact());
+    }
+
+    @Test
+    public void testSampledMedianIsAnEstimateBeyondTheSampleSize() {
+        MeasureObservationAggregator aggregator = new MeasureObservationAggregator(1000);
+        for (int i = 0; i < 100000; i++) {
+            aggregator.add(i % 1000);
+        }
+
+        assertFalse(aggregator.isMedianExact());
+        assertEquals(100000, aggregator.getCount());
+        assertEquals(0, aggregator.getMin(), DELTA);
+        assertEquals(999, aggregator.getMax(), DELTA);
+        assertEquals(499.5, aggregator.getMean(), DELTA);
+
+        // The running values are exact. The median of a uniform sample of 1000
+        // values is well within 10% of the range of the true median.
+        assertEquals(499.5, aggregator.getMedian(), 100);
+    }
+
+    @Test
+    public void testMergeCombinesAggregates() {
+        MeasureObservationAggregator first = new MeasureObservationAggregator(0);
+        MeasureObservationAggregator second = new MeasureObservationAggregator(0);
+        for (int i = 0; i < 10; i++) {
+            (i % 2 == 0 ? first : second).add(i);
+        }
+
+        first.merge(second);
+
+        assertEquals(10, first.getCount());
+        assertEquals(45, first.getSum(), DELTA);
+        assertEquals(0, first.getMin(), DELTA);
+        assertEquals(9, first.getMax(), DELTA);
+        assertEquals(4.5, first.getMedian(), DELTA);
+    }
+
+    @Test
+    public void testMergeOfSampledAggregatorsKeepsTheSampleSize() {
+        MeasureObservationAggregator first = new MeasureObservationAggregator(50);
+        MeasureObservationAggregator second = new MeasureObservationAggregator(50);
+        for (int i = 0; i < 30; i++) {
+            first.add(i);
+            second.add(i + 30);
+        }
+
+        // Both samples are exact, their merge isn't
+        assertTrue(first.isMedianExact());
+        first.merge(second);
+
+        assertEquals(60, first.getCount());
+        assertEquals(0, first.getMin(), DELTA);
+        assertEquals(59, first.getMax(), DELTA);
+        assertFalse(first.isMedianExact());
+        assertEquals(29.5, first.getMedian(), 15);
+    }
+
+    @Test
+    public void testMergeOfAnEmptyAggregator() {
+        MeasureObservationAggregator aggregator = new MeasureObservationAggregator(10);
+        aggregator.add(3);
+        aggregator.merge(new MeasureObservationAggregator(10));
+
+        assertEquals(1, aggregator.getCount());
+        assertEquals(3, aggregator.getMin(), DELTA);
+        assertEquals(3, aggregator.getMax(), DELTA);
+        assertEquals(3, aggregator.getMedian(), DELTA);
+    }
+}
@@ -0,0 +1,105 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives PatientCachingContext the way the engine evaluates expression
+ * definitions and checks the evaluated resources recorded for each population.
+ */
+public class PatientCachingContextTest {
+
+    private static final VersionedIdentifier LIBRARY_ID = new VersionedIdentifier().withId("Test").withVersion("1.0.0");
+
+    private PatientCachingContext context;
+
+    @Before
+    public void setUp() {
+        PatientDependencyAnalysis analysis = mock(PatientDependencyAnalysis.class);
+        when(analysis.isPatientDependent(any(VersionedIdentifier.class), any(String.class))).thenReturn(true);
+        when(analysis.isPatientDependent(any(VersionedIdentifier.class), eq("Measurement Period"))).thenReturn(false);
+
+        this.context = new PatientCachingContext(new Library().withIdentifier(LIBRARY_ID), analysis);
+        this.context.setContextValue("Patient", "patient-1");
+    }
+
+    @Test
+    public void testCachedResultRecordsEvaluatedResources() {
+        evaluate("Encounters", Arrays.asList("Encounter/1", "Encounter/2"));
+        assertEquals(Arrays.asList("Encounter/1", "Encounter/2"), takeEvaluatedResources());
+
+        // A later population using the same definition records the same resources
+        assertEquals(Boolean.TRUE, evaluate("Encounters", Collections.singletonList("Encounter/3")));
+        assertEquals(Arrays.asList("Encounter/1", "Encounter/2"), takeEvaluatedResources());
+    }
+
+    @Test
+    public void testNestedDefinitionsRecordTheirOwnResources() {
+        // "Numerator" retrieves a condition and references "Encounters"
+        assertFalse(this.context.isExpressionInCache(LIBRARY_ID, "Numerator"));
+        this.context.getEvaluatedResources().add("Condition/1");
+        evaluate("Encounters", Collections.singletonList("Encounter/1"));
+        finish("Numerator", true);
+        assertEquals(Arrays.asList("Condition/1", "Encounter/1"), takeEvaluatedResources());
+
+        evaluate("Encounters", Collections.emptyList());
+        assertEquals(Collections.singletonList("Encounter/1"), takeEvaluatedResources());
+
+        evaluate("Numerator", Collections.emptyList());
+        assertEquals(Arrays.asList("Condition/1", "Encounter/1"), takeEvaluatedResources());
+    }
+
+    @Test
+    public void testPatientChangeDropsDependentResults() {
+        evaluate("Encounters", Collections.singletonList("Encounter/1"));
+        evaluate("Measurement Period", Collections.emptyList());
+        takeEvaluatedResources();
+
+        this.context.setContextValue("Patient", "patient-2");
+        assertFalse(this.context.isExpressionInCache(LIBRARY_ID, "Encounters"));
+        this.context.getEvaluatedResources().add("Encounter/2");
+        finish("Encounters", true);
+        assertEquals(Collections.singletonList("Encounter/2"), takeEvaluatedResources());
+
+        assertTrue(this.context.isExpressionInCache(LIBRARY_ID, "Measurement Period"));
+    }
+
+    // Evaluates a definition like the engine does, recording the given resources
+    // if it isn't cached, and returns whether the cached result was used
+    private Boolean evaluate(String name, List<String> retrieved) {
+        if (this.context.isExpressionInCache(LIBRARY_ID, name)) {
+            return (Boolean) this.context.getExpressionResultFromCache(LIBRARY_ID, name);
+        }
+
+        this.context.getEvaluatedResources().addAll(retrieved);
+        finish(name, true);
+        return false;
+    }
+
+    private void finish(String name, Object result) {
+        if (!this.context.isExpressionInCache(LIBRARY_ID, name)) {
+            this.context.addExpressionToCache(LIBRARY_ID, name, result);
+        }
+    }
+
+    private List<Object> takeEvaluatedResources() {
+        List<Object> evaluated = new ArrayList<>(this.context.getEvaluatedResources());
+        this.context.clearEvaluatedResources();
+        return evaluated;
+    }
+}
@@ -0,0 +1,106 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * Checks how SupplementalDataAccumulator counts supplemental data element
+ * values, and how accumulators merge.
+ */
+public class SupplementalDataAccumulatorTest {
+
+    private static final String RACE = "http://example.org/race";
+    private static final String SEX = "http://example.org/sex";
+
+    @Test
+    public void testCountsCodesAndCodings() {
+        SupplementalDataAccumulator accumulator = new SupplementalDataAccumulator();
+        accumulator.add("sde-sex", new Code().withSystem(SEX).withCode("F").withDisplay("Female"));
+        accumulator.add("sde-sex", new Coding(SEX, "M", "Male"));
+        accumulator.add("sde-sex", new Code().withSystem(SEX).withCode("F").withDisplay("Female"));
+        accumulator.add("sde-race", Arrays.asList(new Code().withSystem(RACE).withCode("2106-3"),
+                new Code().withSystem(RACE).withCode("2054-5")));
+
+        Map<String, Collection<SupplementalDataAccumulator.CodingCount>> counts = accumulator.getCounts();
+        assertEquals(Arrays.asList("sde-sex", "sde-race"), new ArrayList<>(counts.keySet()));
+        assertEquals(Arrays.asList("http://example.org/sex|F|Female=2", "http://example.org/sex|M|Male=1"),
+                describe(counts.get("sde-sex")));
+
+        // Only the first element of a list is counted
+        assertEquals(Collections.singletonList("http://example.org/race|2106-3|null=1"),
+                describe(counts.get("sde-race")));
+    }
+
+    @Test
+    public void testCodesAreCountedBySystemAndCode() {
+        SupplementalDataAccumulator accumulator = new SupplementalDataAccumulator();
+        accumulator.add("sde", new Code().withSystem(SEX).withCode("U").withDisplay("Unknown"));
+        accumulator.add("sde", new Code().withSystem(RACE).withCode("U").withDisplay("Unknown race"));
+        accumulator.add("sde", new Code().withCode("U"));
+        accumulator.add("sde", new Code().withSystem(SEX).withCode("U").withDisplay("Other display"));
+
+        // The display of the first value counted is kept
+        assertEquals(Arrays.asList("http://example.org/sex|U|Unknown=2", "http://example.org/race|U|Unknown race=1",
+                "null|U|null=1"), describe(accumulator.getCounts().get("sde")));
+    }
+
+    @Test
+    public void testValuesWithoutACodeAreIgnored() {
+        SupplementalDataAccumulator accumulator = new SupplementalDataAccumulator();
+        accumulator.add("sde", "F");
+        accumulator.add("sde", 42);
+        accumulator.add("sde", new Code().withSystem(SEX));
+        accumulator.add("sde", new Coding().setSystem(SEX));
+        accumulator.add("sde", Collections.emptyList());
+
+        assertTrue(accumulator.isEmpty());
+        assertTrue(accumulator.getCounts().isEmpty());
+    }
+
+    @Test
+    public void testMergeAddsCounts() {
+        SupplementalDataAccumulator first = new SupplementalDataAccumulator();
+        first.add("sde-sex", new Code().withSystem(SEX).withCode("F"));
+        first.add("sde-sex", new Code().withSystem(SEX).withCode("M"));
+
+        SupplementalDataAccumulator second = new SupplementalDataAccumulator();
+        second.add("sde-sex", new Code().withSystem(SEX).withCode("M"));
+        second.add("sde-sex", new Code().withSystem(SEX).withCode("M"));
+        second.add("sde-race", new Code().withSystem(RACE).withCode("2106-3"));
+
+        first.merge(second);
+        first.merge(new SupplementalDataAccumulator());
+
+        assertFalse(first.isEmpty());
+        assertEquals(Arrays.asList("http://example.org/sex|F|null=1", "http://example.org/sex|M|null=3"),
+                describe(first.getCounts().get("sde-sex")));
+        assertEquals(Collections.singletonList("http://example.org/race|2106-3|null=1"),
+                describe(first.getCounts().get("sde-race")));
+
+        // The merged accumulator is unchanged
+        assertEquals(Collections.singletonList("http://example.org/sex|M|null=2"),
+                describe(second.getCounts().get("sde-sex")));
+    }
+
+    private static List<String> describe(Collection<SupplementalDataAccumulator.CodingCount> counts) {
+        List<String> descriptions = new ArrayList<>();
+        for (SupplementalDataAccumulator.CodingCount count : counts) {
+            descriptions.add(count.getSystem() + "|" + count.getCode() + "|" + count.getDisplay() + "="
+                    + count.getCount());
+        }
+
+        return descriptions;
+    }
+}
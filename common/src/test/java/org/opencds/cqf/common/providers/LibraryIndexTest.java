@@ -0,0 +1,90 @@
+package org.opencds.cqf.common.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks name, url and version resolution of LibraryIndex as libraries are
+ * added, updated and removed.
+ */
+public class LibraryIndexTest {
+
+    private static final String URL = "http://example.org/Library/Common";
+
+    private LibraryIndex index;
+
+    @Before
+    public void setUp() {
+        this.index = new LibraryIndex();
+    }
+
+    @Test
+    public void testHighestNumericVersionIsSelected() {
+        this.index.put("common-1-9", "Common", "1.9.0", URL);
+        this.index.put("common-1-10", "Common", "1.10.0", URL);
+        this.index.put("common-1-2", "Common", "1.2", URL);
+
+        assertEquals("common-1-10", this.index.getByName("Common", null).getId());
+        assertEquals("common-1-10", this.index.getByUrl(URL, null).getId());
+        assertEquals("common-1-9", this.index.getByName("Common", "1.9.0").getId());
+        assertEquals("common-1-2", this.index.getByUrl(URL, "1.2").getId());
+        assertNull(this.index.getByName("Common", "2.0.0"));
+        assertNull(this.index.getByName("Other", null));
+    }
+
+    @Test
+    public void testNonNumericVersionsSortBeforeNumericVersions() {
+        this.index.put("common-draft", "Common", "draft", URL);
+        this.index.put("common-snapshot", "Common", "1.0.0-SNAPSHOT", URL);
+        assertEquals("common-draft", this.index.getByName("Common", null).getId());
+
+        this.index.put("common-1", "Common", "1.0.0", URL);
+        assertEquals("common-1", this.index.getByName("Common", null).getId());
+        assertEquals("common-snapshot", this.index.getByName("Common", "1.0.0-SNAPSHOT").getId());
+
+        this.index.remove("common-1");
+        this.index.remove("common-draft");
+        assertEquals("common-snapshot", this.index.getByName("Common", null).getId());
+    }
+
+    @Test
+    public void testNullVersionIsTheHighest() {
+        this.index.put("common-1", "Common", "1.0.0", URL);
+        this.index.put("common-unversioned", "Common", null, URL);
+        this.index.put("common-2", "Common", "2.0.0", URL);
+
+        assertEquals("common-unversioned", this.index.getByName("Common", null).getId());
+        assertEquals("common-2", this.index.getByName("Common", "2.0.0").getId());
+    }
+
+    @Test
+    public void testPutReplacesTheLibraryWithTheSameId() {
+        this.index.put("common", "Common", "1.0.0", URL);
+        this.index.put("common", "Renamed", "2.0.0", null);
+
+        assertEquals(1, this.index.size());
+        assertNull(this.index.getByName("Common", null));
+        assertNull(this.index.getByUrl(URL, null));
+        assertEquals("2.0.0", this.index.getByName("Renamed", null).getVersion());
+    }
+
+    @Test
+    public void testRemoveKeepsOtherLibrariesWithTheSameVersion() {
+        this.index.put("common-a", "Common", "1.0.0", URL);
+        this.index.put("common-b", "Common", "1.0.0", URL);
+
+        this.index.remove(this.index.getByName("Common", "1.0.0").getId());
+
+        assertEquals(1, this.index.size());
+        String remaining = this.index.getByName("Common", "1.0.0").getId();
+        assertEquals(remaining, this.index.getByName("Common", null).getId());
+        assertEquals(remaining, this.index.getByUrl(URL, "1.0.0").getId());
+
+        this.index.remove(remaining);
+        assertNull(this.index.getByName("Common", null));
+        assertNull(this.index.getByUrl(URL, "1.0.0"));
+    }
+}
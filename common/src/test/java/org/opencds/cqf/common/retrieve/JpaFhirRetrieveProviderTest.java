@@ -0,0 +1,121 @@
+package org.opencds.cqf.common.retrieve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+/**
+ * Runs concurrent retrieves against a shared JpaFhirRetrieveProvider, the way
+ * concurrent CDS Hooks requests do, and checks that they run in parallel.
+ */
+public class JpaFhirRetrieveProviderTest {
+
+    private static final int THREADS = 16;
+    private static final int RESOURCE_COUNT = 25;
+
+    @Test
+    public void testConcurrentRetrievesRunInParallel() throws Exception {
+        // Each search waits for every thread to be searching, which only happens if
+        // the retrieves aren't serialized
+        JpaFhirRetrieveProvider provider = new JpaFhirRetrieveProvider(createRegistry(new CyclicBarrier(THREADS)),
+                new SearchParameterResolver(FhirContext.forR4()), 10);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    int count = 0;
+                    for (Object resource : provider.executeQueries("Patient", Collections.singletonList(null))) {
+                        count++;
+                    }
+
+                    return count;
+                }));
+            }
+
+            start.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(Integer.valueOf(RESOURCE_COUNT), result.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testResultIsAListFetchedOnce() {
+        DaoRegistry registry = createRegistry(null);
+        JpaFhirRetrieveProvider provider = new JpaFhirRetrieveProvider(registry,
+                new SearchParameterResolver(FhirContext.forR4()), 10);
+
+        // Two queries, as for a retrieve whose codes are split across searches
+        Iterable<Object> result = provider.executeQueries("Patient",
+                Arrays.asList(new org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap(),
+                        new org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap()));
+        assertTrue(result instanceof List);
+
+        int count = 0;
+        for (int i = 0; i < 2; i++) {
+            for (Object resource : result) {
+                count++;
+            }
+        }
+
+        assertEquals(4 * RESOURCE_COUNT, count);
+        assertEquals(2 * RESOURCE_COUNT, ((List<?>) result).size());
+        verify(registry.getResourceDao("Patient"), times(2)).search(any(SearchParameterMap.class));
+    }
+
+    // If a barrier is given, each search waits on it
+    @SuppressWarnings("unchecked")
+    private static DaoRegistry createRegistry(CyclicBarrier barrier) {
+        List<IBaseResource> patients = new ArrayList<>();
+        for (int i = 0; i < RESOURCE_COUNT; i++) {
+            Patient patient = new Patient();
+            patient.setId("patient-" + i);
+            patients.add(patient);
+        }
+
+        IFhirResourceDao<Patient> dao = mock(IFhirResourceDao.class);
+        when(dao.search(any(SearchParameterMap.class))).thenAnswer(x -> {
+            if (barrier != null) {
+                barrier.await(30, TimeUnit.SECONDS);
+            }
+            return new SimpleBundleProvider(patients);
+        });
+
+        DaoRegistry registry = mock(DaoRegistry.class);
+        doReturn(dao).when(registry).getResourceDao("Patient");
+        return registry;
+    }
+}
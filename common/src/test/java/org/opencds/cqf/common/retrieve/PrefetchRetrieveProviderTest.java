@@ -0,0 +1,97 @@
+package org.opencds.cqf.common.retrieve;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Encounter;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.PatientDataPrefetch;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+
+/**
+ * Checks which retrieves PrefetchRetrieveProvider serves from the prefetched
+ * data and which it passes on to the inner provider.
+ */
+public class PrefetchRetrieveProviderTest {
+
+    private static final Object INNER = "inner";
+
+    private PatientDataPrefetch prefetch;
+    private List<List<IBaseResource>> partitions;
+    private PrefetchRetrieveProvider provider;
+
+    @Before
+    public void setUp() {
+        this.prefetch = mock(PatientDataPrefetch.class);
+        when(this.prefetch.covers(anyString())).thenReturn(false);
+        when(this.prefetch.covers("Encounter")).thenReturn(true);
+        when(this.prefetch.getResources(anyString(), any())).thenReturn(null);
+        when(this.prefetch.getResources("p1", "Encounter")).thenReturn(Collections.singletonList(new Encounter()));
+        when(this.prefetch.getResources("p2", "Encounter")).thenReturn(Collections.singletonList(new Encounter()));
+        when(this.prefetch.getResources("p3", "Encounter")).thenReturn(Collections.emptyList());
+
+        RetrieveProvider inner = (context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange) -> Collections.singletonList(INNER);
+
+        this.partitions = new ArrayList<>();
+        this.provider = new PrefetchRetrieveProvider(inner, this.prefetch, resources -> {
+            this.partitions.add(resources);
+            return (context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath,
+                    dateLowPath, dateHighPath, dateRange) -> new ArrayList<>(resources);
+        });
+    }
+
+    @Test
+    public void testPrefetchedPatientIsServedFromItsPartition() {
+        assertEquals(this.prefetch.getResources("p1", "Encounter"), retrieve("Patient", "p1", "Encounter"));
+        assertEquals(this.prefetch.getResources("p1", "Encounter"), retrieve("Patient", "p1", "Encounter"));
+
+        // The partition provider is created once per patient and data type
+        assertEquals(1, this.partitions.size());
+
+        assertEquals(this.prefetch.getResources("p2", "Encounter"), retrieve("Patient", "p2", "Encounter"));
+        assertEquals(2, this.partitions.size());
+    }
+
+    @Test
+    public void testEmptyPartitionReturnsNothing() {
+        assertEquals(Collections.emptyList(), retrieve("Patient", "p3", "Encounter"));
+        assertEquals(0, this.partitions.size());
+    }
+
+    @Test
+    public void testOtherRetrievesUseTheInnerProvider() {
+        List<Object> inner = Collections.singletonList(INNER);
+
+        // Data type not prefetched
+        assertEquals(inner, retrieve("Patient", "p1", "Observation"));
+
+        // Patient not prefetched
+        assertEquals(inner, retrieve("Patient", "p4", "Encounter"));
+
+        // Not in the Patient context
+        assertEquals(inner, retrieve("Unfiltered", null, "Encounter"));
+        assertEquals(inner, retrieve("Patient", null, "Encounter"));
+
+        assertEquals(0, this.partitions.size());
+    }
+
+    private List<Object> retrieve(String context, Object contextValue, String dataType) {
+        List<Object> results = new ArrayList<>();
+        for (Object result : this.provider.retrieve(context, "subject", contextValue, dataType, null, null, null,
+                null, null, null, null, null)) {
+            results.add(result);
+        }
+
+        return results;
+    }
+}
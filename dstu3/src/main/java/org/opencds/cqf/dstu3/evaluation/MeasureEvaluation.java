@@ -1,19 +1,28 @@
 package org.opencds.cqf.dstu3.evaluation;
 
-import java.lang.reflect.Field;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import org.cqframework.cql.elm.execution.ExpressionDef;
 import org.cqframework.cql.elm.execution.FunctionDef;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DecimalType;
 import org.hl7.fhir.dstu3.model.Extension;
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.IntegerType;
@@ -22,24 +31,33 @@ import org.hl7.fhir.dstu3.model.Measure;
 import org.hl7.fhir.dstu3.model.MeasureReport;
 import org.hl7.fhir.dstu3.model.Observation;
 import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Quantity;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.dstu3.model.UriType;
-import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CancellationToken;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
+import org.opencds.cqf.common.evaluation.MeasureObservationAggregator;
 import org.opencds.cqf.common.evaluation.MeasurePopulationType;
 import org.opencds.cqf.common.evaluation.MeasureScoring;
+import org.opencds.cqf.common.evaluation.PagedResourceSource;
+import org.opencds.cqf.common.evaluation.PatientDataPrefetch;
+import org.opencds.cqf.common.evaluation.PopulationMembership;
+import org.opencds.cqf.common.evaluation.SubjectIndex;
+import org.opencds.cqf.common.evaluation.SupplementalDataAccumulator;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.Variable;
-import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.dstu3.builders.MeasureReportBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 
 public class MeasureEvaluation {
@@ -48,10 +66,58 @@ public class MeasureEvaluation {
 
     private Interval measurementPeriod;
     private DaoRegistry registry;
+    private Supplier<Context> contextFactory;
+    private int threadCount;
+    private PatientDataPrefetch prefetch;
+    private EvaluationProgress progress;
+    private CancellationToken cancellationToken;
 
     public MeasureEvaluation(DaoRegistry registry, Interval measurementPeriod) {
+        this(registry, measurementPeriod, null);
+    }
+
+    /**
+     * The contextFactory is used to create an execution context for each worker
+     * when patients are evaluated in parallel (see measure_evaluation.threads). If
+     * it is null, all patients are evaluated on the calling thread.
+     */
+    public MeasureEvaluation(DaoRegistry registry, Interval measurementPeriod, Supplier<Context> contextFactory) {
         this.registry = registry;
         this.measurementPeriod = measurementPeriod;
+        this.contextFactory = contextFactory;
+        this.threadCount = HapiProperties.getMeasureEvaluationThreads();
+    }
+
+    /**
+     * Sets the prefetch used to load patient data in blocks. The same prefetch must
+     * be given to the contexts used for evaluation (see
+     * MeasureEvaluationSeed.setPatientDataPrefetch).
+     */
+    public void setPatientDataPrefetch(PatientDataPrefetch prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Sets the progress updated as patients are evaluated.
+     */
+    public void setProgress(EvaluationProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Sets the token checked before each patient is evaluated. Evaluation stops
+     * with an EvaluationCancelledException once the token is cancelled.
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Sets the number of workers patients are evaluated with. Defaults to
+     * measure_evaluation.threads.
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
     }
 
     public MeasureReport evaluatePatientMeasure(Measure measure, Context context, String patientId) {
@@ -80,29 +146,23 @@ public class MeasureEvaluation {
     public MeasureReport evaluatePatientListMeasure(Measure measure, Context context, String practitionerRef) {
         logger.info("Generating patient-list report");
 
-        List<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
+        Iterable<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
         boolean isSingle = false;
         return evaluate(measure, context, patients, MeasureReport.MeasureReportType.PATIENTLIST, isSingle);
     }
 
-    private List<Patient> getPractitionerPatients(String practitionerRef) {
+    private Iterable<Patient> getPractitionerPatients(String practitionerRef) {
         SearchParameterMap map = new SearchParameterMap();
         map.add("general-practitioner", new ReferenceParam(
                 practitionerRef.startsWith("Practitioner/") ? practitionerRef : "Practitioner/" + practitionerRef));
 
-        List<Patient> patients = new ArrayList<>();
-        IBundleProvider patientProvider = registry.getResourceDao("Patient").search(map);
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+        return new PagedResourceSource<>(() -> registry.getResourceDao("Patient").search(map),
+                HapiProperties.getMeasureEvaluationPageSize());
     }
 
-    private List<Patient> getAllPatients() {
-        List<Patient> patients = new ArrayList<>();
-        IBundleProvider patientProvider = registry.getResourceDao("Patient").search(new SearchParameterMap());
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+    private Iterable<Patient> getAllPatients() {
+        return new PagedResourceSource<>(() -> registry.getResourceDao("Patient").search(new SearchParameterMap()),
+                HapiProperties.getMeasureEvaluationPageSize());
     }
 
     public MeasureReport evaluatePopulationMeasure(Measure measure, Context context) {
@@ -112,30 +172,9 @@ public class MeasureEvaluation {
         return evaluate(measure, context, getAllPatients(), MeasureReport.MeasureReportType.SUMMARY, isSingle);
     }
 
-    @SuppressWarnings("unchecked")
-    private void clearExpressionCache(Context context) {
-        // Hack to clear expression cache
-        // See cqf-ruler github issue #153
-        try {
-            Field privateField = Context.class.getDeclaredField("expressions");
-            privateField.setAccessible(true);
-            LinkedHashMap<String, Object> expressions = (LinkedHashMap<String, Object>) privateField.get(context);
-            expressions.clear();
-
-        } catch (Exception e) {
-            logger.warn("Error resetting expression cache", e);
-        }
-    }
-
-    private Resource evaluateObservationCriteria(Context context, Patient patient, Resource resource, Measure.MeasureGroupPopulationComponent pop, MeasureReport report) {
-        if (pop == null || !pop.hasCriteria()) {
-            return null;
-        }
-
+    private Object evaluateObservationCriteria(Context context, Patient patient, Resource resource, Measure.MeasureGroupPopulationComponent pop) {
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         String observationName = pop.getCriteria();
         ExpressionDef ed = context.resolveExpressionRef(observationName);
         if (!(ed instanceof FunctionDef)) {
@@ -152,10 +191,15 @@ public class MeasureEvaluation {
             context.popWindow();
         }
 
+        return result;
+    }
+
+    private Resource createObservation(Object result, Measure.MeasureGroupPopulationComponent pop, MeasureReport report) {
         if (result instanceof Resource) {
             return (Resource)result;
         }
 
+        String observationName = pop.getCriteria();
         Observation obs = new Observation();
         obs.setStatus(Observation.ObservationStatus.FINAL);
         obs.setId(UUID.randomUUID().toString());
@@ -172,9 +216,76 @@ public class MeasureEvaluation {
                 .setValue(new StringType(observationName));
         obsExtension.addExtension(extExtPop);
         obs.addExtension(obsExtension);
+        Double value = getObservationValue(result);
+        if (value != null) {
+            obs.setValue(new Quantity(value));
+        }
+        return obs;
+    }
+
+    private Double getObservationValue(Object result) {
+        if (result instanceof Observation) {
+            result = ((Observation) result).getValue();
+        }
+
+        if (result instanceof Quantity) {
+            return ((Quantity) result).hasValue() ? ((Quantity) result).getValue().doubleValue() : null;
+        }
+        if (result instanceof IntegerType) {
+            return ((IntegerType) result).hasValue() ? ((IntegerType) result).getValue().doubleValue() : null;
+        }
+        if (result instanceof DecimalType) {
+            return ((DecimalType) result).hasValue() ? ((DecimalType) result).getValue().doubleValue() : null;
+        }
+        if (result instanceof org.opencds.cqf.cql.engine.runtime.Quantity) {
+            BigDecimal value = ((org.opencds.cqf.cql.engine.runtime.Quantity) result).getValue();
+            return value != null ? value.doubleValue() : null;
+        }
+        if (result instanceof Number) {
+            return ((Number) result).doubleValue();
+        }
+
+        return null;
+    }
+
+    private Observation createObservationSummary(Measure.MeasureGroupPopulationComponent pop,
+            MeasureObservationAggregator aggregator, MeasureReport report) {
+        String observationName = pop.getCriteria();
+        Observation obs = new Observation();
+        obs.setStatus(Observation.ObservationStatus.FINAL);
+        obs.setId(UUID.randomUUID().toString());
+        obs.setCode(new CodeableConcept().setText(observationName));
+        Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
+        obsExtension.addExtension(new Extension()
+                .setUrl("measure")
+                .setValue(new UriType("http://hl7.org/fhir/us/cqfmeasures/" + report.getMeasure())));
+        obsExtension.addExtension(new Extension()
+                .setUrl("populationId")
+                .setValue(new StringType(observationName)));
+        obs.addExtension(obsExtension);
+
+        addObservationComponent(obs, "count", (double) aggregator.getCount());
+        addObservationComponent(obs, "sum", aggregator.getSum());
+        addObservationComponent(obs, "average", aggregator.getMean());
+        addObservationComponent(obs, "minimum", aggregator.getMin());
+        addObservationComponent(obs, "maximum", aggregator.getMax());
+        addObservationComponent(obs, "median", aggregator.getMedian());
         return obs;
     }
 
+    private void addObservationComponent(Observation obs, String aggregateMethod, Double value) {
+        if (value != null) {
+            obs.addComponent().setCode(new CodeableConcept().setText(aggregateMethod)).setValue(new Quantity(value));
+        }
+    }
+
+    private String getAggregateMethod(Measure.MeasureGroupPopulationComponent pop) {
+        List<Extension> extensions = pop.getExtensionsByUrl(
+                "http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-aggregateMethod");
+        return !extensions.isEmpty() && extensions.get(0).hasValue() ? extensions.get(0).getValue().primitiveValue()
+                : null;
+    }
+
     @SuppressWarnings("unchecked")
     private Iterable<Resource> evaluateCriteria(Context context, Patient patient,
             Measure.MeasureGroupPopulationComponent pop) {
@@ -184,8 +295,6 @@ public class MeasureEvaluation {
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         Object result = context.resolveExpressionRef(pop.getCriteria()).evaluate(context);
         if (result == null) {
             return Collections.emptyList();
@@ -202,15 +311,27 @@ public class MeasureEvaluation {
         return (Iterable<Resource>) result;
     }
 
-    private boolean evaluatePopulationCriteria(Context context, Patient patient,
-            Measure.MeasureGroupPopulationComponent criteria, HashMap<String, Resource> population,
-            HashMap<String, Patient> populationPatients, Measure.MeasureGroupPopulationComponent exclusionCriteria,
-            HashMap<String, Resource> exclusionPopulation, HashMap<String, Patient> exclusionPatients) {
+    private boolean evaluatePopulationCriteria(Context context, Patient patient, int subject,
+            Measure.MeasureGroupPopulationComponent criteria, PopulationMembership population,
+            Measure.MeasureGroupPopulationComponent exclusionCriteria, PopulationMembership exclusion) {
+        return evaluatePopulationCriteria(context, patient, subject, criteria, population, exclusionCriteria,
+                exclusion, null);
+    }
+
+    // If members is given, it receives the resources this patient contributes to
+    // the population
+    private boolean evaluatePopulationCriteria(Context context, Patient patient, int subject,
+            Measure.MeasureGroupPopulationComponent criteria, PopulationMembership population,
+            Measure.MeasureGroupPopulationComponent exclusionCriteria, PopulationMembership exclusion,
+            Map<String, Resource> members) {
         boolean inPopulation = false;
         if (criteria != null) {
             for (Resource resource : evaluateCriteria(context, patient, criteria)) {
                 inPopulation = true;
-                population.put(resource.getIdElement().getIdPart(), resource);
+                addMember(population, subject, patient, resource);
+                if (members != null) {
+                    members.put(resource.getIdElement().getIdPart(), resource);
+                }
             }
         }
 
@@ -219,41 +340,77 @@ public class MeasureEvaluation {
             if (exclusionCriteria != null) {
                 for (Resource resource : evaluateCriteria(context, patient, exclusionCriteria)) {
                     inPopulation = false;
-                    exclusionPopulation.put(resource.getIdElement().getIdPart(), resource);
-                    population.remove(resource.getIdElement().getIdPart());
+                    addMember(exclusion, subject, patient, resource);
+                    removeMember(population, subject, patient, resource);
+                    if (members != null) {
+                        members.remove(resource.getIdElement().getIdPart());
+                    }
                 }
             }
         }
 
-        if (inPopulation && populationPatients != null) {
-            populationPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (inPopulation && population != null) {
+            population.addSubject(subject);
         }
-        if (!inPopulation && exclusionPatients != null) {
-            exclusionPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (!inPopulation && exclusion != null) {
+            exclusion.addSubject(subject);
         }
 
         return inPopulation;
     }
 
+    // Members that are the patient itself are tracked by the patient's ordinal,
+    // anything else by resource id
+    private static void addMember(PopulationMembership population, int subject, Patient patient,
+            Resource resource) {
+        if (isSubject(patient, resource)) {
+            population.addSubjectMember(subject);
+        } else {
+            population.addResourceMember(resource.getIdElement().getIdPart());
+        }
+    }
+
+    private static void removeMember(PopulationMembership population, int subject, Patient patient,
+            Resource resource) {
+        if (isSubject(patient, resource)) {
+            population.removeSubjectMember(subject);
+        } else {
+            population.removeResourceMember(resource.getIdElement().getIdPart());
+        }
+    }
+
+    private static boolean isSubject(Patient patient, Resource resource) {
+        return resource == patient || (resource instanceof Patient
+                && resource.getIdElement().getIdPart().equals(patient.getIdElement().getIdPart()));
+    }
+
+    private void addPopulationCriteriaReport(MeasureReport report,
+            MeasureReport.MeasureReportGroupComponent reportGroup,
+            Measure.MeasureGroupPopulationComponent populationCriteria, PopulationMembership population,
+            SubjectIndex subjects) {
+        addPopulationCriteriaReport(report, reportGroup, populationCriteria,
+                population != null ? population.getMemberCount() : 0, population, subjects);
+    }
+
     private void addPopulationCriteriaReport(MeasureReport report,
             MeasureReport.MeasureReportGroupComponent reportGroup,
             Measure.MeasureGroupPopulationComponent populationCriteria, int populationCount,
-            Iterable<Patient> patientPopulation) {
+            PopulationMembership population, SubjectIndex subjects) {
         if (populationCriteria != null) {
             MeasureReport.MeasureReportGroupPopulationComponent populationReport = new MeasureReport.MeasureReportGroupPopulationComponent();
             populationReport.setIdentifier(populationCriteria.getIdentifier());
             populationReport.setCode(populationCriteria.getCode());
-            if (report.getType() == MeasureReport.MeasureReportType.PATIENTLIST && patientPopulation != null) {
+            if (report.getType() == MeasureReport.MeasureReportType.PATIENTLIST && population != null) {
                 ListResource subjectList = new ListResource();
                 subjectList.setId(UUID.randomUUID().toString());
                 populationReport.setPatients(new Reference().setReference("#" + subjectList.getId()));
-                for (Patient patient : patientPopulation) {
+                for (int subject : population.getSubjects()) {
+                    String patientId = subjects.getId(subject);
                     ListResource.ListEntryComponent entry = new ListResource.ListEntryComponent()
                             .setItem(new Reference()
-                                    .setReference(patient.getIdElement().getIdPart().startsWith("Patient/")
-                                            ? patient.getIdElement().getIdPart()
-                                            : String.format("Patient/%s", patient.getIdElement().getIdPart()))
-                                    .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
+                                    .setReference(patientId.startsWith("Patient/") ? patientId
+                                            : String.format("Patient/%s", patientId))
+                                    .setDisplay(subjects.getDisplay(subject)));
                     subjectList.addEntry(entry);
                 }
                 report.addContained(subjectList);
@@ -263,279 +420,93 @@ public class MeasureEvaluation {
         }
     }
 
-    private MeasureReport evaluate(Measure measure, Context context, List<Patient> patients,
+    private MeasureReport evaluate(Measure measure, Context context, Iterable<Patient> patients,
             MeasureReport.MeasureReportType type, boolean isSingle) {
         MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
         reportBuilder.buildStatus("complete");
         reportBuilder.buildType(type);
         reportBuilder.buildMeasureReference(measure.getIdElement().getValue());
-        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && !patients.isEmpty()) {
-            reportBuilder.buildPatientReference(patients.get(0).getIdElement().getValue());
+        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && patients.iterator().hasNext()) {
+            reportBuilder.buildPatientReference(patients.iterator().next().getIdElement().getValue());
         }
         reportBuilder.buildPeriod(measurementPeriod);
 
         MeasureReport report = reportBuilder.build();
 
-        HashMap<String, Resource> resources = new HashMap<>();
-        HashMap<String, HashSet<String>> codeToResourceMap = new HashMap<>();
-
         MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
         if (measureScoring == null) {
             throw new RuntimeException("Measure scoring is required in order to calculate.");
         }
 
-        List<Measure.MeasureSupplementalDataComponent> sde = new ArrayList<>();
-        HashMap<String, HashMap<String, Integer>> sdeAccumulators = null;
+        List<Measure.MeasureSupplementalDataComponent> sde = measure.getSupplementalData();
+        List<GroupCriteria> groups = new ArrayList<>();
         for (Measure.MeasureGroupComponent group : measure.getGroup()) {
+            groups.add(new GroupCriteria(group));
+        }
+
+        EvaluationState state = evaluatePatients(measure, context, patients, groups, measureScoring, type, sde,
+                report);
+
+        for (int i = 0; i < groups.size(); i++) {
+            GroupCriteria criteria = groups.get(i);
+            GroupState groupState = state.groups.get(i);
+
             MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
-            reportGroup.setIdentifier(group.getIdentifier());
+            reportGroup.setIdentifier(criteria.group.getIdentifier());
             report.getGroup().add(reportGroup);
 
-            // Declare variables to avoid a hash lookup on every patient
-            // TODO: Isn't quite right, there may be multiple initial populations for a
-            // ratio measure...
-            Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
-            // TODO: Isn't quite right, there may be multiple measure observations...
-            Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
-
-            HashMap<String, Resource> initialPopulation = null;
-            HashMap<String, Resource> numerator = null;
-            HashMap<String, Resource> numeratorExclusion = null;
-            HashMap<String, Resource> denominator = null;
-            HashMap<String, Resource> denominatorExclusion = null;
-            HashMap<String, Resource> denominatorException = null;
-            HashMap<String, Resource> measurePopulation = null;
-            HashMap<String, Resource> measurePopulationExclusion = null;
-            HashMap<String, Resource> measureObservation = null;
-
-            HashMap<String, Patient> initialPopulationPatients = null;
-            HashMap<String, Patient> numeratorPatients = null;
-            HashMap<String, Patient> numeratorExclusionPatients = null;
-            HashMap<String, Patient> denominatorPatients = null;
-            HashMap<String, Patient> denominatorExclusionPatients = null;
-            HashMap<String, Patient> denominatorExceptionPatients = null;
-            HashMap<String, Patient> measurePopulationPatients = null;
-            HashMap<String, Patient> measurePopulationExclusionPatients = null;
-
-            sdeAccumulators = new HashMap<>();
-            sde = measure.getSupplementalData();
-            for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
-                MeasurePopulationType populationType = MeasurePopulationType
-                        .fromCode(pop.getCode().getCodingFirstRep().getCode());
-                if (populationType != null) {
-                    switch (populationType) {
-                        case INITIALPOPULATION:
-                            initialPopulationCriteria = pop;
-                            initialPopulation = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                initialPopulationPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case NUMERATOR:
-                            numeratorCriteria = pop;
-                            numerator = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                numeratorPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case NUMERATOREXCLUSION:
-                            numeratorExclusionCriteria = pop;
-                            numeratorExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                numeratorExclusionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case DENOMINATOR:
-                            denominatorCriteria = pop;
-                            denominator = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case DENOMINATOREXCLUSION:
-                            denominatorExclusionCriteria = pop;
-                            denominatorExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorExclusionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case DENOMINATOREXCEPTION:
-                            denominatorExceptionCriteria = pop;
-                            denominatorException = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorExceptionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case MEASUREPOPULATION:
-                            measurePopulationCriteria = pop;
-                            measurePopulation = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                measurePopulationPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case MEASUREPOPULATIONEXCLUSION:
-                            measurePopulationExclusionCriteria = pop;
-                            measurePopulationExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                measurePopulationExclusionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case MEASUREOBSERVATION:
-                            measureObservationCriteria = pop;
-                            measureObservation = new HashMap<>();
-                            break;
-                    }
+            if (measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO) {
+                // Calculate actual measure score, Count(numerator) / Count(denominator)
+                if (groupState.denominator != null && groupState.numerator != null
+                        && groupState.denominator.getMemberCount() > 0) {
+                    reportGroup.setMeasureScore(groupState.numerator.getMemberCount() / (double) groupState.denominator.getMemberCount());
                 }
             }
 
-            switch (measureScoring) {
-                case PROPORTION:
-                case RATIO: {
-
-                    // For each patient in the initial population
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the denominator?
-                            boolean inDenominator = evaluatePopulationCriteria(context, patient, denominatorCriteria,
-                                    denominator, denominatorPatients, denominatorExclusionCriteria,
-                                    denominatorExclusion, denominatorExclusionPatients);
-                            populateResourceMap(context, MeasurePopulationType.DENOMINATOR, resources,
-                                    codeToResourceMap);
-
-                            if (inDenominator) {
-                                // Are they in the numerator?
-                                boolean inNumerator = evaluatePopulationCriteria(context, patient, numeratorCriteria,
-                                        numerator, numeratorPatients, numeratorExclusionCriteria, numeratorExclusion,
-                                        numeratorExclusionPatients);
-                                populateResourceMap(context, MeasurePopulationType.NUMERATOR, resources,
-                                        codeToResourceMap);
-
-                                if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
-                                    // Are they in the denominator exception?
-                                    boolean inException = false;
-                                    for (Resource resource : evaluateCriteria(context, patient,
-                                            denominatorExceptionCriteria)) {
-                                        inException = true;
-                                        denominatorException.put(resource.getIdElement().getIdPart(), resource);
-                                        denominator.remove(resource.getIdElement().getIdPart());
-                                        populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
-                                                resources, codeToResourceMap);
-                                    }
-                                    if (inException) {
-                                        if (denominatorExceptionPatients != null) {
-                                            denominatorExceptionPatients.put(patient.getIdElement().getIdPart(),
-                                                    patient);
-                                        }
-                                        if (denominatorPatients != null) {
-                                            denominatorPatients.remove(patient.getIdElement().getIdPart());
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
-
-                    // Calculate actual measure score, Count(numerator) / Count(denominator)
-                    if (denominator != null && numerator != null && denominator.size() > 0) {
-                        reportGroup.setMeasureScore(numerator.size() / (double) denominator.size());
-                    }
-
-                    break;
+            if (groupState.observationAggregator != null) {
+                Double score = groupState.observationAggregator
+                        .getValue(getAggregateMethod(criteria.measureObservationCriteria));
+                if (score != null) {
+                    reportGroup.setMeasureScore(score);
                 }
-                case CONTINUOUSVARIABLE: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the measure population?
-                            boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
-                                    measurePopulationCriteria, measurePopulation, measurePopulationPatients,
-                                    measurePopulationExclusionCriteria, measurePopulationExclusion,
-                                    measurePopulationExclusionPatients);
-
-                            if (inMeasurePopulation) {
-                                for (Resource resource : measurePopulation.values()) {
-                                    Resource observation = evaluateObservationCriteria(context, patient, resource, measureObservationCriteria, report);
-                                    measureObservation.put(resource.getIdElement().getIdPart(), observation);
-                                    report.addContained(observation);
-                                    // TODO: Add to the evaluatedResources bundle
-                                    //report.getEvaluatedResources().add(new Reference("#" + observation.getId()));
-                                }
-                            }
-                        }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators,sde);
-                    }
 
-                    break;
-                }
-                case COHORT: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-                        evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
-
-                    break;
+                // Individual reports list each observation, population reports only the
+                // aggregates
+                List<Resource> observations = groupState.observations != null ? groupState.observations
+                        : Collections.singletonList(createObservationSummary(criteria.measureObservationCriteria,
+                                groupState.observationAggregator, report));
+                for (Resource observation : observations) {
+                    report.addContained(observation);
+                    // TODO: Add to the evaluatedResources bundle
+                    //report.getEvaluatedResources().add(new Reference("#" + observation.getId()));
                 }
             }
 
             // Add population reports for each group
-            addPopulationCriteriaReport(report, reportGroup, initialPopulationCriteria,
-                    initialPopulation != null ? initialPopulation.size() : 0,
-                    initialPopulationPatients != null ? initialPopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorCriteria,
-                    numerator != null ? numerator.size() : 0,
-                    numeratorPatients != null ? numeratorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorExclusionCriteria,
-                    numeratorExclusion != null ? numeratorExclusion.size() : 0,
-                    numeratorExclusionPatients != null ? numeratorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorCriteria,
-                    denominator != null ? denominator.size() : 0,
-                    denominatorPatients != null ? denominatorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExclusionCriteria,
-                    denominatorExclusion != null ? denominatorExclusion.size() : 0,
-                    denominatorExclusionPatients != null ? denominatorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExceptionCriteria,
-                    denominatorException != null ? denominatorException.size() : 0,
-                    denominatorExceptionPatients != null ? denominatorExceptionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationCriteria,
-                    measurePopulation != null ? measurePopulation.size() : 0,
-                    measurePopulationPatients != null ? measurePopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationExclusionCriteria,
-                    measurePopulationExclusion != null ? measurePopulationExclusion.size() : 0,
-                    measurePopulationExclusionPatients != null ? measurePopulationExclusionPatients.values() : null);
-            // TODO: Measure Observations...
+            addPopulationCriteriaReport(report, reportGroup, criteria.initialPopulationCriteria,
+                    groupState.initialPopulation, state.subjects);
+            addPopulationCriteriaReport(report, reportGroup, criteria.numeratorCriteria,
+                    groupState.numerator, state.subjects);
+            addPopulationCriteriaReport(report, reportGroup, criteria.numeratorExclusionCriteria,
+                    groupState.numeratorExclusion, state.subjects);
+            addPopulationCriteriaReport(report, reportGroup, criteria.denominatorCriteria,
+                    groupState.denominator, state.subjects);
+            addPopulationCriteriaReport(report, reportGroup, criteria.denominatorExclusionCriteria,
+                    groupState.denominatorExclusion, state.subjects);
+            addPopulationCriteriaReport(report, reportGroup, criteria.denominatorExceptionCriteria,
+                    groupState.denominatorException, state.subjects);
+            addPopulationCriteriaReport(report, reportGroup, criteria.measurePopulationCriteria,
+                    groupState.measurePopulation, state.subjects);
+            addPopulationCriteriaReport(report, reportGroup, criteria.measurePopulationExclusionCriteria,
+                    groupState.measurePopulationExclusion, state.subjects);
+            addPopulationCriteriaReport(report, reportGroup, criteria.measureObservationCriteria,
+                    groupState.observationAggregator != null ? (int) groupState.observationAggregator.getCount() : 0,
+                    null, state.subjects);
         }
 
+        HashMap<String, Resource> resources = state.resources;
+        HashMap<String, HashSet<String>> codeToResourceMap = state.codeToResourceMap;
+
         for (String key : codeToResourceMap.keySet()) {
             org.hl7.fhir.dstu3.model.ListResource list = new org.hl7.fhir.dstu3.model.ListResource();
             for (String element : codeToResourceMap.get(key)) {
@@ -569,88 +540,289 @@ public class MeasureEvaluation {
             */
         }
 
-        if (sdeAccumulators.size() > 0) {
-            report = processAccumulators(report, sdeAccumulators, sde, isSingle, patients);
+        if (!state.sdeAccumulator.isEmpty()) {
+            report = processAccumulators(report, state.sdeAccumulator, isSingle);
         }
 
         return report;
     }
 
-    private void populateSDEAccumulators(Measure measure, Context context, Patient patient,HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                         List<Measure.MeasureSupplementalDataComponent> sde){
-        context.setContextValue("Patient", patient.getIdElement().getIdPart());
-        List<Object> sdeList = sde.stream().map(sdeItem -> context.resolveExpressionRef(sdeItem.getCriteria()).evaluate(context)).collect(Collectors.toList());
-        if(!sdeList.isEmpty()) {
-            for (int i = 0; i < sdeList.size(); i++) {
-                Object sdeListItem = sdeList.get(i);
-                if(null != sdeListItem) {
-                    String sdeAccumulatorKey = sde.get(i).getId();
-                    if(null == sdeAccumulatorKey || sdeAccumulatorKey.length() < 1){
-                        sdeAccumulatorKey = sde.get(i).getCriteria();
+    private EvaluationState evaluatePatients(Measure measure, Context context, Iterable<Patient> patients,
+            List<GroupCriteria> groups, MeasureScoring measureScoring, MeasureReport.MeasureReportType type,
+            List<Measure.MeasureSupplementalDataComponent> sde, MeasureReport report) {
+        // Patients are given ordinals in evaluation order, shared by all workers so
+        // their population bitsets can be merged
+        SubjectIndex subjects = new SubjectIndex();
+        int workerCount = this.threadCount;
+        if (patients instanceof Collection) {
+            workerCount = Math.min(workerCount, ((Collection<Patient>) patients).size());
+        }
+
+        if (this.progress != null) {
+            this.progress.setTotal(getPatientCount(patients));
+        }
+
+        // With a prefetch, each block of patients has its data loaded before the
+        // first patient of the block is handed out
+        Iterator<Patient> patientIterator = this.prefetch == null ? patients.iterator()
+                : this.prefetch.prefetching(patients.iterator());
+
+        if (workerCount <= 1 || this.contextFactory == null) {
+            EvaluationState state = new EvaluationState(subjects, groups, type);
+            while (patientIterator.hasNext()) {
+                Patient patient = patientIterator.next();
+                checkCancelled();
+                evaluatePatient(measure, context, patient, groups, measureScoring, sde, state, report);
+                evict(patient);
+                patientEvaluated();
+            }
+
+            return state;
+        }
+
+        logger.info("Evaluating patients with {} workers", workerCount);
+
+        // Each worker pulls patients from the shared iterator and accumulates into its
+        // own state using its own context. The states are merged once all workers are
+        // done.
+        // The first worker to fail cancels the workers token, so the other workers stop
+        // at their next patient instead of evaluating the rest of the population.
+        // The workers run on a pool of the evaluation's own, so each evaluation gets
+        // the number of workers it was configured with.
+        CancellationToken workersToken = new CancellationToken();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount,
+                new ThreadFactoryBuilder().setNameFormat("measure-evaluation-%d").setDaemon(true).build());
+        List<Future<EvaluationState>> futures = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            futures.add(executor.submit(() -> {
+                try {
+                    Context workerContext = this.contextFactory.get();
+                    EvaluationState workerState = new EvaluationState(subjects, groups, type);
+                    Patient patient;
+                    while ((patient = nextPatient(patientIterator)) != null) {
+                        workersToken.checkCancelled();
+                        checkCancelled();
+                        evaluatePatient(measure, workerContext, patient, groups, measureScoring, sde, workerState,
+                                report);
+                        evict(patient);
+                        patientEvaluated();
                     }
-                    HashMap<String, Integer> sdeItemMap = sdeAccumulators.get(sdeAccumulatorKey);
-                    String code = "";
 
-                    switch (sdeListItem.getClass().getSimpleName()) {
-                        case "Code":
-                            code = ((Code) sdeListItem).getCode();
-                            break;
-                        case "ArrayList":
-                            if (((ArrayList<?>) sdeListItem).size() > 0) {
-                                code  = ((Coding) ((ArrayList<?>) sdeListItem).get(0)).getCode();
-                            }else{
-                                continue;
+                    return workerState;
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                    workersToken.cancel("Measure evaluation failed");
+                    throw e;
+                }
+            }));
+        }
+
+        EvaluationState state = new EvaluationState(subjects, groups, type);
+        try {
+            for (Future<EvaluationState> future : futures) {
+                state.merge(future.get());
+            }
+        } catch (InterruptedException e) {
+            workersToken.cancel("Measure evaluation was interrupted");
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Measure evaluation was interrupted", e);
+        } catch (ExecutionException e) {
+            workersToken.cancel("Measure evaluation failed");
+            // Workers stopped by the workers token fail too; report the failure that
+            // stopped them
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            throw new RuntimeException("Error evaluating measure", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return state;
+    }
+
+    private void evict(Patient patient) {
+        if (this.prefetch != null) {
+            this.prefetch.evict(patient.getIdElement().getIdPart());
+        }
+    }
+
+    private void checkCancelled() {
+        if (this.cancellationToken != null) {
+            this.cancellationToken.checkCancelled();
+        }
+    }
+
+    private void patientEvaluated() {
+        if (this.progress != null) {
+            this.progress.patientEvaluated();
+        }
+    }
+
+    private static Long getPatientCount(Iterable<Patient> patients) {
+        Integer count = null;
+        if (patients instanceof Collection) {
+            count = ((Collection<Patient>) patients).size();
+        } else if (patients instanceof PagedResourceSource) {
+            count = ((PagedResourceSource<Patient>) patients).size();
+        }
+
+        return count != null ? count.longValue() : null;
+    }
+
+    private Patient nextPatient(Iterator<Patient> patientIterator) {
+        synchronized (patientIterator) {
+            return patientIterator.hasNext() ? patientIterator.next() : null;
+        }
+    }
+
+    private void evaluatePatient(Measure measure, Context context, Patient patient, List<GroupCriteria> groups,
+            MeasureScoring measureScoring, List<Measure.MeasureSupplementalDataComponent> sde, EvaluationState state,
+            MeasureReport report) {
+        HashMap<String, Resource> resources = state.resources;
+        HashMap<String, HashSet<String>> codeToResourceMap = state.codeToResourceMap;
+        // Only subject lists show the patient's name
+        int subject = state.subjects.add(patient.getIdElement().getIdPart(),
+                report.getType() == MeasureReport.MeasureReportType.PATIENTLIST
+                        ? patient.getNameFirstRep().getNameAsSingleString()
+                        : null);
+
+        for (int i = 0; i < groups.size(); i++) {
+            GroupCriteria criteria = groups.get(i);
+            GroupState group = state.groups.get(i);
+
+            switch (measureScoring) {
+                case PROPORTION:
+                case RATIO: {
+
+                    // Are they in the initial population?
+                    boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, subject,
+                            criteria.initialPopulationCriteria, group.initialPopulation, null, null);
+                    populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
+                            codeToResourceMap);
+
+                    if (inInitialPopulation) {
+                        // Are they in the denominator?
+                        boolean inDenominator = evaluatePopulationCriteria(context, patient, subject,
+                                criteria.denominatorCriteria, group.denominator,
+                                criteria.denominatorExclusionCriteria, group.denominatorExclusion);
+                        populateResourceMap(context, MeasurePopulationType.DENOMINATOR, resources,
+                                codeToResourceMap);
+
+                        if (inDenominator) {
+                            // Are they in the numerator?
+                            boolean inNumerator = evaluatePopulationCriteria(context, patient, subject,
+                                    criteria.numeratorCriteria, group.numerator,
+                                    criteria.numeratorExclusionCriteria, group.numeratorExclusion);
+                            populateResourceMap(context, MeasurePopulationType.NUMERATOR, resources,
+                                    codeToResourceMap);
+
+                            if (!inNumerator && inDenominator && (criteria.denominatorExceptionCriteria != null)) {
+                                // Are they in the denominator exception?
+                                boolean inException = false;
+                                for (Resource resource : evaluateCriteria(context, patient,
+                                        criteria.denominatorExceptionCriteria)) {
+                                    inException = true;
+                                    addMember(group.denominatorException, subject, patient, resource);
+                                    removeMember(group.denominator, subject, patient, resource);
+                                    populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
+                                            resources, codeToResourceMap);
+                                }
+                                if (inException) {
+                                    group.denominatorException.addSubject(subject);
+                                    group.denominator.removeSubject(subject);
+                                }
                             }
-                            break;
-                    }
-                    if(null == code){
-                        continue;
+                        }
                     }
-                    if (null != sdeItemMap && null != sdeItemMap.get(code)) {
-                        Integer sdeItemValue = sdeItemMap.get(code);
-                        sdeItemValue++;
-                        sdeItemMap.put(code, sdeItemValue);
-                        sdeAccumulators.get(sdeAccumulatorKey).put(code, sdeItemValue);
-                    } else {
-                        if (null == sdeAccumulators.get(sdeAccumulatorKey)) {
-                            HashMap<String, Integer> newSDEItem = new HashMap<>();
-                            newSDEItem.put(code, 1);
-                            sdeAccumulators.put(sdeAccumulatorKey, newSDEItem);
-                        } else {
-                            sdeAccumulators.get(sdeAccumulatorKey).put(code, 1);
+
+                    break;
+                }
+                case CONTINUOUSVARIABLE: {
+
+                    // Are they in the initial population?
+                    boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, subject,
+                            criteria.initialPopulationCriteria, group.initialPopulation, null, null);
+                    populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
+                            codeToResourceMap);
+
+                    if (inInitialPopulation) {
+                        // Are they in the measure population?
+                        Map<String, Resource> members = new LinkedHashMap<>();
+                        boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient, subject,
+                                criteria.measurePopulationCriteria, group.measurePopulation,
+                                criteria.measurePopulationExclusionCriteria, group.measurePopulationExclusion,
+                                members);
+
+                        // Observations are only evaluated for this patient's members of the measure
+                        // population
+                        if (inMeasurePopulation && group.observationAggregator != null) {
+                            for (Resource resource : members.values()) {
+                                Object result = evaluateObservationCriteria(context, patient, resource,
+                                        criteria.measureObservationCriteria);
+                                Double value = getObservationValue(result);
+                                if (value != null) {
+                                    group.observationAggregator.add(value);
+                                }
+                                if (group.observations != null) {
+                                    group.observations.add(
+                                            createObservation(result, criteria.measureObservationCriteria, report));
+                                }
+                            }
                         }
                     }
+
+                    break;
+                }
+                case COHORT: {
+                    evaluatePopulationCriteria(context, patient, subject, criteria.initialPopulationCriteria,
+                            group.initialPopulation, null, null);
+                    populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
+                            codeToResourceMap);
+
+                    break;
                 }
             }
         }
+
+        populateSDEAccumulators(context, patient, state.sdeAccumulator, sde);
     }
 
-    private MeasureReport processAccumulators(MeasureReport report, HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                              List<Measure.MeasureSupplementalDataComponent> sde, boolean isSingle, List<Patient> patients){
+    private void populateSDEAccumulators(Context context, Patient patient, SupplementalDataAccumulator sdeAccumulator,
+            List<Measure.MeasureSupplementalDataComponent> sde) {
+        if (sde.isEmpty()) {
+            return;
+        }
+
+        context.setContextValue("Patient", patient.getIdElement().getIdPart());
+        for (Measure.MeasureSupplementalDataComponent sdeItem : sde) {
+            Object value = context.resolveExpressionRef(sdeItem.getCriteria()).evaluate(context);
+            if (value != null) {
+                sdeAccumulator.add(getSDEKey(sdeItem), value);
+            }
+        }
+    }
+
+    private static String getSDEKey(Measure.MeasureSupplementalDataComponent sdeItem) {
+        String sdeKey = sdeItem.getId();
+        if (sdeKey == null || sdeKey.length() < 1) {
+            sdeKey = sdeItem.getCriteria();
+        }
+
+        return sdeKey;
+    }
+
+    private MeasureReport processAccumulators(MeasureReport report, SupplementalDataAccumulator sdeAccumulator,
+            boolean isSingle) {
         List<Reference> newRefList = new ArrayList<>();
-        sdeAccumulators.forEach((sdeKey, sdeAccumulator) -> {
-            sdeAccumulator.forEach((sdeAccumulatorKey, sdeAccumulatorValue)->{
+        sdeAccumulator.getCounts().forEach((sdeKey, codingCounts) -> {
+            for (SupplementalDataAccumulator.CodingCount codingCount : codingCounts) {
                 Observation obs = new Observation();
                 obs.setStatus(Observation.ObservationStatus.FINAL);
                 obs.setId(UUID.randomUUID().toString());
-                Coding valueCoding = new Coding();
-                if(sdeKey.equalsIgnoreCase("sde-sex")){
-                    valueCoding.setCode(sdeAccumulatorKey);
-                }else {
-                    String coreCategory = sdeKey.substring(sdeKey.lastIndexOf('-'));
-                    patients.forEach((pt)-> {
-                        pt.getExtension().forEach((ptExt) -> {
-                            if (ptExt.getUrl().contains(coreCategory)) {
-                                String code = ((Coding) ptExt.getExtension().get(0).getValue()).getCode();
-                                if(code.equalsIgnoreCase(sdeAccumulatorKey)) {
-                                    valueCoding.setSystem(((Coding) ptExt.getExtension().get(0).getValue()).getSystem());
-                                    valueCoding.setCode(code);
-                                    valueCoding.setDisplay(((Coding) ptExt.getExtension().get(0).getValue()).getDisplay());
-                                }
-                            }
-                        });
-                    });
-                }
+                Coding valueCoding = new Coding().setSystem(codingCount.getSystem()).setCode(codingCount.getCode())
+                        .setDisplay(codingCount.getDisplay());
                 CodeableConcept obsCodeableConcept = new CodeableConcept();
                 Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
                 Extension extExtMeasure = new Extension()
@@ -662,19 +834,18 @@ public class MeasureEvaluation {
                         .setValue(new StringType(sdeKey));
                 obsExtension.addExtension(extExtPop);
                 obs.addExtension(obsExtension);
-                obs.setValue(new IntegerType(sdeAccumulatorValue));
-                if(!isSingle) {
-                    valueCoding.setCode(sdeAccumulatorKey);
+                obs.setValue(new IntegerType(codingCount.getCount()));
+                if (!isSingle) {
                     obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
                     obs.setCode(obsCodeableConcept);
-                }else{
+                } else {
                     obs.setCode(new CodeableConcept().setText(sdeKey));
                     obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
                     obs.setValue(obsCodeableConcept);
                 }
                 newRefList.add(new Reference("#" + obs.getId()));
                 report.addContained(obs);
-            });
+            }
         });
 
         // TODO: Evaluated resources
@@ -712,4 +883,149 @@ public class MeasureEvaluation {
 
         context.clearEvaluatedResources();
     }
-}
\ No newline at end of file
+    private static PopulationMembership newMembership(Measure.MeasureGroupPopulationComponent criteria) {
+        return criteria != null ? new PopulationMembership() : null;
+    }
+
+    private static void mergeMembership(PopulationMembership target, PopulationMembership source) {
+        if (target != null && source != null) {
+            target.merge(source);
+        }
+    }
+
+    // Population criteria of a group, resolved once per evaluation to avoid a hash
+    // lookup on every patient
+    private static class GroupCriteria {
+        Measure.MeasureGroupComponent group;
+
+        // TODO: Isn't quite right, there may be multiple initial populations for a
+        // ratio measure...
+        Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
+        Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
+        Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
+        Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
+        Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
+        Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
+        Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
+        Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
+        // TODO: Isn't quite right, there may be multiple measure observations...
+        Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
+
+        GroupCriteria(Measure.MeasureGroupComponent group) {
+            this.group = group;
+            for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
+                MeasurePopulationType populationType = MeasurePopulationType
+                        .fromCode(pop.getCode().getCodingFirstRep().getCode());
+                if (populationType != null) {
+                    switch (populationType) {
+                        case INITIALPOPULATION:
+                            initialPopulationCriteria = pop;
+                            break;
+                        case NUMERATOR:
+                            numeratorCriteria = pop;
+                            break;
+                        case NUMERATOREXCLUSION:
+                            numeratorExclusionCriteria = pop;
+                            break;
+                        case DENOMINATOR:
+                            denominatorCriteria = pop;
+                            break;
+                        case DENOMINATOREXCLUSION:
+                            denominatorExclusionCriteria = pop;
+                            break;
+                        case DENOMINATOREXCEPTION:
+                            denominatorExceptionCriteria = pop;
+                            break;
+                        case MEASUREPOPULATION:
+                            measurePopulationCriteria = pop;
+                            break;
+                        case MEASUREPOPULATIONEXCLUSION:
+                            measurePopulationExclusionCriteria = pop;
+                            break;
+                        case MEASUREOBSERVATION:
+                            measureObservationCriteria = pop;
+                            break;
+                    }
+                }
+            }
+        }
+    }
+
+    // Population membership accumulated for a group
+    private static class GroupState {
+        PopulationMembership initialPopulation;
+        PopulationMembership numerator;
+        PopulationMembership numeratorExclusion;
+        PopulationMembership denominator;
+        PopulationMembership denominatorExclusion;
+        PopulationMembership denominatorException;
+        PopulationMembership measurePopulation;
+        PopulationMembership measurePopulationExclusion;
+
+        MeasureObservationAggregator observationAggregator;
+        List<Resource> observations;
+
+        GroupState(GroupCriteria criteria, MeasureReport.MeasureReportType type) {
+            initialPopulation = newMembership(criteria.initialPopulationCriteria);
+            numerator = newMembership(criteria.numeratorCriteria);
+            numeratorExclusion = newMembership(criteria.numeratorExclusionCriteria);
+            denominator = newMembership(criteria.denominatorCriteria);
+            denominatorExclusion = newMembership(criteria.denominatorExclusionCriteria);
+            denominatorException = newMembership(criteria.denominatorExceptionCriteria);
+            measurePopulation = newMembership(criteria.measurePopulationCriteria);
+            measurePopulationExclusion = newMembership(criteria.measurePopulationExclusionCriteria);
+
+            if (criteria.measureObservationCriteria != null && criteria.measureObservationCriteria.hasCriteria()) {
+                observationAggregator = new MeasureObservationAggregator(
+                        HapiProperties.getMeasureEvaluationMedianSampleSize());
+                observations = type == MeasureReport.MeasureReportType.INDIVIDUAL ? new ArrayList<>() : null;
+            }
+        }
+
+        void merge(GroupState other) {
+            mergeMembership(initialPopulation, other.initialPopulation);
+            mergeMembership(numerator, other.numerator);
+            mergeMembership(numeratorExclusion, other.numeratorExclusion);
+            mergeMembership(denominator, other.denominator);
+            mergeMembership(denominatorExclusion, other.denominatorExclusion);
+            mergeMembership(denominatorException, other.denominatorException);
+            mergeMembership(measurePopulation, other.measurePopulation);
+            mergeMembership(measurePopulationExclusion, other.measurePopulationExclusion);
+
+            if (observationAggregator != null) {
+                observationAggregator.merge(other.observationAggregator);
+            }
+            if (observations != null) {
+                observations.addAll(other.observations);
+            }
+        }
+    }
+
+    // Everything accumulated while evaluating a set of patients. When patients are
+    // evaluated in parallel each worker has its own state.
+    private static class EvaluationState {
+        SubjectIndex subjects;
+        List<GroupState> groups = new ArrayList<>();
+        HashMap<String, Resource> resources = new HashMap<>();
+        HashMap<String, HashSet<String>> codeToResourceMap = new HashMap<>();
+        SupplementalDataAccumulator sdeAccumulator = new SupplementalDataAccumulator();
+
+        EvaluationState(SubjectIndex subjects, List<GroupCriteria> groups, MeasureReport.MeasureReportType type) {
+            this.subjects = subjects;
+            for (GroupCriteria criteria : groups) {
+                this.groups.add(new GroupState(criteria, type));
+            }
+        }
+
+        void merge(EvaluationState other) {
+            for (int i = 0; i < groups.size(); i++) {
+                groups.get(i).merge(other.groups.get(i));
+            }
+
+            other.resources.forEach(resources::putIfAbsent);
+            other.codeToResourceMap.forEach(
+                    (code, ids) -> codeToResourceMap.computeIfAbsent(code, x -> new HashSet<>()).addAll(ids));
+            sdeAccumulator.merge(other.sdeAccumulator);
+        }
+    }
+}
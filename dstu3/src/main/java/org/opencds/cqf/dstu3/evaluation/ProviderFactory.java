@@ -1,7 +1,11 @@
 package org.opencds.cqf.dstu3.evaluation;
 
+import java.util.function.UnaryOperator;
+
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.ValueSetExpansionCache;
 import org.opencds.cqf.common.helpers.ClientHelper;
+import org.opencds.cqf.common.providers.CachingTerminologyProvider;
 import org.opencds.cqf.common.providers.Dstu3ApelonFhirTerminologyProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
@@ -9,6 +13,7 @@ import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.fhir.model.Dstu3FhirModelResolver;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.fhir.terminology.Dstu3FhirTerminologyProvider;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 
 import ca.uhn.fhir.context.FhirContext;
@@ -42,6 +47,11 @@ public class ProviderFactory implements EvaluationProviderFactory {
     }
 
     public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider) {
+        return this.createDataProvider(model, version, terminologyProvider, UnaryOperator.identity());
+    }
+
+    public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider,
+            UnaryOperator<RetrieveProvider> retrieveProviderWrapper) {
         if (model.equals("FHIR") && version.startsWith("3")) {
             Dstu3FhirModelResolver modelResolver = new Dstu3FhirModelResolver();
             JpaFhirRetrieveProvider retrieveProvider = new JpaFhirRetrieveProvider(this.registry,
@@ -49,7 +59,7 @@ public class ProviderFactory implements EvaluationProviderFactory {
             retrieveProvider.setTerminologyProvider(terminologyProvider);
             retrieveProvider.setExpandValueSets(true);
 
-            return new CompositeDataProvider(modelResolver, retrieveProvider);
+            return new CompositeDataProvider(modelResolver, retrieveProviderWrapper.apply(retrieveProvider));
         }
 
         throw new IllegalArgumentException(
@@ -60,10 +70,10 @@ public class ProviderFactory implements EvaluationProviderFactory {
             String pass) {
         if (url != null && !url.isEmpty()) {
             IGenericClient client = ClientHelper.getClient(FhirContext.forDstu3(), url, user, pass);
-            if (url.contains("apelon.com")) {
-                return new Dstu3ApelonFhirTerminologyProvider(client);
-            }
-            return new Dstu3FhirTerminologyProvider(client);
+            TerminologyProvider terminologyProvider = url.contains("apelon.com")
+                    ? new Dstu3ApelonFhirTerminologyProvider(client)
+                    : new Dstu3FhirTerminologyProvider(client);
+            return new CachingTerminologyProvider(terminologyProvider, url, ValueSetExpansionCache.getRemoteInstance());
         }
         return this.defaultTerminologyProvider;
     }
@@ -2,9 +2,14 @@ package org.opencds.cqf.dstu3.providers;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
+import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
@@ -22,11 +27,17 @@ import org.hl7.fhir.dstu3.model.Property;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.exceptions.FHIRException;
+import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.rest.annotation.IdParam;
@@ -39,6 +50,10 @@ public class ApplyCqlOperationProvider {
     private IFhirResourceDao<Bundle> bundleDao;
     FhirContext context;
 
+    // Compiled template libraries, keyed by the generated library source
+    private Cache<String, Library> templateCache = CacheBuilder.newBuilder()
+            .maximumSize(HapiProperties.getExpressionCacheMaxSize()).build();
+
     public ApplyCqlOperationProvider(EvaluationProviderFactory providerFactory, IFhirResourceDao<Bundle> bundleDao, FhirContext context) {
         this.providerFactory = providerFactory;
         this.bundleDao = bundleDao;
@@ -61,43 +76,109 @@ public class ApplyCqlOperationProvider {
     }
 
     public Bundle applyCql(Bundle bundle) throws FHIRException {
+        List<Resource> resources = new ArrayList<>();
         for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
             if (entry.hasResource()) {
-                applyCqlToResource(entry.getResource());
+                resources.add(entry.getResource());
             }
         }
 
+        applyCql(resources);
         return bundle;
     }
 
     public Resource applyCqlToResource(Resource resource) throws FHIRException {
-        Library library;
-        Context context;
-        // String fhirVersion = this.context.getVersion().getVersion().getFhirVersionString();
-        String fhirVersion = "3.0.0";
-        for (Property child : resource.children()) {
-            for (Base base : child.getValues()) {
-                if (base != null) {
-                    List<String> extension = getExtension(base);
-                    if (!extension.isEmpty()) {
-                        String cql = String.format("using FHIR version '"+ fhirVersion + "' define x: %s", extension.get(1));
-                        library = TranslatorHelper.translateLibrary(cql, new LibraryManager(new ModelManager()),
-                                new ModelManager());
-                        context = new Context(library);
-                        context.registerDataProvider("http://hl7.org/fhir",
-                                this.providerFactory.createDataProvider("FHIR", fhirVersion));
-                        Object result = context.resolveExpressionRef("x").getExpression().evaluate(context);
-                        if (extension.get(0).equals("extension")) {
-                            resource.setProperty(child.getName(), resolveType(result, base.fhirType()));
-                        } else {
-                            String type = base.getChildByName(extension.get(0)).getTypeCode();
-                            base.setProperty(extension.get(0), resolveType(result, type));
+        applyCql(Collections.singletonList(resource));
+        return resource;
+    }
+
+    // A value with a cqif-cqlExpression extension, and the define of the expression
+    private static class ExpressionSite {
+        private Resource resource;
+        private Property child;
+        private Base base;
+        private String propertyName;
+        private String define;
+    }
+
+    // The expressions of all the resources are compiled into a single library,
+    // with a define for each distinct expression, and evaluated in a single
+    // Context. The compiled library is reused for resources with the same
+    // expressions.
+    private void applyCql(List<Resource> resources) throws FHIRException {
+        List<ExpressionSite> sites = new ArrayList<>();
+        Map<String, String> defines = new LinkedHashMap<>();
+        for (Resource resource : resources) {
+            for (Property child : resource.children()) {
+                for (Base base : child.getValues()) {
+                    if (base != null) {
+                        List<String> extension = getExtension(base);
+                        if (!extension.isEmpty()) {
+                            String define = defines.get(extension.get(1));
+                            if (define == null) {
+                                define = "x" + defines.size();
+                                defines.put(extension.get(1), define);
+                            }
+
+                            ExpressionSite site = new ExpressionSite();
+                            site.resource = resource;
+                            site.child = child;
+                            site.base = base;
+                            site.propertyName = extension.get(0);
+                            site.define = define;
+                            sites.add(site);
                         }
                     }
                 }
             }
         }
-        return resource;
+
+        if (sites.isEmpty()) {
+            return;
+        }
+
+        // String fhirVersion = this.context.getVersion().getVersion().getFhirVersionString();
+        String fhirVersion = "3.0.0";
+        StringBuilder cql = new StringBuilder("using FHIR version '" + fhirVersion + "'\n");
+        for (Map.Entry<String, String> define : defines.entrySet()) {
+            cql.append("define ").append(define.getValue()).append(": ").append(define.getKey()).append("\n");
+        }
+
+        Context context = new Context(getTemplateLibrary(cql.toString()));
+        context.registerDataProvider("http://hl7.org/fhir",
+                this.providerFactory.createDataProvider("FHIR", fhirVersion));
+
+        for (ExpressionSite site : sites) {
+            Object result = context.resolveExpressionRef(site.define).getExpression().evaluate(context);
+            if (site.propertyName.equals("extension")) {
+                site.resource.setProperty(site.child.getName(), resolveType(result, site.base.fhirType()));
+            } else {
+                String type = site.base.getChildByName(site.propertyName).getTypeCode();
+                site.base.setProperty(site.propertyName, resolveType(result, type));
+            }
+        }
+    }
+
+    private Library getTemplateLibrary(String cql) {
+        try {
+            return this.templateCache.get(cql, () -> {
+                ModelManager modelManager = SharedModelManager.getInstance();
+                CqlTranslator translator = TranslatorHelper.getTranslator(cql, new LibraryManager(modelManager),
+                        modelManager);
+                if (translator.getErrors().size() > 0) {
+                    throw new IllegalArgumentException("Errors translating cqif-cqlExpression extensions: "
+                            + TranslatorHelper.errorsToString(translator.getErrors()));
+                }
+
+                return TranslatorHelper.translateLibrary(translator);
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IllegalArgumentException(e.getCause().getMessage(), e.getCause());
+        }
     }
 
     private List<String> getExtension(Base base) {
@@ -0,0 +1,369 @@
+package org.opencds.cqf.dstu3.providers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.Binary;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.Task;
+import org.hl7.fhir.dstu3.model.Type;
+import org.hl7.fhir.dstu3.model.UnsignedIntType;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CancellationToken;
+import org.opencds.cqf.common.evaluation.EvaluationCancelledException;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Runs long operations (e.g. population $evaluate-measure) as jobs following
+ * the FHIR asynchronous request pattern. The kick-off request is answered with
+ * 202 Accepted and a Content-Location pointing to $async-status, which answers
+ * 202 with an X-Progress header while the job runs and returns the result once
+ * it is complete. $async-cancel cancels a job. Operations that may run as jobs
+ * are declared with manualResponse, as the 202 responses are written directly.
+ *
+ * Job state is stored as a Task resource, so any server sharing the database
+ * can answer a status poll. The result is stored as a Binary referenced from
+ * the Task output, so it is written once rather than with every update of the
+ * Task. Jobs run on a bounded pool (see async.threads and
+ * async.queue_size) and are not resumed after a restart; a job whose Task has
+ * not been updated for async.stale_minutes is reported as failed.
+ */
+public class AsyncJobProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncJobProvider.class);
+
+    private static final String EVALUATED = "evaluated";
+    private static final String TOTAL = "total";
+    private static final String RESULT = "result";
+
+    private static ExecutorService executor;
+    private static ScheduledExecutorService heartbeat;
+
+    private DaoRegistry registry;
+    private FhirContext fhirContext;
+    private Map<String, EvaluationProgress> runningJobs = new ConcurrentHashMap<>();
+
+    public AsyncJobProvider(DaoRegistry registry, FhirContext fhirContext) {
+        this.registry = registry;
+        this.fhirContext = fhirContext;
+
+        int heartbeatSeconds = HapiProperties.getAsyncHeartbeatSeconds();
+        getHeartbeat().scheduleWithFixedDelay(this::saveProgress, heartbeatSeconds, heartbeatSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = HapiProperties.getAsyncThreads();
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, HapiProperties.getAsyncQueueSize())),
+                    new ThreadFactoryBuilder().setNameFormat("async-job-%d").setDaemon(true).build());
+        }
+
+        return executor;
+    }
+
+    private static synchronized ScheduledExecutorService getHeartbeat() {
+        if (heartbeat == null) {
+            heartbeat = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("async-job-heartbeat-%d").setDaemon(true).build());
+        }
+
+        return heartbeat;
+    }
+
+    public static boolean isAsyncRequested(RequestDetails requestDetails) {
+        if (requestDetails == null) {
+            return false;
+        }
+
+        List<String> prefer = requestDetails.getHeaders(Constants.HEADER_PREFER);
+        return prefer != null && prefer.stream().anyMatch(x -> x.toLowerCase().contains("respond-async"));
+    }
+
+    /**
+     * Starts the work as a job and answers the kick-off request with 202 Accepted
+     * and the status endpoint as Content-Location. The kick-off operation returns
+     * null afterwards. Throws 503 if too many jobs are waiting.
+     */
+    public void submit(RequestDetails requestDetails, String description,
+            Function<EvaluationProgress, Resource> work) {
+        Task task = new Task();
+        task.setStatus(Task.TaskStatus.ACCEPTED);
+        task.setIntent(Task.TaskIntent.ORDER);
+        task.setDescription(description);
+        task.setAuthoredOn(new Date());
+        task.setLastModified(new Date());
+        String id = this.getTaskDao().create(task).getId().getIdPart();
+
+        // The job has the time budget of the request, counted from its kick-off
+        EvaluationProgress progress = new EvaluationProgress(
+                new CancellationToken(CancellationToken.forRequest(requestDetails).getBudgetMillis()));
+        this.runningJobs.put(id, progress);
+        try {
+            getExecutor().submit(() -> this.run(id, progress, work));
+        } catch (RejectedExecutionException e) {
+            this.runningJobs.remove(id);
+            this.fail(id, "Too many asynchronous requests");
+            throw new UnclassifiedServerFailureException(503,
+                    "Too many asynchronous requests are in progress, retry later");
+        }
+
+        logger.info("Accepted async job {}: {}", id, description);
+
+        HttpServletResponse response = getServletResponse(requestDetails);
+        response.addHeader(Constants.HEADER_CONTENT_LOCATION,
+                requestDetails.getFhirServerBase() + "/$async-status?id=" + id);
+        response.setStatus(Constants.STATUS_HTTP_202_ACCEPTED);
+    }
+
+    @Operation(name = "$async-status", idempotent = true, manualResponse = true)
+    public Resource asyncStatus(RequestDetails theRequestDetails,
+            @OperationParam(name = "id", min = 1, max = 1) String id) {
+        Task task = this.readTask(id);
+        switch (task.getStatus()) {
+            case COMPLETED:
+                return this.readResult(id, task);
+            case CANCELLED:
+                throw new ResourceNotFoundException("Async job " + id + " was cancelled");
+            case FAILED:
+                throw new InternalErrorException("Async job " + id + " failed: " + task.getStatusReason().getText());
+            default:
+                if (!this.runningJobs.containsKey(id) && isStale(task)) {
+                    this.fail(id, "The job was interrupted");
+                    throw new InternalErrorException("Async job " + id + " was interrupted");
+                }
+
+                HttpServletResponse response = getServletResponse(theRequestDetails);
+                response.addHeader(Constants.HEADER_X_PROGRESS, getProgress(task));
+                response.addHeader(Constants.HEADER_RETRY_AFTER, HapiProperties.getAsyncHeartbeatSeconds().toString());
+                response.setStatus(Constants.STATUS_HTTP_202_ACCEPTED);
+                return null;
+        }
+    }
+
+    @Operation(name = "$async-cancel")
+    public OperationOutcome asyncCancel(@OperationParam(name = "id", min = 1, max = 1) String id) {
+        boolean cancelled = this.updateTask(id, task -> {
+            if (task.getStatus() != Task.TaskStatus.ACCEPTED && task.getStatus() != Task.TaskStatus.INPROGRESS) {
+                return false;
+            }
+
+            task.setStatus(Task.TaskStatus.CANCELLED);
+            task.setLastModified(new Date());
+            return true;
+        });
+
+        // A job running on another server is cancelled by that server's heartbeat
+        EvaluationProgress progress = this.runningJobs.get(id);
+        if (progress != null) {
+            progress.getCancellationToken().cancel("Cancelled by the client");
+        }
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics(cancelled ? "Async job " + id + " was cancelled"
+                        : "Async job " + id + " has already finished");
+        return outcome;
+    }
+
+    private void run(String id, EvaluationProgress progress, Function<EvaluationProgress, Resource> work) {
+        try {
+            progress.getCancellationToken().checkCancelled();
+            this.updateTask(id, task -> {
+                task.setStatus(Task.TaskStatus.INPROGRESS);
+                task.setLastModified(new Date());
+                return true;
+            });
+
+            Resource result = work.apply(progress);
+            Reference resultReference = this.storeResult(result);
+            this.updateTask(id, task -> {
+                task.setStatus(Task.TaskStatus.COMPLETED);
+                task.setLastModified(new Date());
+                setProgress(task, progress);
+                task.addOutput().setType(new CodeableConcept().setText(RESULT)).setValue(resultReference);
+                return true;
+            });
+
+            logger.info("Async job {} completed", id);
+        } catch (EvaluationCancelledException e) {
+            logger.info("Async job {} was cancelled", id);
+        } catch (Exception e) {
+            logger.error("Async job {} failed", id, e);
+            this.fail(id, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        } finally {
+            this.runningJobs.remove(id);
+        }
+    }
+
+    // Results such as population reports and care gaps of large groups may be
+    // large, and aren't necessarily resources the server stores (e.g. Parameters),
+    // so each is kept as a Binary of its own
+    private Reference storeResult(Resource result) {
+        Binary binary = new Binary();
+        binary.setContentType(Constants.CT_FHIR_JSON_NEW);
+        binary.setContent(this.fhirContext.newJsonParser().encodeResourceToString(result)
+                .getBytes(StandardCharsets.UTF_8));
+        IdType id = (IdType) this.registry.getResourceDao(Binary.class).create(binary).getId();
+        return new Reference(id.toUnqualifiedVersionless());
+    }
+
+    private Resource readResult(String id, Task task) {
+        Type result = getOutput(task, RESULT);
+        if (!(result instanceof Reference)) {
+            throw new InternalErrorException("Async job " + id + " has no result");
+        }
+
+        Binary binary = this.registry.getResourceDao(Binary.class)
+                .read(new IdType(((Reference) result).getReference()));
+        return (Resource) this.fhirContext.newJsonParser()
+                .parseResource(new String(binary.getContent(), StandardCharsets.UTF_8));
+    }
+
+    private void fail(String id, String reason) {
+        this.updateTask(id, task -> {
+            task.setStatus(Task.TaskStatus.FAILED);
+            task.setStatusReason(new CodeableConcept().setText(reason));
+            task.setLastModified(new Date());
+            return true;
+        });
+    }
+
+    // Saves the progress of the jobs running on this server. This also marks the
+    // jobs as alive, and picks up cancellations made through other servers.
+    private void saveProgress() {
+        for (Map.Entry<String, EvaluationProgress> job : this.runningJobs.entrySet()) {
+            EvaluationProgress progress = job.getValue();
+            try {
+                this.updateTask(job.getKey(), task -> {
+                    if (task.getStatus() == Task.TaskStatus.CANCELLED) {
+                        progress.getCancellationToken().cancel("Cancelled by the client");
+                        return false;
+                    }
+
+                    if (task.getStatus() != Task.TaskStatus.ACCEPTED && task.getStatus() != Task.TaskStatus.INPROGRESS) {
+                        return false;
+                    }
+
+                    setProgress(task, progress);
+                    task.setLastModified(new Date());
+                    return true;
+                });
+            } catch (Exception e) {
+                logger.warn("Error saving progress of async job {}", job.getKey(), e);
+            }
+        }
+    }
+
+    // Applies the change to the current version of the Task and saves it, unless
+    // the change returns false or the Task has been cancelled meanwhile. Saves are
+    // made against the version read, so concurrent updates from other threads or
+    // servers are retried rather than lost.
+    private boolean updateTask(String id, Predicate<Task> change) {
+        for (int attempt = 0;; attempt++) {
+            Task task = this.readTask(id);
+            boolean wasCancelled = task.getStatus() == Task.TaskStatus.CANCELLED;
+            if (!change.test(task) || (wasCancelled && task.getStatus() != Task.TaskStatus.CANCELLED)) {
+                return false;
+            }
+
+            try {
+                this.getTaskDao().update(task);
+                return true;
+            } catch (ResourceVersionConflictException e) {
+                if (attempt >= 3) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private Task readTask(String id) {
+        return this.getTaskDao().read(new IdType("Task", id));
+    }
+
+    private IFhirResourceDao<Task> getTaskDao() {
+        return this.registry.getResourceDao(Task.class);
+    }
+
+    private static HttpServletResponse getServletResponse(RequestDetails requestDetails) {
+        ServletRequestDetails servletRequestDetails = (ServletRequestDetails) requestDetails;
+        HttpServletResponse response = servletRequestDetails.getServletResponse();
+        servletRequestDetails.getServer().addHeadersToResponse(response);
+        return response;
+    }
+
+    private static boolean isStale(Task task) {
+        Date lastUpdated = task.getMeta().getLastUpdated() != null ? task.getMeta().getLastUpdated()
+                : task.getLastModified();
+        return lastUpdated == null || System.currentTimeMillis() - lastUpdated.getTime() > TimeUnit.MINUTES
+                .toMillis(HapiProperties.getAsyncStaleMinutes());
+    }
+
+    private static void setProgress(Task task, EvaluationProgress progress) {
+        task.getOutput().removeIf(x -> EVALUATED.equals(x.getType().getText()) || TOTAL.equals(x.getType().getText()));
+        task.addOutput().setType(new CodeableConcept().setText(EVALUATED))
+                .setValue(new UnsignedIntType((int) progress.getEvaluated()));
+        if (progress.getTotal() != null) {
+            task.addOutput().setType(new CodeableConcept().setText(TOTAL))
+                    .setValue(new UnsignedIntType(progress.getTotal().intValue()));
+        }
+    }
+
+    private static String getProgress(Task task) {
+        if (task.getStatus() == Task.TaskStatus.ACCEPTED) {
+            return "Waiting to start";
+        }
+
+        Type evaluated = getOutput(task, EVALUATED);
+        Type total = getOutput(task, TOTAL);
+        if (evaluated == null) {
+            return "In progress";
+        }
+
+        return total != null ? evaluated.primitiveValue() + " of " + total.primitiveValue() + " patients evaluated"
+                : evaluated.primitiveValue() + " patients evaluated";
+    }
+
+    private static Type getOutput(Task task, String type) {
+        return task.getOutput().stream().filter(x -> type.equals(x.getType().getText())).map(x -> x.getValue())
+                .findFirst().orElse(null);
+    }
+}
@@ -6,6 +6,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.lang3.tuple.Triple;
 import org.cqframework.cql.cql2elm.CqlTranslator;
@@ -24,7 +25,10 @@ import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.dstu3.model.Type;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CancellationToken;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.LibraryCache;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
 import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
@@ -38,8 +42,13 @@ import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.dstu3.helpers.FhirMeasureBundler;
 import org.opencds.cqf.dstu3.helpers.LibraryHelper;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 /**
  * Created by Bryn on 1/16/2017.
@@ -48,6 +57,14 @@ public class CqlExecutionProvider {
     private EvaluationProviderFactory providerFactory;
     private LibraryResolutionProvider<Library> libraryResolutionProvider;
 
+    // Compiled expression libraries, keyed by the generated library source, the
+    // versions of the libraries it includes and the generation of the LibraryCache
+    private Cache<String, org.cqframework.cql.elm.execution.Library> expressionCache = CacheBuilder.newBuilder()
+            .maximumSize(HapiProperties.getExpressionCacheMaxSize()).build();
+
+    private LibraryLoader libraryLoader;
+    private long libraryLoaderGeneration;
+
     public CqlExecutionProvider(LibraryResolutionProvider<Library> libraryResolutionProvider,
             EvaluationProviderFactory providerFactory) {
         this.providerFactory = providerFactory;
@@ -81,7 +98,7 @@ public class CqlExecutionProvider {
         return cleanRefs;
     }
 
-    private Iterable<Reference> getLibraryReferences(DomainResource instance) {
+    private List<Reference> getLibraryReferences(DomainResource instance) {
         List<Reference> references = new ArrayList<>();
 
         if (instance.hasContained()) {
@@ -123,6 +140,24 @@ public class CqlExecutionProvider {
         return cleanReferences(references);
     }
 
+    // Resolves each referenced library once, so a missing library is reported
+    // before the expression is translated
+    private List<Library> resolveLibraries(Iterable<Reference> references) {
+        List<Library> libraries = new ArrayList<>();
+        for (Reference reference : references) {
+            Library lib = this.libraryResolutionProvider.resolveLibraryByName(
+                    reference.getReferenceElement().getIdPart(), reference.getReferenceElement().getVersionIdPart());
+            if (lib == null) {
+                throw new IllegalArgumentException(
+                        "Library " + reference.getReferenceElement().getValue() + " not found");
+            }
+
+            libraries.add(lib);
+        }
+
+        return libraries;
+    }
+
     private String buildIncludes(Iterable<Reference> references) {
         StringBuilder builder = new StringBuilder();
         for (Reference reference : references) {
@@ -156,7 +191,8 @@ public class CqlExecutionProvider {
      * is loaded into the context for the expression
      */
     public Object evaluateInContext(DomainResource instance, String cql, String patientId) {
-        Iterable<Reference> libraries = getLibraryReferences(instance);
+        List<Reference> libraries = getLibraryReferences(instance);
+        List<Library> resolved = resolveLibraries(libraries);
         //String fhirVersion = this.context.getVersion().getVersion().getFhirVersionString();
         String fhirVersion = "3.0.0";
 
@@ -173,10 +209,10 @@ public class CqlExecutionProvider {
         // buildIncludes(libraries), instance.fhirType(), instance.fhirType(),
         // instance.fhirType(), cql);
 
-        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        LibraryLoader libraryLoader = getLibraryLoader();
 
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(source,
-                libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
+        org.cqframework.cql.elm.execution.Library library = getExpressionLibrary(
+                source + "|" + getLibraryVersions(libraries, resolved), source, libraryLoader);
         Context context = new Context(library);
         context.setParameter(null, instance.fhirType(), instance);
         context.setParameter(null, "%context", instance);
@@ -188,9 +224,55 @@ public class CqlExecutionProvider {
         return context.resolveExpressionRef("Expression").evaluate(context);
     }
 
+    // The generation of the LibraryCache changes whenever a library is written, so
+    // entries compiled against a previous version of an included library are no
+    // longer found
+    private String getLibraryVersions(List<Reference> references, List<Library> libraries) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(LibraryCache.getInstance().getGeneration()).append(";");
+        for (int i = 0; i < references.size(); i++) {
+            builder.append(references.get(i).getReferenceElement().getIdPart()).append("-")
+                    .append(libraries.get(i).getVersion()).append(";");
+        }
+
+        return builder.toString();
+    }
+
+    private org.cqframework.cql.elm.execution.Library getExpressionLibrary(String key, String source,
+            LibraryLoader libraryLoader) {
+        try {
+            return this.expressionCache.get(key, () -> {
+                // The translator's LibraryManager is shared by the evaluations using the
+                // loader, and loads libraries under the loader's lock
+                synchronized (libraryLoader) {
+                    return TranslatorHelper.translateLibrary(source, libraryLoader.getLibraryManager(),
+                            libraryLoader.getModelManager());
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IllegalArgumentException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Expressions are evaluated with a shared LibraryLoader, replaced whenever a
+    // library is written since a loader keeps the libraries it has loaded
+    private synchronized LibraryLoader getLibraryLoader() {
+        long generation = LibraryCache.getInstance().getGeneration();
+        if (this.libraryLoader == null || this.libraryLoaderGeneration != generation) {
+            this.libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+            this.libraryLoaderGeneration = generation;
+        }
+
+        return this.libraryLoader;
+    }
+
     @SuppressWarnings("unchecked")
     @Operation(name = "$cql")
-    public Bundle evaluate(@OperationParam(name = "code") String code,
+    public Bundle evaluate(RequestDetails theRequestDetails, @OperationParam(name = "code") String code,
             @OperationParam(name = "patientId") String patientId,
             @OperationParam(name = "periodStart") String periodStart,
             @OperationParam(name = "periodEnd") String periodEnd,
@@ -292,9 +374,11 @@ public class CqlExecutionProvider {
             context.setParameter(null, "Product Line", productLine);
         }
 
+        CancellationToken cancellationToken = CancellationToken.forRequest(theRequestDetails);
         context.setExpressionCaching(true);
         if (library.getStatements() != null) {
             for (org.cqframework.cql.elm.execution.ExpressionDef def : library.getStatements().getDef()) {
+                cancellationToken.checkCancelled();
                 context.enterContext(def.getContext());
                 if (patientId != null && !patientId.isEmpty()) {
                     context.setContextValue(context.getCurrentContext(), patientId);
@@ -17,6 +17,7 @@ import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
 import org.hl7.fhir.dstu3.model.Composition;
+import org.hl7.fhir.dstu3.model.DataRequirement;
 import org.hl7.fhir.dstu3.model.DetectedIssue;
 import org.hl7.fhir.dstu3.model.Extension;
 import org.hl7.fhir.dstu3.model.Group;
@@ -37,10 +38,15 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CancellationToken;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.PatientDataPrefetch;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.fhir.model.Dstu3FhirModelResolver;
 import org.opencds.cqf.dstu3.evaluation.MeasureEvaluation;
 import org.opencds.cqf.dstu3.evaluation.MeasureEvaluationSeed;
 import org.opencds.cqf.dstu3.helpers.LibraryHelper;
@@ -72,15 +78,17 @@ public class MeasureOperationsProvider {
     private MeasureResourceProvider measureResourceProvider;
     private DaoRegistry registry;
     private EvaluationProviderFactory factory;
+    private AsyncJobProvider asyncJobProvider;
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureOperationsProvider.class);
 
     public MeasureOperationsProvider(DaoRegistry registry, EvaluationProviderFactory factory,
             NarrativeProvider narrativeProvider, HQMFProvider hqmfProvider,
             LibraryResolutionProvider<Library> libraryResolutionProvider,
-            MeasureResourceProvider measureResourceProvider) {
+            MeasureResourceProvider measureResourceProvider, AsyncJobProvider asyncJobProvider) {
         this.registry = registry;
         this.factory = factory;
+        this.asyncJobProvider = asyncJobProvider;
 
         this.libraryResolutionProvider = libraryResolutionProvider;
         this.narrativeProvider = narrativeProvider;
@@ -162,8 +170,8 @@ public class MeasureOperationsProvider {
      * for the FHIR $evaluate-measure operation
      *
      */
-    @Operation(name = "$evaluate-measure", idempotent = true, type = Measure.class)
-    public MeasureReport evaluateMeasure(@IdParam IdType theId,
+    @Operation(name = "$evaluate-measure", idempotent = true, type = Measure.class, manualResponse = true)
+    public MeasureReport evaluateMeasure(RequestDetails theRequestDetails, @IdParam IdType theId,
             @OperationParam(name = "periodStart") String periodStart,
             @OperationParam(name = "periodEnd") String periodEnd, @OperationParam(name = "measure") String measureRef,
             @OperationParam(name = "reportType") String reportType, @OperationParam(name = "patient") String patientRef,
@@ -172,6 +180,24 @@ public class MeasureOperationsProvider {
             @OperationParam(name = "lastReceivedOn") String lastReceivedOn,
             @OperationParam(name = "source") String source, @OperationParam(name = "user") String user,
             @OperationParam(name = "pass") String pass) throws InternalErrorException, FHIRException {
+        if (AsyncJobProvider.isAsyncRequested(theRequestDetails)) {
+            this.asyncJobProvider.submit(theRequestDetails,
+                    "$evaluate-measure " + theId.toUnqualifiedVersionless().getValue(),
+                    progress -> this.evaluateMeasure(theId, periodStart, periodEnd, measureRef, reportType, patientRef,
+                            productLine, practitionerRef, lastReceivedOn, source, user, pass, progress,
+                            progress.getCancellationToken()));
+            return null;
+        }
+
+        return this.evaluateMeasure(theId, periodStart, periodEnd, measureRef, reportType, patientRef, productLine,
+                practitionerRef, lastReceivedOn, source, user, pass, null,
+                CancellationToken.forRequest(theRequestDetails));
+    }
+
+    private MeasureReport evaluateMeasure(IdType theId, String periodStart, String periodEnd, String measureRef,
+            String reportType, String patientRef, String productLine, String practitionerRef, String lastReceivedOn,
+            String source, String user, String pass, EvaluationProgress progress,
+            CancellationToken cancellationToken) {
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
         MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader,
                 this.libraryResolutionProvider);
@@ -181,11 +207,23 @@ public class MeasureOperationsProvider {
             throw new RuntimeException("Could not find Measure/" + theId.getIdPart());
         }
 
+        // Population reports may load the data required by the measure for blocks of
+        // patients at a time rather than retrieve it patient by patient
+        PatientDataPrefetch prefetch = null;
+        if (("patient-list".equals(reportType) || "population".equals(reportType))
+                && HapiProperties.getMeasureEvaluationPrefetchEnabled()) {
+            prefetch = createPatientDataPrefetch(measure);
+            seed.setPatientDataPrefetch(prefetch);
+        }
+
         seed.setup(measure, periodStart, periodEnd, productLine, source, user, pass);
 
         // resolve report type
         MeasureEvaluation evaluator = new MeasureEvaluation(this.registry,
-                seed.getMeasurementPeriod());
+                seed.getMeasurementPeriod(), seed::createContext);
+        evaluator.setPatientDataPrefetch(prefetch);
+        evaluator.setProgress(progress);
+        evaluator.setCancellationToken(cancellationToken);
         if (reportType != null) {
             switch (reportType) {
                 case "patient":
@@ -211,6 +249,15 @@ public class MeasureOperationsProvider {
         return report;
     }
 
+    private PatientDataPrefetch createPatientDataPrefetch(Measure measure) {
+        List<String> dataTypes = this.dataRequirementsProvider
+                .getDataRequirements(measure, this.libraryResolutionProvider).getDataRequirement().stream()
+                .map(DataRequirement::getType).collect(Collectors.toList());
+
+        return new PatientDataPrefetch(this.registry, this.measureResourceProvider.getDao().getContext(),
+                new Dstu3FhirModelResolver(), dataTypes, HapiProperties.getMeasureEvaluationPrefetchBlockSize());
+    }
+
     // @Operation(name = "$evaluate-measure-with-source", idempotent = true)
     // public MeasureReport evaluateMeasure(@IdParam IdType theId,
     // @OperationParam(name = "sourceData", min = 1, max = 1, type = Bundle.class)
@@ -243,12 +290,27 @@ public class MeasureOperationsProvider {
     // "");
     // }
 
-    @Operation(name = "$care-gaps", idempotent = true, type = Measure.class)
-    public Parameters careGapsReport(@OperationParam(name = "periodStart") String periodStart,
+    @Operation(name = "$care-gaps", idempotent = true, type = Measure.class, manualResponse = true)
+    public Parameters careGapsReport(RequestDetails theRequestDetails,
+                                     @OperationParam(name = "periodStart") String periodStart,
                                      @OperationParam(name = "periodEnd") String periodEnd, @OperationParam(name = "subject") String subject,
                                      @OperationParam(name = "topic") String topic,@OperationParam(name = "practitioner") String practitioner,
                                      @OperationParam(name = "measure") String measure, @OperationParam(name="status")String status,
                                      @OperationParam(name = "organization") String organization){
+        if (AsyncJobProvider.isAsyncRequested(theRequestDetails)) {
+            this.asyncJobProvider.submit(theRequestDetails, "$care-gaps " + subject,
+                    progress -> this.careGapsReport(periodStart, periodEnd, subject, topic, practitioner, measure,
+                            status, organization, progress, progress.getCancellationToken()));
+            return null;
+        }
+
+        return this.careGapsReport(periodStart, periodEnd, subject, topic, practitioner, measure, status,
+                organization, null, CancellationToken.forRequest(theRequestDetails));
+    }
+
+    private Parameters careGapsReport(String periodStart, String periodEnd, String subject, String topic,
+            String practitioner, String measure, String status, String organization, EvaluationProgress progress,
+            CancellationToken cancellationToken) {
         //TODO: status - optional if null all gaps - if closed-gap code only those gaps that are closed if open-gap code only those that are open
         //TODO: topic should allow many and be a union of them
         //TODO: "The Server needs to make sure that practitioner is authorized to get the gaps in care report for and know what measures the practitioner are eligible or qualified."
@@ -261,14 +323,22 @@ public class MeasureOperationsProvider {
                 return returnParams;
             }else if(subject.startsWith("Group/")) {
                 returnParams.setId((status==null?"all-gaps": status) + "-" + subject.replace("/","_") + "-report");
-                (getPatientListFromGroup(subject))
+                List<String> groupSubjects = getPatientListFromGroup(subject);
+                if (progress != null) {
+                    progress.setTotal((long) groupSubjects.size());
+                }
+                groupSubjects
                     .forEach(groupSubject ->{
+                        cancellationToken.checkCancelled();
                         Bundle patientGapBundle = patientCareGap(periodStart, periodEnd, groupSubject, topic, measure, status);
                         if(null != patientGapBundle){
                             returnParams.addParameter(new Parameters.ParametersParameterComponent()
                                     .setName("Gaps in Care Report - " + groupSubject)
                                     .setResource(patientGapBundle));
                         }
+                        if (progress != null) {
+                            progress.patientEvaluated();
+                        }
                     });
             }
             return returnParams;
@@ -374,7 +444,7 @@ public class MeasureOperationsProvider {
 
             // TODO - this is configured for patient-level evaluation only
             report = evaluateMeasure(measureResource.getIdElement(), periodStart, periodEnd, null, "patient", subject, null,
-            null, null, null, null, null);
+            null, null, null, null, null, null, null);
 
             report.setId(UUID.randomUUID().toString());
             report.setDate(new Date());
@@ -537,7 +607,7 @@ public class MeasureOperationsProvider {
         // TODO: Spec says that the periods are not required, but I am not sure what to
         // do when they aren't supplied so I made them required
         MeasureReport report = evaluateMeasure(theId, periodStart, periodEnd, null, null, patientRef, null,
-                practitionerRef, lastReceivedOn, null, null, null);
+                practitionerRef, lastReceivedOn, null, null, null, null, null);
         report.setGroup(null);
 
         Parameters parameters = new Parameters();
@@ -22,6 +22,7 @@ import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CancellationToken;
 import org.opencds.cqf.common.exceptions.NotImplementedException;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.fhir.model.Dstu3FhirModelResolver;
@@ -45,6 +46,7 @@ import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 public class PlanDefinitionApplyProvider {
 
@@ -76,7 +78,8 @@ public class PlanDefinitionApplyProvider {
     }
 
     @Operation(name = "$apply", idempotent = true, type = PlanDefinition.class)
-    public CarePlan applyPlanDefinition(@IdParam IdType theId, @OperationParam(name = "patient") String patientId,
+    public CarePlan applyPlanDefinition(RequestDetails theRequestDetails, @IdParam IdType theId,
+            @OperationParam(name = "patient") String patientId,
             @OperationParam(name = "encounter") String encounterId,
             @OperationParam(name = "practitioner") String practitionerId,
             @OperationParam(name = "organization") String organizationId,
@@ -86,6 +89,14 @@ public class PlanDefinitionApplyProvider {
             @OperationParam(name = "setting") String setting,
             @OperationParam(name = "settingContext") String settingContext)
             throws IOException, JAXBException, FHIRException {
+        return this.applyPlanDefinition(theId, patientId, encounterId, practitionerId, organizationId, userType,
+                userLanguage, userTaskContext, setting, settingContext,
+                CancellationToken.forRequest(theRequestDetails));
+    }
+
+    private CarePlan applyPlanDefinition(IdType theId, String patientId, String encounterId, String practitionerId,
+            String organizationId, String userType, String userLanguage, String userTaskContext, String setting,
+            String settingContext, CancellationToken cancellationToken) throws IOException, JAXBException, FHIRException {
         PlanDefinition planDefinition = this.planDefinitionDao.read(theId);
 
         if (planDefinition == null) {
@@ -109,13 +120,15 @@ public class PlanDefinitionApplyProvider {
             builder.buildLanguage(userLanguage);
 
         Session session = new Session(planDefinition, builder, patientId, encounterId, practitionerId, organizationId,
-                userType, userLanguage, userTaskContext, setting, settingContext);
+                userType, userLanguage, userTaskContext, setting, settingContext, cancellationToken);
 
         return resolveActions(session);
     }
 
     private CarePlan resolveActions(Session session) {
         for (PlanDefinition.PlanDefinitionActionComponent action : session.getPlanDefinition().getAction()) {
+            session.getCancellationToken().checkCancelled();
+
             // TODO - Apply input/output dataRequirements?
             if (meetsConditions(session, action)) {
                 resolveDefinition(session, action);
@@ -441,10 +454,11 @@ class Session {
     private final String settingContext;
     private CarePlanBuilder carePlanBuilder;
     private String encounterId;
+    private final CancellationToken cancellationToken;
 
     public Session(PlanDefinition planDefinition, CarePlanBuilder builder, String patientId, String encounterId,
             String practitionerId, String organizationId, String userType, String userLanguage, String userTaskContext,
-            String setting, String settingContext) {
+            String setting, String settingContext, CancellationToken cancellationToken) {
         this.patientId = patientId;
         this.planDefinition = planDefinition;
         this.carePlanBuilder = builder;
@@ -456,6 +470,7 @@ class Session {
         this.userTaskContext = userTaskContext;
         this.setting = setting;
         this.settingContext = settingContext;
+        this.cancellationToken = cancellationToken;
     }
 
     public PlanDefinition getPlanDefinition() {
@@ -509,4 +524,8 @@ class Session {
     public CarePlanBuilder getCarePlanBuilder() {
         return carePlanBuilder;
     }
+
+    public CancellationToken getCancellationToken() {
+        return this.cancellationToken;
+    }
 }
@@ -0,0 +1,200 @@
+package org.opencds.cqf.dstu3.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.ListResource;
+import org.hl7.fhir.dstu3.model.Measure;
+import org.hl7.fhir.dstu3.model.MeasureReport;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencds.cqf.common.helpers.DateHelper;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.fhir.model.Dstu3FhirModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+/**
+ * Evaluates the same measure over the same patients on the calling thread and
+ * in parallel, and checks that the reports agree.
+ */
+public class MeasureEvaluationTest {
+
+    private static final int PATIENT_COUNT = 500;
+
+    private static final String CQL = String.join("\n",
+            "library ParallelEvaluation version '1.0.0'",
+            "using FHIR version '3.0.0'",
+            "context Patient",
+            "define \"Initial Population\": Patient.birthDate.value < @1990-01-01",
+            "define \"Denominator\": \"Initial Population\"",
+            "define \"Denominator Exclusion\": Patient.gender.value = 'male'",
+            "define \"Numerator\": Patient.active.value");
+
+    private static Library library;
+    private static List<Patient> patients;
+    private static Map<String, Patient> patientsById;
+
+    @BeforeClass
+    public static void setUp() {
+        ModelManager modelManager = new ModelManager();
+        library = TranslatorHelper.translateLibrary(CQL, new LibraryManager(modelManager), modelManager);
+
+        patients = new ArrayList<>();
+        patientsById = new HashMap<>();
+        for (int i = 0; i < PATIENT_COUNT; i++) {
+            Patient patient = new Patient();
+            patient.setId("patient-" + i);
+            patient.setBirthDate(new GregorianCalendar(isInitialPopulation(i) ? 1980 : 2005, Calendar.JUNE, 1)
+                    .getTime());
+            patient.setGender(isMale(i) ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+            patient.setActive(isActive(i));
+            patients.add(patient);
+            patientsById.put(patient.getIdElement().getIdPart(), patient);
+        }
+    }
+
+    @Test
+    public void testParallelEvaluationMatchesSerialEvaluation() {
+        MeasureReport serial = evaluate(1);
+        MeasureReport parallel = evaluate(4);
+
+        assertEquals(getPopulationCounts(serial), getPopulationCounts(parallel));
+        assertEquals(getPatientLists(serial), getPatientLists(parallel));
+        assertEquals(serial.getGroupFirstRep().getMeasureScore(), parallel.getGroupFirstRep().getMeasureScore());
+
+        int initialPopulation = 0;
+        int numerator = 0;
+        for (int i = 0; i < PATIENT_COUNT; i++) {
+            if (isInitialPopulation(i)) {
+                initialPopulation++;
+                if (!isMale(i) && isActive(i)) {
+                    numerator++;
+                }
+            }
+        }
+
+        assertEquals(Integer.valueOf(initialPopulation), getPopulationCounts(parallel).get("initial-population"));
+        assertEquals(Integer.valueOf(numerator), getPopulationCounts(parallel).get("numerator"));
+    }
+
+    private static boolean isInitialPopulation(int i) {
+        return i % 3 == 0;
+    }
+
+    private static boolean isMale(int i) {
+        return i % 5 == 0;
+    }
+
+    private static boolean isActive(int i) {
+        return i % 2 == 0;
+    }
+
+    private static MeasureReport evaluate(int threads) {
+        Interval measurementPeriod = new Interval(DateHelper.resolveRequestDate("2019-01-01", true), true,
+                DateHelper.resolveRequestDate("2019-12-31", false), true);
+        MeasureEvaluation evaluation = new MeasureEvaluation(createRegistry(), measurementPeriod,
+                MeasureEvaluationTest::createContext);
+        evaluation.setThreadCount(threads);
+
+        return evaluation.evaluatePatientListMeasure(createMeasure(), createContext(), null);
+    }
+
+    private static Context createContext() {
+        RetrieveProvider retrieveProvider = (context, contextPath, contextValue, dataType, templateId, codePath,
+                codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange) -> {
+            Patient patient = "Patient".equals(dataType) && contextValue != null
+                    ? patientsById.get(contextValue.toString())
+                    : null;
+            return patient != null ? Collections.singletonList(patient) : Collections.emptyList();
+        };
+
+        Context context = new Context(library);
+        context.registerDataProvider("http://hl7.org/fhir",
+                new CompositeDataProvider(new Dstu3FhirModelResolver(), retrieveProvider));
+        return context;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static DaoRegistry createRegistry() {
+        IFhirResourceDao<Patient> dao = mock(IFhirResourceDao.class);
+        when(dao.search(any(SearchParameterMap.class))).thenAnswer(x -> new SimpleBundleProvider(patients));
+
+        DaoRegistry registry = mock(DaoRegistry.class);
+        doReturn(dao).when(registry).getResourceDao("Patient");
+        return registry;
+    }
+
+    private static Measure createMeasure() {
+        Measure measure = new Measure();
+        measure.setId("Measure/parallel-evaluation");
+        measure.setScoring(new CodeableConcept().addCoding(new Coding().setCode("proportion")));
+
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        group.setIdentifier(new Identifier().setValue("group-1"));
+        addPopulation(group, "initial-population", "Initial Population");
+        addPopulation(group, "denominator", "Denominator");
+        addPopulation(group, "denominator-exclusion", "Denominator Exclusion");
+        addPopulation(group, "numerator", "Numerator");
+        return measure;
+    }
+
+    private static void addPopulation(Measure.MeasureGroupComponent group, String code, String criteria) {
+        group.addPopulation().setCode(new CodeableConcept().addCoding(new Coding().setCode(code)))
+                .setCriteria(criteria);
+    }
+
+    private static Map<String, Integer> getPopulationCounts(MeasureReport report) {
+        return report.getGroupFirstRep().getPopulation().stream().collect(
+                Collectors.toMap(x -> x.getCode().getCodingFirstRep().getCode(), x -> x.getCount()));
+    }
+
+    private static Map<String, TreeSet<String>> getPatientLists(MeasureReport report) {
+        Map<String, ListResource> lists = new HashMap<>();
+        for (Resource resource : report.getContained()) {
+            if (resource instanceof ListResource) {
+                lists.put("#" + resource.getIdElement().getIdPart(), (ListResource) resource);
+            }
+        }
+
+        Map<String, TreeSet<String>> patientLists = new HashMap<>();
+        for (MeasureReport.MeasureReportGroupPopulationComponent population : report.getGroupFirstRep()
+                .getPopulation()) {
+            ListResource list = lists.get(population.getPatients().getReference());
+            patientLists.put(population.getCode().getCodingFirstRep().getCode(),
+                    list.getEntry().stream().map(x -> x.getItem().getReference())
+                            .collect(Collectors.toCollection(TreeSet::new)));
+        }
+
+        return patientLists;
+    }
+}
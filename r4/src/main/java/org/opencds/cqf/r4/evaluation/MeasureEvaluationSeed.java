@@ -5,18 +5,29 @@ import java.util.List;
 
 import org.apache.commons.lang3.tuple.Triple;
 import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Resource;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.PatientCachingContext;
+import org.opencds.cqf.common.evaluation.PatientDataPrefetch;
+import org.opencds.cqf.common.evaluation.PatientDependencyAnalysis;
 import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.helpers.UsingHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
+import org.opencds.cqf.common.retrieve.MemoizingRetrieveProvider;
+import org.opencds.cqf.common.retrieve.PrefetchRetrieveProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.debug.DebugMap;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.evaluator.execution.provider.BundleRetrieveProvider;
 import org.opencds.cqf.r4.helpers.LibraryHelper;
 
 public class MeasureEvaluationSeed {
@@ -27,6 +38,15 @@ public class MeasureEvaluationSeed {
     private LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider;
     private EvaluationProviderFactory providerFactory;
     private DataProvider dataProvider;
+    private Library library;
+    private List<Triple<String, String, String>> usingDefs;
+    private String productLine;
+    private String source;
+    private String user;
+    private String pass;
+    private PatientDataPrefetch prefetch;
+    private PatientDependencyAnalysis dependencyAnalysis;
+    private R4FhirModelResolver modelResolver;
 
     public MeasureEvaluationSeed(EvaluationProviderFactory providerFactory, LibraryLoader libraryLoader,
             LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
@@ -51,6 +71,18 @@ public class MeasureEvaluationSeed {
         return this.dataProvider;
     }
 
+    /**
+     * Serves the patient retrieves of contexts created after this call from the
+     * given prefetch, when the patient has been prefetched. Must be called before
+     * setup to apply to the primary context.
+     */
+    public void setPatientDataPrefetch(PatientDataPrefetch prefetch) {
+        this.prefetch = prefetch;
+        if (prefetch != null && this.modelResolver == null) {
+            this.modelResolver = new R4FhirModelResolver();
+        }
+    }
+
     public void setup(Measure measure, String periodStart, String periodEnd, String productLine, String source,
             String user, String pass) {
         this.measure = measure;
@@ -58,19 +90,48 @@ public class MeasureEvaluationSeed {
         LibraryHelper.loadLibraries(measure, this.libraryLoader, this.libraryResourceProvider);
 
         // resolve primary library
-        Library library = LibraryHelper.resolvePrimaryLibrary(measure, libraryLoader, this.libraryResourceProvider);
+        this.library = LibraryHelper.resolvePrimaryLibrary(measure, libraryLoader, this.libraryResourceProvider);
 
-        // resolve execution context
-        context = new Context(library);
-        context.registerLibraryLoader(libraryLoader);
-
-        List<Triple<String, String, String>> usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
+        this.usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
 
         if (usingDefs.size() > 1) {
             throw new IllegalArgumentException(
                     "Evaluation of Measure using multiple Models is not supported at this time.");
         }
 
+        this.productLine = productLine;
+        this.source = source;
+        this.user = user;
+        this.pass = pass;
+
+        // resolve the measurement period
+        measurementPeriod = new Interval(DateHelper.resolveRequestDate(periodStart, true), true,
+                DateHelper.resolveRequestDate(periodEnd, false), true);
+
+        // resolve execution context
+        this.dependencyAnalysis = new PatientDependencyAnalysis(this.libraryLoader);
+        context = new PatientCachingContext(library, this.dependencyAnalysis);
+        this.dataProvider = setupContext(context);
+    }
+
+    /**
+     * Creates a new execution context for the Measure resolved during setup. The
+     * context shares the compiled libraries of the seed but has its own data and
+     * terminology providers, so each context may be used by a different thread.
+     */
+    public Context createContext() {
+        if (this.library == null) {
+            throw new IllegalStateException("MeasureEvaluationSeed.setup must be called before creating a context.");
+        }
+
+        Context context = new PatientCachingContext(this.library, this.dependencyAnalysis);
+        setupContext(context);
+        return context;
+    }
+
+    private DataProvider setupContext(Context context) {
+        context.registerLibraryLoader(libraryLoader);
+
         // If there are no Usings, there is probably not any place the Terminology
         // actually used so I think the assumption that at least one provider exists is
         // ok.
@@ -84,16 +145,17 @@ public class MeasureEvaluationSeed {
             context.registerTerminologyProvider(terminologyProvider);
         }
 
+        DataProvider dataProvider = null;
         for (Triple<String, String, String> def : usingDefs) {
-            this.dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(),
-                    terminologyProvider);
+            // Retrieves are memoized per patient, since populations and supplemental data
+            // elements of a measure often share retrieves
+            TerminologyProvider dataTerminologyProvider = terminologyProvider;
+            dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(),
+                    terminologyProvider, retrieveProvider -> wrapRetrieveProvider(retrieveProvider,
+                            dataTerminologyProvider));
             context.registerDataProvider(def.getRight(), dataProvider);
         }
 
-        // resolve the measurement period
-        measurementPeriod = new Interval(DateHelper.resolveRequestDate(periodStart, true), true,
-                DateHelper.resolveRequestDate(periodEnd, false), true);
-
         context.setParameter(null, "Measurement Period",
                 new Interval(DateTime.fromJavaDate((Date) measurementPeriod.getStart()), true,
                         DateTime.fromJavaDate((Date) measurementPeriod.getEnd()), true));
@@ -102,10 +164,35 @@ public class MeasureEvaluationSeed {
             context.setParameter(null, "Product Line", productLine);
         }
 
+        // Results of definitions that don't depend on the patient are kept across
+        // patients, see PatientCachingContext
         context.setExpressionCaching(true);
 
         DebugMap debugMap = new DebugMap();
         debugMap.setIsLoggingEnabled(true);
         context.setDebugMap(debugMap);
+
+        return dataProvider;
+    }
+
+    private RetrieveProvider wrapRetrieveProvider(RetrieveProvider retrieveProvider,
+            TerminologyProvider terminologyProvider) {
+        if (this.prefetch != null) {
+            retrieveProvider = new PrefetchRetrieveProvider(retrieveProvider, this.prefetch,
+                    resources -> createPartitionProvider(resources, terminologyProvider));
+        }
+
+        return new MemoizingRetrieveProvider(retrieveProvider);
+    }
+
+    private RetrieveProvider createPartitionProvider(List<IBaseResource> resources,
+            TerminologyProvider terminologyProvider) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        for (IBaseResource resource : resources) {
+            bundle.addEntry().setResource((Resource) resource);
+        }
+
+        return new BundleRetrieveProvider(this.modelResolver, bundle, terminologyProvider);
     }
 }
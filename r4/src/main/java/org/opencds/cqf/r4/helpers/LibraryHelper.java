@@ -9,6 +9,7 @@ import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.r4.model.*;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 
@@ -18,19 +19,19 @@ import org.opencds.cqf.common.providers.LibrarySourceProvider;
 public class LibraryHelper {
 
     public static LibraryLoader createLibraryLoader(LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> provider) {
-        ModelManager modelManager = new ModelManager();
+        ModelManager modelManager = SharedModelManager.getInstance();
         LibraryManager libraryManager = new LibraryManager(modelManager);
         libraryManager.getLibrarySourceLoader().clearProviders();
 
-        libraryManager.getLibrarySourceLoader().registerProvider(
-                new LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment>(provider,
-                        x -> x.getContent(), x -> x.getContentType(), x -> x.getData()));
+        LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment> sourceProvider = new LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment>(
+                provider, x -> x.getContent(), x -> x.getContentType(), x -> x.getData());
+        libraryManager.getLibrarySourceLoader().registerProvider(sourceProvider);
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, modelManager, sourceProvider);
     }
 
     public static LibraryLoader createLibraryLoader(org.cqframework.cql.cql2elm.LibrarySourceProvider provider) {
-        ModelManager modelManager = new ModelManager();
+        ModelManager modelManager = SharedModelManager.getInstance();
         LibraryManager libraryManager = new LibraryManager(modelManager);
         libraryManager.getLibrarySourceLoader().clearProviders();
 
@@ -62,9 +63,7 @@ public class LibraryHelper {
             // We just loaded it into the server so we can access it by Id
             org.hl7.fhir.r4.model.Library library = libraryResourceProvider.resolveLibraryById(id);
             if (library != null && isLogicLibrary(library)) {
-                libraries.add(
-                        libraryLoader.load(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()))
-                );
+                libraries.add(load(library, libraryLoader, libraryResourceProvider));
             }
         }
 
@@ -75,27 +74,70 @@ public class LibraryHelper {
 
         VersionedIdentifier primaryLibraryId = libraries.get(0).getIdentifier();
         org.hl7.fhir.r4.model.Library primaryLibrary = libraryResourceProvider.resolveLibraryByName(primaryLibraryId.getId(), primaryLibraryId.getVersion());
-        for (RelatedArtifact artifact : primaryLibrary.getRelatedArtifact()) {
+        for (org.hl7.fhir.r4.model.Library library : getDependencies(primaryLibrary, libraryResourceProvider)) {
+            libraries.add(
+                    libraryLoader.load(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()))
+            );
+        }
+
+        return libraries;
+    }
+
+    // Returns the logic libraries the library depends on, from its depends-on related artifacts
+    private static List<org.hl7.fhir.r4.model.Library> getDependencies(org.hl7.fhir.r4.model.Library library,
+            LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
+        List<org.hl7.fhir.r4.model.Library> dependencies = new ArrayList<>();
+        for (RelatedArtifact artifact : library.getRelatedArtifact()) {
             if (artifact.hasType() && artifact.getType().equals(RelatedArtifact.RelatedArtifactType.DEPENDSON) && artifact.hasResource()) {
-                org.hl7.fhir.r4.model.Library library = null;
+                org.hl7.fhir.r4.model.Library dependency = null;
                 // Raw references to Library/libraryId or libraryId
                 if (artifact.getResource().startsWith("Library/") || ! artifact.getResource().contains("/")) {
-                    library = libraryResourceProvider.resolveLibraryById(artifact.getResource().replace("Library/", ""));
+                    dependency = libraryResourceProvider.resolveLibraryById(artifact.getResource().replace("Library/", ""));
                 }
                 // Full url (e.g. http://hl7.org/fhir/us/Library/FHIRHelpers)
                 else if (artifact.getResource().contains(("/Library/"))) {
-                    library = libraryResourceProvider.resolveLibraryByCanonicalUrl(artifact.getResource());
+                    dependency = libraryResourceProvider.resolveLibraryByCanonicalUrl(artifact.getResource());
                 }
 
-                if (library != null && isLogicLibrary(library)) {
-                    libraries.add(
-                            libraryLoader.load(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()))
-                    );
+                if (dependency != null && isLogicLibrary(dependency)) {
+                    dependencies.add(dependency);
                 }
             }
         }
 
-        return libraries;
+        return dependencies;
+    }
+
+    // Loads the library, translating the libraries it depends on in parallel when
+    // the loader supports it
+    private static Library load(org.hl7.fhir.r4.model.Library library,
+            org.opencds.cqf.cql.engine.execution.LibraryLoader libraryLoader,
+            LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
+        VersionedIdentifier identifier = new VersionedIdentifier().withId(library.getName())
+                .withVersion(library.getVersion());
+        if (!(libraryLoader instanceof LibraryLoader)) {
+            return libraryLoader.load(identifier);
+        }
+
+        return ((LibraryLoader) libraryLoader).loadWithDependencies(identifier,
+                x -> getDependencyIdentifiers(x, libraryResourceProvider));
+    }
+
+    private static List<VersionedIdentifier> getDependencyIdentifiers(VersionedIdentifier identifier,
+            LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
+        List<VersionedIdentifier> dependencies = new ArrayList<>();
+        try {
+            org.hl7.fhir.r4.model.Library library = libraryResourceProvider.resolveLibraryByName(identifier.getId(),
+                    identifier.getVersion());
+            for (org.hl7.fhir.r4.model.Library dependency : getDependencies(library, libraryResourceProvider)) {
+                dependencies.add(new VersionedIdentifier().withId(dependency.getName())
+                        .withVersion(dependency.getVersion()));
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a Library resource of this server; the translator resolves it
+        }
+
+        return dependencies;
     }
 
     private static boolean isLogicLibrary(org.hl7.fhir.r4.model.Library library) {
@@ -137,8 +179,7 @@ public class LibraryHelper {
         // Library library = null;
 
         org.hl7.fhir.r4.model.Library fhirLibrary = libraryResourceProvider.resolveLibraryById(libraryId);
-        return libraryLoader
-                .load(new VersionedIdentifier().withId(fhirLibrary.getName()).withVersion(fhirLibrary.getVersion()));
+        return load(fhirLibrary, libraryLoader, libraryResourceProvider);
 
         // for (Library l : libraryLoader.getLibraries()) {
         // VersionedIdentifier vid = l.getIdentifier();
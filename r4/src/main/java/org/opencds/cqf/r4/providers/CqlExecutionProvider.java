@@ -4,8 +4,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.lang3.tuple.Triple;
 import org.cqframework.cql.cql2elm.CqlTranslator;
@@ -23,7 +25,10 @@ import org.hl7.fhir.r4.model.PlanDefinition;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Type;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CancellationToken;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.LibraryCache;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
 import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
@@ -38,9 +43,14 @@ import org.opencds.cqf.r4.helpers.CanonicalHelper;
 import org.opencds.cqf.r4.helpers.FhirMeasureBundler;
 import org.opencds.cqf.r4.helpers.LibraryHelper;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 /**
  * Created by Bryn on 1/16/2017.
@@ -50,6 +60,14 @@ public class CqlExecutionProvider {
     private LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider;
     private FhirContext context;
 
+    // Compiled expression libraries, keyed by the generated library source, the
+    // versions of the libraries it includes and the generation of the LibraryCache
+    private Cache<String, org.cqframework.cql.elm.execution.Library> expressionCache = CacheBuilder.newBuilder()
+            .maximumSize(HapiProperties.getExpressionCacheMaxSize()).build();
+
+    private LibraryLoader libraryLoader;
+    private long libraryLoaderGeneration;
+
     public CqlExecutionProvider(LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider,
             EvaluationProviderFactory providerFactory, FhirContext context) {
         this.providerFactory = providerFactory;
@@ -124,24 +142,38 @@ public class CqlExecutionProvider {
         return cleanReferences(references);
     }
 
-    private String buildIncludes(Iterable<CanonicalType> references) {
-        StringBuilder builder = new StringBuilder();
+    // Resolves each referenced library once, so the includes and the cache key of
+    // an expression are built from the same resources
+    private Map<CanonicalType, Library> resolveLibraries(Iterable<CanonicalType> references) {
+        Map<CanonicalType, Library> libraries = new LinkedHashMap<>();
         for (CanonicalType reference : references) {
+            Library lib = this.libraryResourceProvider.resolveLibraryById(CanonicalHelper.getId(reference));
+            if (lib == null) {
+                throw new IllegalArgumentException("Library " + reference.getValue() + " not found");
+            }
+
+            if (!lib.hasName()) {
+                throw new IllegalArgumentException("Library " + reference.getValue() + " has no name");
+            }
+
+            libraries.put(reference, lib);
+        }
+
+        return libraries;
+    }
+
+    private String buildIncludes(Map<CanonicalType, Library> libraries) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<CanonicalType, Library> entry : libraries.entrySet()) {
+            CanonicalType reference = entry.getKey();
+            Library lib = entry.getValue();
 
             if (builder.length() > 0) {
                 builder.append(" ");
             }
 
             builder.append("include ");
-
-            // TODO: This assumes the libraries resource id is the same as the library name,
-            // need to work this out better
-            Library lib = this.libraryResourceProvider.resolveLibraryById(CanonicalHelper.getId(reference));
-            if (lib.hasName()) {
-                builder.append(lib.getName());
-            } else {
-                throw new RuntimeException("Library name unknown");
-            }
+            builder.append(lib.getName());
 
             if (reference.hasValue() && reference.getValue().split("\\|").length > 1) {
                 builder.append(" version '");
@@ -162,7 +194,7 @@ public class CqlExecutionProvider {
      * is loaded into the context for the expression
      */
     public Object evaluateInContext(DomainResource instance, String cql, String patientId) {
-        Iterable<CanonicalType> libraries = getLibraryReferences(instance);
+        Map<CanonicalType, Library> libraries = resolveLibraries(getLibraryReferences(instance));
 
         String fhirVersion = this.context.getVersion().getVersion().getFhirVersionString();
 
@@ -170,16 +202,61 @@ public class CqlExecutionProvider {
                 "library LocalLibrary using FHIR version '" + fhirVersion + "' include FHIRHelpers version '"+ fhirVersion +"' called FHIRHelpers %s parameter %s %s parameter \"%%context\" %s define Expression: %s",
                 buildIncludes(libraries), instance.fhirType(), instance.fhirType(), instance.fhirType(), cql);
 
-        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.getLibraryResourceProvider());
+        LibraryLoader libraryLoader = getLibraryLoader();
 
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(source,
-                libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
+        org.cqframework.cql.elm.execution.Library library = getExpressionLibrary(
+                source + "|" + getLibraryVersions(libraries.values()), source, libraryLoader);
 
         // resolve execution context
         Context context = setupContext(instance, patientId, libraryLoader, library);
         return context.resolveExpressionRef("Expression").evaluate(context);
     }
 
+    // The generation of the LibraryCache changes whenever a library is written, so
+    // entries compiled against a previous version of an included library are no
+    // longer found
+    private String getLibraryVersions(Iterable<Library> libraries) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(LibraryCache.getInstance().getGeneration()).append(";");
+        for (Library lib : libraries) {
+            builder.append(lib.getName()).append("-").append(lib.getVersion()).append(";");
+        }
+
+        return builder.toString();
+    }
+
+    private org.cqframework.cql.elm.execution.Library getExpressionLibrary(String key, String source,
+            LibraryLoader libraryLoader) {
+        try {
+            return this.expressionCache.get(key, () -> {
+                // The translator's LibraryManager is shared by the evaluations using the
+                // loader, and loads libraries under the loader's lock
+                synchronized (libraryLoader) {
+                    return TranslatorHelper.translateLibrary(source, libraryLoader.getLibraryManager(),
+                            libraryLoader.getModelManager());
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IllegalArgumentException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Expressions are evaluated with a shared LibraryLoader, replaced whenever a
+    // library is written since a loader keeps the libraries it has loaded
+    private synchronized LibraryLoader getLibraryLoader() {
+        long generation = LibraryCache.getInstance().getGeneration();
+        if (this.libraryLoader == null || this.libraryLoaderGeneration != generation) {
+            this.libraryLoader = LibraryHelper.createLibraryLoader(this.getLibraryResourceProvider());
+            this.libraryLoaderGeneration = generation;
+        }
+
+        return this.libraryLoader;
+    }
+
     public Object evaluateInContext(DomainResource instance, String cql, String patientId, Boolean aliasedExpression) {
         Iterable<CanonicalType> libraries = getLibraryReferences(instance);
         if (aliasedExpression) {
@@ -225,7 +302,7 @@ public class CqlExecutionProvider {
 
     @SuppressWarnings("unchecked")
     @Operation(name = "$cql")
-    public Bundle evaluate(@OperationParam(name = "code") String code,
+    public Bundle evaluate(RequestDetails theRequestDetails, @OperationParam(name = "code") String code,
             @OperationParam(name = "patientId") String patientId,
             @OperationParam(name = "periodStart") String periodStart,
             @OperationParam(name = "periodEnd") String periodEnd,
@@ -328,9 +405,11 @@ public class CqlExecutionProvider {
             context.setParameter(null, "Product Line", productLine);
         }
 
+        CancellationToken cancellationToken = CancellationToken.forRequest(theRequestDetails);
         context.setExpressionCaching(true);
         if (library.getStatements() != null) {
             for (org.cqframework.cql.elm.execution.ExpressionDef def : library.getStatements().getDef()) {
+                cancellationToken.checkCancelled();
                 context.enterContext(def.getContext());
                 if (patientId != null && !patientId.isEmpty()) {
                     context.setContextValue(context.getCurrentContext(), patientId);
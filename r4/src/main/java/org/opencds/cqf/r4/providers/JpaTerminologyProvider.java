@@ -7,6 +7,8 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.ValueSetIndex;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
@@ -27,6 +29,7 @@ public class JpaTerminologyProvider implements TerminologyProvider {
 
     private ITermReadSvcR4 terminologySvcR4;
     private ValueSetResourceProvider valueSetResourceProvider;
+    private ValueSetIndex valueSetIndex = new ValueSetIndex(HapiProperties.getValueSetIndexMaxSize());
 
     public JpaTerminologyProvider(ITermReadSvcR4 terminologySvcR4, FhirContext context,
             ValueSetResourceProvider valueSetResourceProvider) {
@@ -34,20 +37,17 @@ public class JpaTerminologyProvider implements TerminologyProvider {
         this.valueSetResourceProvider = valueSetResourceProvider;
     }
 
+    public ValueSetIndex getValueSetIndex() {
+        return this.valueSetIndex;
+    }
+
     @Override
-    public synchronized boolean in(Code code, ValueSetInfo valueSet) throws ResourceNotFoundException {
-        for (Code c : expand(valueSet)) {
-            if (c == null)
-                continue;
-            if (c.getCode().equals(code.getCode()) && c.getSystem().equals(code.getSystem())) {
-                return true;
-            }
-        }
-        return false;
+    public boolean in(Code code, ValueSetInfo valueSet) throws ResourceNotFoundException {
+        return this.valueSetIndex.contains(valueSet, code, () -> expand(valueSet));
     }
 
     @Override
-    public synchronized Iterable<Code> expand(ValueSetInfo valueSet) throws ResourceNotFoundException {
+    public Iterable<Code> expand(ValueSetInfo valueSet) throws ResourceNotFoundException {
         List<Code> codes = new ArrayList<>();
         boolean needsExpand = false;
         ValueSet vs;
@@ -113,7 +113,7 @@ public class JpaTerminologyProvider implements TerminologyProvider {
     }
 
     @Override
-    public synchronized Code lookup(Code code, CodeSystemInfo codeSystem) throws ResourceNotFoundException {
+    public Code lookup(Code code, CodeSystemInfo codeSystem) throws ResourceNotFoundException {
         LookupCodeResult cs = terminologySvcR4.lookupCode(terminologySvcR4, codeSystem.getId(), code.getCode());
 
         code.setDisplay(cs.getCodeDisplay());
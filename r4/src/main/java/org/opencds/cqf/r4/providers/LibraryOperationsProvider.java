@@ -27,9 +27,16 @@ import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.opencds.cqf.cds.providers.PriorityRetrieveProvider;
+import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
+import org.opencds.cqf.common.evaluation.PagedResourceSource;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
+import org.opencds.cqf.common.evaluation.ValueSetExpansionCache;
 import org.opencds.cqf.common.helpers.ClientHelperDos;
 import org.opencds.cqf.common.helpers.DateHelper;
+import org.opencds.cqf.common.interceptors.LibraryIndexInterceptor;
+import org.opencds.cqf.common.providers.CachingTerminologyProvider;
+import org.opencds.cqf.common.providers.LibraryIndex;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 import org.opencds.cqf.common.providers.R4ApelonFhirTerminologyProvider;
@@ -64,12 +71,15 @@ import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.UriParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
 public class LibraryOperationsProvider implements LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> {
 
     private NarrativeProvider narrativeProvider;
     private DataRequirementsProvider dataRequirementsProvider;
     private LibraryResourceProvider libraryResourceProvider;
+    private LibraryIndex libraryIndex;
     DaoRegistry registry;
     TerminologyProvider defaultTerminologyProvider;
 
@@ -80,10 +90,23 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
         this.libraryResourceProvider = libraryResourceProvider;
         this.registry = registry;
         this.defaultTerminologyProvider = defaultTerminologyProvider;
+        this.libraryIndex = LibraryIndex.getInstance();
+        this.buildLibraryIndex();
+    }
+
+    private void buildLibraryIndex() {
+        Iterable<IBaseResource> libraries = new PagedResourceSource<>(
+                () -> this.libraryResourceProvider.getDao().search(new SearchParameterMap()),
+                HapiProperties.getRetrievePageSize());
+
+        this.libraryIndex.clear();
+        for (IBaseResource library : libraries) {
+            LibraryIndexInterceptor.index(this.libraryResourceProvider.getContext(), this.libraryIndex, library);
+        }
     }
 
     private ModelManager getModelManager() {
-        return new ModelManager();
+        return SharedModelManager.getInstance();
     }
 
     private LibraryManager getLibraryManager(ModelManager modelManager) {
@@ -219,6 +242,8 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
             } else {
                 terminologyProvider = new R4FhirTerminologyProvider(client);
             }
+            terminologyProvider = new CachingTerminologyProvider(terminologyProvider, terminologyEndpoint.getAddress(),
+                    ValueSetExpansionCache.getRemoteInstance());
         } else {
             terminologyProvider = this.defaultTerminologyProvider;
         }
@@ -367,6 +392,11 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
         this.libraryResourceProvider.getDao().update(library);
     }
 
+    @Override
+    public boolean isTrackedByLibraryCache() {
+        return true;
+    }
+
     @Override
     public Library resolveLibraryById(String libraryId) {
         try {
@@ -378,9 +408,12 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
 
     @Override
     public Library resolveLibraryByName(String libraryName, String libraryVersion) {
-        Iterable<org.hl7.fhir.r4.model.Library> libraries = getLibrariesByName(libraryName);
-        org.hl7.fhir.r4.model.Library library = LibraryResolutionProvider.selectFromList(libraries, libraryVersion,
-                x -> x.getVersion());
+        org.hl7.fhir.r4.model.Library library = readIndexedLibrary(
+                this.libraryIndex.getByName(libraryName, libraryVersion));
+        if (library == null) {
+            Iterable<org.hl7.fhir.r4.model.Library> libraries = getLibrariesByName(libraryName);
+            library = LibraryResolutionProvider.selectFromList(libraries, libraryVersion, x -> x.getVersion());
+        }
 
         if (library == null) {
             throw new IllegalArgumentException(String.format("Could not resolve library name %s", libraryName));
@@ -400,6 +433,11 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
             version = parts[1];
         }
 
+        Library library = readIndexedLibrary(this.libraryIndex.getByUrl(resourceUrl, version));
+        if (library != null) {
+            return library;
+        }
+
         SearchParameterMap map = new SearchParameterMap();
         map.add("url", new UriParam(resourceUrl));
         if (version != null) {
@@ -428,9 +466,36 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
         return resolveLibraries(resourceList);
     }
 
+    // Reads the library an index entry points to. The entry may be stale if the
+    // library was changed by another server sharing the database, in which case it
+    // is corrected and the caller falls back to a search.
+    private Library readIndexedLibrary(LibraryIndex.Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+
+        Library library;
+        try {
+            library = this.libraryResourceProvider.getDao().read(new IdType("Library", entry.getId()));
+        } catch (ResourceNotFoundException | ResourceGoneException e) {
+            this.libraryIndex.remove(entry.getId());
+            return null;
+        }
+
+        if (Objects.equals(library.getName(), entry.getName())
+                && Objects.equals(library.getVersion(), entry.getVersion())
+                && Objects.equals(library.getUrl(), entry.getUrl())) {
+            return library;
+        }
+
+        LibraryIndexInterceptor.index(this.libraryResourceProvider.getContext(), this.libraryIndex, library);
+        return null;
+    }
+
     private Iterable<org.hl7.fhir.r4.model.Library> resolveLibraries(List<IBaseResource> resourceList) {
         List<org.hl7.fhir.r4.model.Library> ret = new ArrayList<>();
         for (IBaseResource res : resourceList) {
+            LibraryIndexInterceptor.index(this.libraryResourceProvider.getContext(), this.libraryIndex, res);
             Class<?> clazz = res.getClass();
             ret.add((org.hl7.fhir.r4.model.Library) clazz.cast(res));
         }
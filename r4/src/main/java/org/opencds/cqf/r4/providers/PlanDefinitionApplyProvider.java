@@ -21,6 +21,7 @@ import org.hl7.fhir.r4.model.RequestGroup;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CancellationToken;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
@@ -45,6 +46,7 @@ import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 public class PlanDefinitionApplyProvider {
 
@@ -76,7 +78,8 @@ public class PlanDefinitionApplyProvider {
     }
 
     @Operation(name = "$apply", idempotent = true, type = PlanDefinition.class)
-    public CarePlan applyPlanDefinition(@IdParam IdType theId, @OperationParam(name = "patient") String patientId,
+    public CarePlan applyPlanDefinition(RequestDetails theRequestDetails, @IdParam IdType theId,
+            @OperationParam(name = "patient") String patientId,
             @OperationParam(name = "encounter") String encounterId,
             @OperationParam(name = "practitioner") String practitionerId,
             @OperationParam(name = "organization") String organizationId,
@@ -86,6 +89,14 @@ public class PlanDefinitionApplyProvider {
             @OperationParam(name = "setting") String setting,
             @OperationParam(name = "settingContext") String settingContext)
             throws IOException, FHIRException {
+        return this.applyPlanDefinition(theId, patientId, encounterId, practitionerId, organizationId, userType,
+                userLanguage, userTaskContext, setting, settingContext,
+                CancellationToken.forRequest(theRequestDetails));
+    }
+
+    private CarePlan applyPlanDefinition(IdType theId, String patientId, String encounterId, String practitionerId,
+            String organizationId, String userType, String userLanguage, String userTaskContext, String setting,
+            String settingContext, CancellationToken cancellationToken) throws IOException, FHIRException {
         PlanDefinition planDefinition = this.planDefinitionDao.read(theId);
 
         if (planDefinition == null) {
@@ -112,7 +123,8 @@ public class PlanDefinitionApplyProvider {
         RequestGroupBuilder requestGroupBuilder = new RequestGroupBuilder().buildStatus().buildIntent();
 
         Session session = new Session(planDefinition, builder, patientId, encounterId, practitionerId, organizationId,
-                userType, userLanguage, userTaskContext, setting, settingContext, requestGroupBuilder);
+                userType, userLanguage, userTaskContext, setting, settingContext, requestGroupBuilder,
+                cancellationToken);
 
         return (CarePlan) ContainedHelper.liftContainedResourcesToParent(resolveActions(session));
     }
@@ -135,6 +147,8 @@ public class PlanDefinitionApplyProvider {
     }
 
     private void resolveAction(Session session, PlanDefinition.PlanDefinitionActionComponent action) {
+        session.getCancellationToken().checkCancelled();
+
         // TODO - Apply input/output dataRequirements?
         if (meetsConditions(session, action)) {
             resolveDefinition(session, action);
@@ -168,7 +182,8 @@ public class PlanDefinitionApplyProvider {
                             session.getUserLanguage(),
                             session.getUserTaskContext(),
                             session.getSetting(),
-                            session.getSettingContext());
+                            session.getSettingContext(),
+                            session.getCancellationToken());
 
                     if (plan.getId() == null) {
                         plan.setId(UUID.randomUUID().toString());
@@ -512,10 +527,12 @@ class Session {
     private CarePlanBuilder carePlanBuilder;
     private final String encounterId;
     private final RequestGroupBuilder requestGroupBuilder;
+    private final CancellationToken cancellationToken;
 
     public Session(PlanDefinition planDefinition, CarePlanBuilder builder, String patientId, String encounterId,
             String practitionerId, String organizationId, String userType, String userLanguage, String userTaskContext,
-            String setting, String settingContext, RequestGroupBuilder requestGroupBuilder) {
+            String setting, String settingContext, RequestGroupBuilder requestGroupBuilder,
+            CancellationToken cancellationToken) {
         this.patientId = patientId;
         this.planDefinition = planDefinition;
         this.carePlanBuilder = builder;
@@ -528,6 +545,7 @@ class Session {
         this.setting = setting;
         this.settingContext = settingContext;
         this.requestGroupBuilder = requestGroupBuilder;
+        this.cancellationToken = cancellationToken;
     }
 
     public PlanDefinition getPlanDefinition() {
@@ -585,4 +603,8 @@ class Session {
     public RequestGroupBuilder getRequestGroupBuilder() {
         return requestGroupBuilder;
     }
+
+    public CancellationToken getCancellationToken() {
+        return this.cancellationToken;
+    }
 }
@@ -0,0 +1,115 @@
+package org.opencds.cqf.r4.providers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.PagedResourceSource;
+import org.opencds.cqf.common.evaluation.Warmup;
+import org.opencds.cqf.common.providers.LibraryResolutionProvider;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.r4.helpers.CanonicalHelper;
+import org.opencds.cqf.r4.helpers.LibraryHelper;
+
+import com.google.common.collect.Iterables;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+/**
+ * Warms up the server after a restart by compiling the libraries of every
+ * Measure and PlanDefinition and expanding the value sets they reference (see
+ * Warmup and the warmup.* settings).
+ *
+ * $readiness reports the progress of the warm-up. It answers 503 until the
+ * warm-up is complete, so it can be used as the readiness check of a load
+ * balancer or orchestrator.
+ */
+public class WarmupProvider {
+
+    private DaoRegistry registry;
+    private LibraryResolutionProvider<Library> libraryResolutionProvider;
+    private Warmup warmup;
+
+    public WarmupProvider(DaoRegistry registry, LibraryResolutionProvider<Library> libraryResolutionProvider,
+            TerminologyProvider terminologyProvider) {
+        this.registry = registry;
+        this.libraryResolutionProvider = libraryResolutionProvider;
+        this.warmup = new Warmup(HapiProperties.getWarmupThreads(),
+                () -> LibraryHelper.createLibraryLoader(libraryResolutionProvider), terminologyProvider);
+    }
+
+    public void start() {
+        if (!HapiProperties.getWarmupEnabled()) {
+            return;
+        }
+
+        int pageSize = HapiProperties.getRetrievePageSize();
+        Iterable<IBaseResource> artifacts = Iterables.concat(
+                new PagedResourceSource<IBaseResource>(
+                        () -> this.registry.getResourceDao(Measure.class).search(new SearchParameterMap()), pageSize),
+                new PagedResourceSource<IBaseResource>(
+                        () -> this.registry.getResourceDao(PlanDefinition.class).search(new SearchParameterMap()),
+                        pageSize));
+
+        this.warmup.start(artifacts, this::getLibraries);
+    }
+
+    @Operation(name = "$readiness", idempotent = true)
+    public Parameters readiness() {
+        if (HapiProperties.getWarmupEnabled() && !this.warmup.isComplete()) {
+            BaseServerResponseException notReady = new UnclassifiedServerFailureException(503,
+                    "Warming up: " + this.warmup.getProgress());
+            notReady.addResponseHeader("Retry-After", "10");
+            throw notReady;
+        }
+
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName("status")
+                .setValue(new StringType(HapiProperties.getWarmupEnabled() ? "ready" : "warm-up disabled"));
+        if (HapiProperties.getWarmupEnabled()) {
+            parameters.addParameter().setName("artifacts").setValue(new IntegerType(this.warmup.getArtifactsWarmed()));
+            parameters.addParameter().setName("libraries")
+                    .setValue(new IntegerType(this.warmup.getLibrariesCompiled()));
+            parameters.addParameter().setName("valueSets")
+                    .setValue(new IntegerType(this.warmup.getValueSetsExpanded()));
+            parameters.addParameter().setName("failures").setValue(new IntegerType(this.warmup.getFailures()));
+        }
+
+        return parameters;
+    }
+
+    private List<VersionedIdentifier> getLibraries(IBaseResource artifact) {
+        List<CanonicalType> references = artifact instanceof Measure ? ((Measure) artifact).getLibrary()
+                : ((PlanDefinition) artifact).getLibrary();
+
+        List<VersionedIdentifier> libraries = new ArrayList<>();
+        for (CanonicalType reference : references) {
+            // Contained libraries are only loaded into the server when the artifact is
+            // evaluated
+            String id = CanonicalHelper.getId(reference);
+            if (id == null || id.startsWith("#")) {
+                continue;
+            }
+
+            Library library = this.libraryResolutionProvider.resolveLibraryById(id);
+            if (library != null && library.hasName()) {
+                libraries.add(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()));
+            }
+        }
+
+        return libraries;
+    }
+}
@@ -15,9 +15,21 @@ import org.hl7.fhir.r4.model.Meta;
 import org.hl7.fhir.r4.model.PlanDefinition;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.DiscoveryCache;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.LibraryCache;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
+import org.opencds.cqf.common.evaluation.ValueSetExpansionCache;
+import org.opencds.cqf.common.interceptors.CancellationInterceptor;
+import org.opencds.cqf.common.interceptors.DiscoveryCacheInterceptor;
+import org.opencds.cqf.common.interceptors.LibraryCacheInterceptor;
+import org.opencds.cqf.common.interceptors.LibraryIndexInterceptor;
+import org.opencds.cqf.common.interceptors.ValueSetCacheInterceptor;
+import org.opencds.cqf.common.providers.CachingTerminologyProvider;
+import org.opencds.cqf.common.providers.LibraryIndex;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.tooling.library.r4.NarrativeProvider;
 import org.opencds.cqf.tooling.measure.r4.CodeTerminologyRef;
 import org.opencds.cqf.tooling.measure.r4.CqfMeasure;
@@ -29,6 +41,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.web.cors.CorsConfiguration;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
@@ -103,9 +116,31 @@ public class BaseServlet extends RestfulServer {
         JpaTerminologyProvider localSystemTerminologyProvider = new JpaTerminologyProvider(
                 appCtx.getBean("terminologyService", ITermReadSvcR4.class), getFhirContext(),
                 (ValueSetResourceProvider) this.getResourceProvider(ValueSet.class));
-        EvaluationProviderFactory providerFactory = new ProviderFactory(this.fhirContext, this.registry, localSystemTerminologyProvider);
+        TerminologyProvider cachingTerminologyProvider = new CachingTerminologyProvider(
+                localSystemTerminologyProvider, null, ValueSetExpansionCache.getLocalInstance());
+        EvaluationProviderFactory providerFactory = new ProviderFactory(this.fhirContext, this.registry, cachingTerminologyProvider);
 
-        resolveProviders(providerFactory, localSystemTerminologyProvider, this.registry);
+        // Load the FHIR ModelInfo once up front rather than on the first request
+        SharedModelManager.getInstance().preload("FHIR", "4.0.0", "4.0.1");
+
+        resolveProviders(providerFactory, cachingTerminologyProvider, this.registry);
+
+        // Compiled library cache invalidation
+        appCtx.getBean(IInterceptorService.class)
+                .registerInterceptor(new LibraryCacheInterceptor(this.fhirContext, LibraryCache.getInstance()));
+
+        // Library name and canonical url index maintenance
+        appCtx.getBean(IInterceptorService.class)
+                .registerInterceptor(new LibraryIndexInterceptor(this.fhirContext, LibraryIndex.getInstance()));
+
+        // Value set membership index and expansion cache invalidation
+        appCtx.getBean(IInterceptorService.class).registerInterceptor(
+                new ValueSetCacheInterceptor(this.fhirContext, localSystemTerminologyProvider.getValueSetIndex(),
+                        ValueSetExpansionCache.getLocalInstance()));
+
+        // CDS Hooks discovery invalidation
+        appCtx.getBean(IInterceptorService.class)
+                .registerInterceptor(new DiscoveryCacheInterceptor(this.fhirContext, DiscoveryCache.getInstance()));
 
         // CdsHooksServlet.provider = provider;
 
@@ -149,6 +184,9 @@ public class BaseServlet extends RestfulServer {
         LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
         this.registerInterceptor(loggingInterceptor);
 
+        // Stops evaluations that exceed their time budget or whose client has gone
+        this.registerInterceptor(new CancellationInterceptor());
+
         /*
          * If you are hosting this server at a specific DNS name, the server will try to
          * figure out the FHIR base URL based on what the web container tells it, but
@@ -194,7 +232,7 @@ public class BaseServlet extends RestfulServer {
     // order of dependencies.
     @SuppressWarnings("unchecked")
     private void resolveProviders(EvaluationProviderFactory providerFactory,
-            JpaTerminologyProvider localSystemTerminologyProvider, DaoRegistry registry) throws ServletException {
+            TerminologyProvider localSystemTerminologyProvider, DaoRegistry registry) throws ServletException {
         NarrativeProvider narrativeProvider = this.getNarrativeProvider();
         HQMFProvider hqmfProvider = new HQMFProvider();
 
@@ -220,10 +258,14 @@ public class BaseServlet extends RestfulServer {
                 this.getDao(Bundle.class), this.fhirContext);
         this.registerProvider(bundleProvider);
 
+        // Asynchronous requests
+        AsyncJobProvider asyncJobProvider = new AsyncJobProvider(this.registry, this.fhirContext);
+        this.registerProvider(asyncJobProvider);
+
         // Measure processing
         MeasureOperationsProvider measureProvider = new MeasureOperationsProvider(this.registry, providerFactory,
                 narrativeProvider, hqmfProvider, libraryProvider,
-                (MeasureResourceProvider) this.getResourceProvider(Measure.class));
+                (MeasureResourceProvider) this.getResourceProvider(Measure.class), asyncJobProvider);
         this.registerProvider(measureProvider);
 
         // // ActivityDefinition processing
@@ -244,6 +286,12 @@ public class BaseServlet extends RestfulServer {
         CdsHooksServlet.setSystemTerminologyProvider(localSystemTerminologyProvider);
         CdsHooksServlet.setSystemRetrieveProvider(localSystemRetrieveProvider);
 
+        // Startup warm-up, in the background, and readiness
+        WarmupProvider warmupProvider = new WarmupProvider(this.registry, libraryProvider,
+                localSystemTerminologyProvider);
+        this.registerProvider(warmupProvider);
+        warmupProvider.start();
+
         // QuestionnaireResponse processing
         if(HapiProperties.getQuestionnaireResponseExtractEnabled()) {
             QuestionnaireProvider questionnaireProvider = new QuestionnaireProvider(this.fhirContext);
@@ -3,9 +3,9 @@ package org.opencds.cqf.r4.servlet;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -13,10 +13,12 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -35,6 +37,7 @@ import org.opencds.cqf.cds.request.JsonHelper;
 import org.opencds.cqf.cds.request.Request;
 import org.opencds.cqf.cds.response.CdsCard;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.DiscoveryCache;
 import org.opencds.cqf.common.exceptions.InvalidRequestException;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
@@ -45,14 +48,15 @@ import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.cql.engine.fhir.exception.DataProviderException;
 import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.r4.helpers.LibraryHelper;
-import org.opencds.cqf.r4.providers.JpaTerminologyProvider;
 import org.opencds.cqf.r4.providers.PlanDefinitionApplyProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 
 @WebServlet(name = "cds-services")
@@ -67,7 +71,26 @@ public class CdsHooksServlet extends HttpServlet {
 
     private static JpaFhirRetrieveProvider fhirRetrieveProvider;
 
-    private static JpaTerminologyProvider jpaTerminologyProvider;
+    private static TerminologyProvider terminologyProvider;
+
+    private static IGenericClient localClient;
+
+    private static Cache<String, PreparedPlan> preparedPlans = CacheBuilder.newBuilder()
+            .maximumSize(HapiProperties.getCdsHooksPreparedPlansMaxSize()).build();
+
+    static {
+        DiscoveryCache.getInstance().addInvalidationListener(preparedPlans::invalidateAll);
+    }
+
+    // Everything needed to evaluate a service that does not depend on the request
+    private static class PreparedPlan {
+        private long generation;
+        private PlanDefinition planDefinition;
+        private LibraryLoader libraryLoader;
+        private Library library;
+        private CompositeDataProvider dataProvider;
+        private DebugMap debugMap;
+    }
 
     private ProviderConfiguration providerConfiguration;
 
@@ -97,8 +120,8 @@ public class CdsHooksServlet extends HttpServlet {
         CdsHooksServlet.fhirRetrieveProvider = fhirRetrieveProvider;
     }
 
-    public static void setSystemTerminologyProvider(JpaTerminologyProvider jpaTerminologyProvider) {
-        CdsHooksServlet.jpaTerminologyProvider = jpaTerminologyProvider;
+    public static void setSystemTerminologyProvider(TerminologyProvider terminologyProvider) {
+        CdsHooksServlet.terminologyProvider = terminologyProvider;
     }
 
     // CORS Pre-flight
@@ -144,7 +167,7 @@ public class CdsHooksServlet extends HttpServlet {
 
             JsonParser parser = new JsonParser();
             Request cdsHooksRequest = new Request(service, parser.parse(request.getReader()).getAsJsonObject(),
-                    JsonHelper.getObjectRequired(getService(service), "prefetch"));
+                    getPrefetch(service));
 
             logger.info(cdsHooksRequest.getRequestJson().toString());
 
@@ -159,31 +182,20 @@ public class CdsHooksServlet extends HttpServlet {
             logger.info("cds-hooks local server address: " + baseUrl);
             logger.info("cds-hooks fhir server address: " + hook.getRequest().getFhirServerUrl());
 
-            PlanDefinition planDefinition = planDefinitionProvider.getDao()
-                    .read(new IdType(hook.getRequest().getServiceName()));
-            LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(libraryResolutionProvider);
-            Library library = LibraryHelper.resolvePrimaryLibrary(planDefinition, libraryLoader,
-                    libraryResolutionProvider);
-
-            R4FhirModelResolver resolver = new R4FhirModelResolver();
-            CompositeDataProvider provider = new CompositeDataProvider(resolver, fhirRetrieveProvider);
-
-            Context context = new Context(library);
-
-            DebugMap debugMap = new DebugMap();
-            debugMap.setIsLoggingEnabled(true);
-            context.setDebugMap(debugMap);
+            PreparedPlan plan = getPreparedPlan(hook.getRequest().getServiceName());
 
-            context.registerDataProvider("http://hl7.org/fhir", provider); // TODO make sure tooling handles remote
-                                                                           // provider case
-            context.registerTerminologyProvider(jpaTerminologyProvider);
-            context.registerLibraryLoader(libraryLoader);
+            Context context = new Context(plan.library);
+            context.setDebugMap(plan.debugMap);
+            context.registerDataProvider("http://hl7.org/fhir", plan.dataProvider); // TODO make sure tooling handles remote
+                                                                                    // provider case
+            context.registerTerminologyProvider(terminologyProvider);
+            context.registerLibraryLoader(plan.libraryLoader);
             context.setContextValue("Patient", hook.getRequest().getContext().getPatientId().replace("Patient/", ""));
             context.setExpressionCaching(true);
 
             EvaluationContext<PlanDefinition> evaluationContext = new R4EvaluationContext(hook, version,
-                    FhirContext.forR4().newRestfulGenericClient(baseUrl), jpaTerminologyProvider, context, library,
-                    planDefinition, this.getProviderConfiguration());
+                    getLocalClient(baseUrl), terminologyProvider, context, plan.library, plan.planDefinition,
+                    this.getProviderConfiguration());
 
             this.setAccessControlHeaders(response);
 
@@ -271,22 +283,76 @@ public class CdsHooksServlet extends HttpServlet {
         response.getWriter().println(exceptionAsString);
     }
 
-    private JsonObject getService(String service) {
-        JsonArray services = getServices().get("services").getAsJsonArray();
-        List<String> ids = new ArrayList<>();
-        for (JsonElement element : services) {
-            if (element.isJsonObject() && element.getAsJsonObject().has("id")) {
-                ids.add(element.getAsJsonObject().get("id").getAsString());
-                if (element.isJsonObject() && element.getAsJsonObject().get("id").getAsString().equals(service)) {
-                    return element.getAsJsonObject();
-                }
+    private PreparedPlan getPreparedPlan(String serviceName) {
+        try {
+            PreparedPlan plan = preparedPlans.get(serviceName, () -> preparePlan(serviceName));
+
+            // A plan prepared while a PlanDefinition or Library was being written may
+            // have read the previous resources, and the invalidation doesn't stop a
+            // preparation in progress, so it is used for this request but not kept
+            if (plan.generation != DiscoveryCache.getInstance().getGeneration()) {
+                preparedPlans.asMap().remove(serviceName, plan);
+            }
+
+            return plan;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+
+            throw new RuntimeException(e.getCause());
         }
-        throw new InvalidRequestException(
-                "Cannot resolve service: " + service + "\nAvailable services: " + ids.toString());
+    }
+
+    private PreparedPlan preparePlan(String serviceName) {
+        logger.info("Preparing cds-hooks service: " + serviceName);
+
+        PreparedPlan plan = new PreparedPlan();
+        plan.generation = DiscoveryCache.getInstance().getGeneration();
+        plan.planDefinition = planDefinitionProvider.getDao().read(new IdType(serviceName));
+        plan.libraryLoader = LibraryHelper.createLibraryLoader(libraryResolutionProvider);
+        plan.library = LibraryHelper.resolvePrimaryLibrary(plan.planDefinition, plan.libraryLoader,
+                libraryResolutionProvider);
+        plan.dataProvider = new CompositeDataProvider(new R4FhirModelResolver(), fhirRetrieveProvider);
+
+        plan.debugMap = new DebugMap();
+        plan.debugMap.setIsLoggingEnabled(true);
+
+        return plan;
+    }
+
+    private static synchronized IGenericClient getLocalClient(String baseUrl) {
+        if (localClient == null || !localClient.getServerBase().equals(baseUrl)) {
+            localClient = FhirContext.forR4().newRestfulGenericClient(baseUrl);
+        }
+
+        return localClient;
+    }
+
+    private JsonObject getPrefetch(String service) {
+        JsonObject prefetch = DiscoveryCache.getInstance().getPrefetch(service, this::resolveServices);
+        if (prefetch != null) {
+            return prefetch;
+        }
+
+        return JsonHelper.getObjectRequired(getService(service), "prefetch");
+    }
+
+    private JsonObject getService(String service) {
+        JsonObject serviceJson = DiscoveryCache.getInstance().getService(service, this::resolveServices);
+        if (serviceJson == null) {
+            throw new InvalidRequestException("Cannot resolve service: " + service + "\nAvailable services: "
+                    + DiscoveryCache.getInstance().getServiceIds(this::resolveServices).toString());
+        }
+
+        return serviceJson;
     }
 
     private JsonObject getServices() {
+        return DiscoveryCache.getInstance().getServices(this::resolveServices);
+    }
+
+    private JsonObject resolveServices() {
         DiscoveryResolutionR4 discoveryResolutionR4 = new DiscoveryResolutionR4(
                 FhirContext.forR4().newRestfulGenericClient(HapiProperties.getServerAddress()));
         discoveryResolutionR4.setMaxUriLength(this.getProviderConfiguration().getMaxUriLength());
@@ -0,0 +1,305 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencds.cqf.common.helpers.DateHelper;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+/**
+ * Evaluates measures over the same patients on the calling thread and in
+ * parallel, and checks that the reports agree.
+ */
+public class MeasureEvaluationTest {
+
+    private static final int PATIENT_COUNT = 500;
+
+    private static final String CQL = String.join("\n",
+            "library ParallelEvaluation version '1.0.0'",
+            "using FHIR version '4.0.1'",
+            "context Patient",
+            "define \"Initial Population\": Patient.birthDate.value < @1990-01-01",
+            "define \"Denominator\": \"Initial Population\"",
+            "define \"Denominator Exclusion\": Patient.gender.value = 'male'",
+            "define \"Numerator\": Patient.active.value",
+            "define \"Measure Population\": \"Initial Population\"",
+            "define function \"Birth Order\"(patient Patient): (patient.multipleBirth as FHIR.integer).value",
+            "define \"SDE Sex\": if Patient.gender.value = 'male'",
+            "  then Code { system: 'http://example.org/sex', code: 'M', display: 'Male' }",
+            "  else Code { system: 'http://example.org/sex', code: 'F', display: 'Female' }");
+
+    private static Library library;
+    private static List<Patient> patients;
+    private static Map<String, Patient> patientsById;
+
+    @BeforeClass
+    public static void setUp() {
+        ModelManager modelManager = new ModelManager();
+        library = TranslatorHelper.translateLibrary(CQL, new LibraryManager(modelManager), modelManager);
+
+        patients = new ArrayList<>();
+        patientsById = new HashMap<>();
+        for (int i = 0; i < PATIENT_COUNT; i++) {
+            Patient patient = new Patient();
+            patient.setId("patient-" + i);
+            patient.setBirthDate(new GregorianCalendar(isInitialPopulation(i) ? 1980 : 2005, Calendar.JUNE, 1)
+                    .getTime());
+            patient.setGender(isMale(i) ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+            patient.setActive(isActive(i));
+            patient.setMultipleBirth(new IntegerType(getBirthOrder(i)));
+            patients.add(patient);
+            patientsById.put(patient.getIdElement().getIdPart(), patient);
+        }
+    }
+
+    @Test
+    public void testParallelEvaluationMatchesSerialEvaluation() {
+        MeasureReport serial = evaluate(createMeasure(), 1);
+        MeasureReport parallel = evaluate(createMeasure(), 4);
+
+        assertEquals(getPopulationCounts(serial), getPopulationCounts(parallel));
+        assertEquals(getSubjectLists(serial), getSubjectLists(parallel));
+        assertEquals(serial.getGroupFirstRep().getMeasureScore().getValue(),
+                parallel.getGroupFirstRep().getMeasureScore().getValue());
+
+        int initialPopulation = 0;
+        int numerator = 0;
+        for (int i = 0; i < PATIENT_COUNT; i++) {
+            if (isInitialPopulation(i)) {
+                initialPopulation++;
+                if (!isMale(i) && isActive(i)) {
+                    numerator++;
+                }
+            }
+        }
+
+        assertEquals(Integer.valueOf(initialPopulation), getPopulationCounts(parallel).get("initial-population"));
+        assertEquals(Integer.valueOf(numerator), getPopulationCounts(parallel).get("numerator"));
+    }
+
+    @Test
+    public void testContinuousVariableSummary() {
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < PATIENT_COUNT; i++) {
+            if (isInitialPopulation(i)) {
+                values.add((double) getBirthOrder(i));
+            }
+        }
+        Collections.sort(values);
+        int size = values.size();
+        double median = size % 2 == 1 ? values.get(size / 2) : (values.get(size / 2 - 1) + values.get(size / 2)) / 2;
+        double sum = values.stream().mapToDouble(x -> x).sum();
+
+        MeasureReport serial = evaluate(createContinuousVariableMeasure(), 1);
+        MeasureReport parallel = evaluate(createContinuousVariableMeasure(), 4);
+
+        for (MeasureReport report : Arrays.asList(serial, parallel)) {
+            assertEquals(median, report.getGroupFirstRep().getMeasureScore().getValue().doubleValue(), 0.0);
+
+            Map<String, Double> components = getSummaryComponents(report);
+            assertEquals(Double.valueOf(size), components.get("count"));
+            assertEquals(sum, components.get("sum"), 1e-9);
+            assertEquals(sum / size, components.get("average"), 1e-9);
+            assertEquals(values.get(0), components.get("minimum"));
+            assertEquals(values.get(size - 1), components.get("maximum"));
+            assertEquals(median, components.get("median"), 0.0);
+        }
+    }
+
+    @Test
+    public void testSupplementalDataCounts() {
+        int male = 0;
+        for (int i = 0; i < PATIENT_COUNT; i++) {
+            if (isMale(i)) {
+                male++;
+            }
+        }
+
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("M", male);
+        expected.put("F", PATIENT_COUNT - male);
+
+        Measure measure = createMeasure();
+        measure.addSupplementalData().setCode(new CodeableConcept().setText("sde-sex"))
+                .setCriteria(new Expression().setLanguage("text/cql").setExpression("SDE Sex"));
+
+        assertEquals(expected, getSupplementalDataCounts(evaluate(measure, 1)));
+        assertEquals(expected, getSupplementalDataCounts(evaluate(measure, 4)));
+    }
+
+    private static boolean isInitialPopulation(int i) {
+        return i % 3 == 0;
+    }
+
+    private static boolean isMale(int i) {
+        return i % 5 == 0;
+    }
+
+    private static boolean isActive(int i) {
+        return i % 2 == 0;
+    }
+
+    private static int getBirthOrder(int i) {
+        return i % 7;
+    }
+
+    private static MeasureReport evaluate(Measure measure, int threads) {
+        Interval measurementPeriod = new Interval(DateHelper.resolveRequestDate("2019-01-01", true), true,
+                DateHelper.resolveRequestDate("2019-12-31", false), true);
+        MeasureEvaluation evaluation = new MeasureEvaluation(null, createRegistry(), measurementPeriod,
+                MeasureEvaluationTest::createContext);
+        evaluation.setThreadCount(threads);
+
+        return evaluation.evaluateSubjectListMeasure(measure, createContext(), null);
+    }
+
+    private static Context createContext() {
+        RetrieveProvider retrieveProvider = (context, contextPath, contextValue, dataType, templateId, codePath,
+                codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange) -> {
+            Patient patient = "Patient".equals(dataType) && contextValue != null
+                    ? patientsById.get(contextValue.toString())
+                    : null;
+            return patient != null ? Collections.singletonList(patient) : Collections.emptyList();
+        };
+
+        Context context = new Context(library);
+        context.registerDataProvider("http://hl7.org/fhir",
+                new CompositeDataProvider(new R4FhirModelResolver(), retrieveProvider));
+        return context;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static DaoRegistry createRegistry() {
+        IFhirResourceDao<Patient> dao = mock(IFhirResourceDao.class);
+        when(dao.search(any(SearchParameterMap.class))).thenAnswer(x -> new SimpleBundleProvider(patients));
+
+        DaoRegistry registry = mock(DaoRegistry.class);
+        doReturn(dao).when(registry).getResourceDao("Patient");
+        return registry;
+    }
+
+    private static Measure createMeasure() {
+        Measure measure = new Measure();
+        measure.setId("Measure/parallel-evaluation");
+        measure.setScoring(new CodeableConcept().addCoding(new Coding().setCode("proportion")));
+
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        group.setId("group-1");
+        addPopulation(group, "initial-population", "Initial Population");
+        addPopulation(group, "denominator", "Denominator");
+        addPopulation(group, "denominator-exclusion", "Denominator Exclusion");
+        addPopulation(group, "numerator", "Numerator");
+        return measure;
+    }
+
+    private static Measure createContinuousVariableMeasure() {
+        Measure measure = new Measure();
+        measure.setId("Measure/continuous-variable");
+        measure.setScoring(new CodeableConcept().addCoding(new Coding().setCode("continuous-variable")));
+
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        group.setId("group-1");
+        addPopulation(group, "initial-population", "Initial Population");
+        addPopulation(group, "measure-population", "Measure Population");
+        addPopulation(group, "measure-observation", "Birth Order").addExtension(
+                "http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-aggregateMethod",
+                new CodeType("median"));
+        return measure;
+    }
+
+    private static Measure.MeasureGroupPopulationComponent addPopulation(Measure.MeasureGroupComponent group,
+            String code, String expression) {
+        return group.addPopulation().setCode(new CodeableConcept().addCoding(new Coding().setCode(code)))
+                .setCriteria(new Expression().setLanguage("text/cql").setExpression(expression));
+    }
+
+    private static Map<String, Double> getSummaryComponents(MeasureReport report) {
+        List<Observation> observations = report.getContained().stream().filter(x -> x instanceof Observation)
+                .map(x -> (Observation) x).collect(Collectors.toList());
+        assertEquals(1, observations.size());
+
+        return observations.get(0).getComponent().stream().collect(Collectors.toMap(x -> x.getCode().getText(),
+                x -> x.getValueQuantity().getValue().doubleValue()));
+    }
+
+    private static Map<String, Integer> getPopulationCounts(MeasureReport report) {
+        return report.getGroupFirstRep().getPopulation().stream().collect(
+                Collectors.toMap(x -> x.getCode().getCodingFirstRep().getCode(), x -> x.getCount()));
+    }
+
+    private static Map<String, Integer> getSupplementalDataCounts(MeasureReport report) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Resource resource : report.getContained()) {
+            if (resource instanceof Observation) {
+                Observation observation = (Observation) resource;
+                Coding coding = observation.getCode().getCodingFirstRep();
+                assertEquals("http://example.org/sex", coding.getSystem());
+                assertNull(counts.put(coding.getCode(), ((IntegerType) observation.getValue()).getValue()));
+            }
+        }
+
+        return counts;
+    }
+
+    private static Map<String, TreeSet<String>> getSubjectLists(MeasureReport report) {
+        Map<String, ListResource> lists = new HashMap<>();
+        for (Resource resource : report.getContained()) {
+            if (resource instanceof ListResource) {
+                lists.put("#" + resource.getIdElement().getIdPart(), (ListResource) resource);
+            }
+        }
+
+        Map<String, TreeSet<String>> subjectLists = new HashMap<>();
+        for (MeasureReport.MeasureReportGroupPopulationComponent population : report.getGroupFirstRep()
+                .getPopulation()) {
+            ListResource list = lists.get(population.getSubjectResults().getReference());
+            subjectLists.put(population.getCode().getCodingFirstRep().getCode(),
+                    list.getEntry().stream().map(x -> x.getItem().getReference())
+                            .collect(Collectors.toCollection(TreeSet::new)));
+        }
+
+        return subjectLists;
+    }
+}
@@ -0,0 +1,163 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.PatientDataPrefetch;
+import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+/**
+ * Prefetches R4 patient data in blocks and checks how it is partitioned by
+ * patient and evicted.
+ */
+public class PatientDataPrefetchTest {
+
+    private static final List<String> DATA_TYPES = Arrays.asList("Patient", "Encounter", "Observation",
+            "Medication", "Encounter");
+
+    @Test
+    public void testCoversDataTypesSearchableByPatient() {
+        PatientDataPrefetch prefetch = createPrefetch(mock(DaoRegistry.class), 10);
+
+        assertFalse(prefetch.isEmpty());
+        assertTrue(prefetch.covers("Encounter"));
+        assertTrue(prefetch.covers("Observation"));
+        assertFalse(prefetch.covers("Patient"));
+        assertFalse(prefetch.covers("Medication"));
+    }
+
+    @Test
+    public void testPrefetchPartitionsResourcesByPatient() {
+        List<IBaseResource> encounters = Arrays.asList(createEncounter("e1", "p1"), createEncounter("e2", "p2"),
+                createEncounter("e3", "p1"), createEncounter("e4", "p3"));
+        List<IBaseResource> observations = Collections.singletonList(createObservation("o1", "p2"));
+        PatientDataPrefetch prefetch = createPrefetch(createRegistry(encounters, observations), 10);
+
+        prefetch.prefetch(Arrays.asList("p1", "p2"));
+
+        assertTrue(prefetch.contains("p1"));
+        assertTrue(prefetch.contains("p2"));
+        assertEquals(Arrays.asList("e1", "e3"), getIds(prefetch.getResources("p1", "Encounter")));
+        assertEquals(Collections.singletonList("e2"), getIds(prefetch.getResources("p2", "Encounter")));
+        assertEquals(Collections.singletonList("o1"), getIds(prefetch.getResources("p2", "Observation")));
+
+        // Covered types with no resources for the patient are empty, not missing
+        assertEquals(Collections.emptyList(), prefetch.getResources("p1", "Observation"));
+
+        // Patients outside the block and types that aren't prefetched are missing
+        assertFalse(prefetch.contains("p3"));
+        assertNull(prefetch.getResources("p3", "Encounter"));
+        assertNull(prefetch.getResources("p1", "Medication"));
+    }
+
+    @Test
+    public void testEvictDropsThePatientPartition() {
+        List<IBaseResource> encounters = Arrays.asList(createEncounter("e1", "p1"), createEncounter("e2", "p2"));
+        PatientDataPrefetch prefetch = createPrefetch(createRegistry(encounters, Collections.emptyList()), 10);
+
+        prefetch.prefetch(Arrays.asList("p1", "p2"));
+        prefetch.evict("p1");
+
+        assertFalse(prefetch.contains("p1"));
+        assertNull(prefetch.getResources("p1", "Encounter"));
+        assertEquals(Collections.singletonList("e2"), getIds(prefetch.getResources("p2", "Encounter")));
+    }
+
+    @Test
+    public void testPrefetchingIteratorPrefetchesEachBlock() {
+        List<IBaseResource> encounters = new ArrayList<>();
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Patient patient = new Patient();
+            patient.setId("p" + i);
+            patients.add(patient);
+            encounters.add(createEncounter("e" + i, "p" + i));
+        }
+
+        DaoRegistry registry = createRegistry(encounters, Collections.emptyList());
+        PatientDataPrefetch prefetch = createPrefetch(registry, 2);
+
+        List<String> returned = new ArrayList<>();
+        Iterator<Patient> iterator = prefetch.prefetching(patients.iterator());
+        while (iterator.hasNext()) {
+            String patientId = iterator.next().getIdElement().getIdPart();
+            assertTrue(prefetch.contains(patientId));
+            assertEquals(Collections.singletonList("e" + patientId.substring(1)),
+                    getIds(prefetch.getResources(patientId, "Encounter")));
+            returned.add(patientId);
+            prefetch.evict(patientId);
+        }
+
+        assertEquals(Arrays.asList("p0", "p1", "p2", "p3", "p4"), returned);
+
+        // Three blocks of at most two patients, one search per block and data type
+        verify(registry.getResourceDao("Encounter"), times(3)).search(any(SearchParameterMap.class));
+        verify(registry.getResourceDao("Observation"), times(3)).search(any(SearchParameterMap.class));
+    }
+
+    private static PatientDataPrefetch createPrefetch(DaoRegistry registry, int blockSize) {
+        return new PatientDataPrefetch(registry, FhirContext.forR4(), new R4FhirModelResolver(), DATA_TYPES,
+                blockSize);
+    }
+
+    // Every search returns all the resources of the type, like a search for a
+    // block that also matches other patients
+    @SuppressWarnings("unchecked")
+    private static DaoRegistry createRegistry(List<IBaseResource> encounters, List<IBaseResource> observations) {
+        IFhirResourceDao<Encounter> encounterDao = mock(IFhirResourceDao.class);
+        when(encounterDao.search(any(SearchParameterMap.class))).thenAnswer(x -> new SimpleBundleProvider(encounters));
+        IFhirResourceDao<Observation> observationDao = mock(IFhirResourceDao.class);
+        when(observationDao.search(any(SearchParameterMap.class)))
+                .thenAnswer(x -> new SimpleBundleProvider(observations));
+
+        DaoRegistry registry = mock(DaoRegistry.class);
+        doReturn(encounterDao).when(registry).getResourceDao("Encounter");
+        doReturn(observationDao).when(registry).getResourceDao("Observation");
+        return registry;
+    }
+
+    private static Encounter createEncounter(String id, String patientId) {
+        Encounter encounter = new Encounter();
+        encounter.setId(id);
+        encounter.setSubject(new Reference("Patient/" + patientId));
+        return encounter;
+    }
+
+    private static Observation createObservation(String id, String patientId) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.setSubject(new Reference("Patient/" + patientId));
+        return observation;
+    }
+
+    private static List<String> getIds(List<IBaseResource> resources) {
+        return resources.stream().map(x -> x.getIdElement().getIdPart()).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,88 @@
+package org.opencds.cqf.r4.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.rp.r4.ValueSetResourceProvider;
+
+/**
+ * Expands value sets concurrently through a shared JpaTerminologyProvider, the
+ * way concurrent CDS Hooks requests do, and checks that the expansions run in
+ * parallel.
+ */
+public class JpaTerminologyProviderTest {
+
+    private static final int THREADS = 16;
+
+    @Test
+    public void testConcurrentExpansionsRunInParallel() throws Exception {
+        // Each read waits for every thread to be reading, which only happens if the
+        // expansions aren't serialized. Every thread reads its value set the same
+        // number of times, so the barrier trips once per round of reads.
+        JpaTerminologyProvider provider = new JpaTerminologyProvider(null, FhirContext.forR4(),
+                createValueSetResourceProvider(new CyclicBarrier(THREADS)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                ValueSetInfo valueSet = new ValueSetInfo().withId("valueset-" + i);
+                results.add(executor.submit(() -> {
+                    start.await();
+                    int count = 0;
+                    for (Code code : provider.expand(valueSet)) {
+                        count++;
+                    }
+
+                    return count == 2
+                            && provider.in(new Code().withSystem("http://loinc.org").withCode("1234-5"), valueSet);
+                }));
+            }
+
+            start.countDown();
+            for (Future<Boolean> result : results) {
+                assertEquals(Boolean.TRUE, result.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ValueSetResourceProvider createValueSetResourceProvider(CyclicBarrier barrier) {
+        IFhirResourceDao<ValueSet> dao = mock(IFhirResourceDao.class);
+        when(dao.read(any(IIdType.class))).thenAnswer(x -> {
+            barrier.await(30, TimeUnit.SECONDS);
+            ValueSet valueSet = new ValueSet();
+            valueSet.setId(((IIdType) x.getArgument(0)).getIdPart());
+            ValueSet.ConceptSetComponent include = valueSet.getCompose().addInclude().setSystem("http://loinc.org");
+            include.addConcept().setCode("1234-5");
+            include.addConcept().setCode("6789-0");
+            return valueSet;
+        });
+
+        ValueSetResourceProvider provider = mock(ValueSetResourceProvider.class);
+        when(provider.getDao()).thenReturn(dao);
+        return provider;
+    }
+}